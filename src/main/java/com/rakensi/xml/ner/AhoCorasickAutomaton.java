@@ -0,0 +1,288 @@
+package com.rakensi.xml.ner;
+
+import java.util.ArrayList;
+
+/**
+ * An Aho-Corasick automaton [https://en.wikipedia.org/wiki/Aho%E2%80%93Corasick_algorithm] for the keys in a {@code TrieScanner}.
+ * {@code TrieScanner.scan} starts at the root of the trie for every word in a text,
+ * so characters are matched again for every word start within a long match.
+ * This automaton finds all keys that occur in a text in one pass, following failure links instead of starting over.
+ *<p>
+ * The goto function of the automaton is a frozen trie that contains the keys with their letters in lower case.
+ * The values of the keys in this trie are the original keys, which are used to find the values in the original trie.
+ * The values are not copied, so a trie that is kept off-heap keeps its values there until they are matched.
+ * This way, the same automaton is used for case-sensitive and case-insensitive scanning.
+ *<p>
+ * Get the automaton for a trie with {@code TrieScanner.ahoCorasick()}, and use a {@code Matcher} to scan a text.
+ *
+ * @author Rakensi
+ */
+public class AhoCorasickAutomaton {
+
+  private static final int ROOT = FrozenTrieScanner.ROOT;
+  private static final int NONE = -1; // No output link.
+
+  private TrieScanner trie; // The trie with the original keys.
+  private FrozenTrieScanner foldedTrie; // The case-folded keys, with the original keys as values.
+  private int[] fail; // The failure link of each state.
+  private int[] output; // The nearest state on the failure path where a key ends, or NONE.
+  private int maxKeyLength; // The length of the longest key.
+
+  /**
+   * Make the Aho-Corasick automaton for the keys in a trie.
+   * Use {@code TrieScanner.ahoCorasick()} to get the automaton for a trie.
+   * @param trie The trie that contains the keys.
+   */
+  AhoCorasickAutomaton(TrieScanner trie) {
+    this.trie = trie;
+    TrieScanner folding = trie.emptyCopy();
+    trie.forEachKey((key, values) -> {
+      if (key.length() > 0) {
+        folding.put(foldCase(key), key);
+        maxKeyLength = Math.max(maxKeyLength, key.length());
+      }
+    });
+    foldedTrie = (FrozenTrieScanner)folding.freeze();
+    buildFailureLinks();
+  }
+
+  /**
+   * Compute the failure and output links, breadth-first.
+   */
+  private void buildFailureLinks() {
+    fail = new int[foldedTrie.size()];
+    output = new int[foldedTrie.size()];
+    fail[ROOT] = ROOT;
+    output[ROOT] = NONE;
+    char[] labels = new char[foldedTrie.maxBranches()];
+    int[] states = new int[foldedTrie.maxBranches()];
+    FrozenTrieScanner.BranchIndex branches = foldedTrie.branchIndex();
+    int[] queue = new int[foldedTrie.nrNodes()];
+    int head = 0;
+    int tail = 0;
+    queue[tail++] = ROOT;
+    while (head < tail) {
+      int state = queue[head++];
+      int n = branches.branches(state, labels, states);
+      for (int i = 0; i < n; ++i) {
+        int t = states[i];
+        int f = ROOT;
+        if (state != ROOT) {
+          f = fail[state];
+          while (f != ROOT && foldedTrie.branch(f, labels[i]) < 0) {
+            f = fail[f];
+          }
+          int b = foldedTrie.branch(f, labels[i]);
+          f = b >= 0 ? b : ROOT;
+        }
+        fail[t] = f;
+        output[t] = foldedTrie.values(f) != null ? f : output[f];
+        queue[tail++] = t;
+      }
+    }
+  }
+
+  /**
+   * Fold the case of a key or a character, the same way for keys and scanned text.
+   * @param key
+   * @return The key with its letters in lower case.
+   */
+  private static String foldCase(String key) {
+    StringBuilder folded = new StringBuilder(key.length());
+    for (int i = 0; i < key.length(); ++i) {
+      folded.append(foldCase(key.charAt(i)));
+    }
+    return folded.toString();
+  }
+
+  private static char foldCase(char c) {
+    return Character.isLetter(c) ? Character.toLowerCase(c) : c;
+  }
+
+  /**
+   * Make a matcher for a text.
+   * @param normalizedText The text to scan. This must be normalized to trie characters.
+   * @param caseInsensitive Indicates that matching is case-insensitive.
+   * @return A matcher that finds the longest matching keys at positions in the text.
+   */
+  public Matcher matcher(CharSequence normalizedText, boolean caseInsensitive) {
+    return new Matcher(normalizedText, caseInsensitive);
+  }
+
+  /**
+   * Finds the longest matches in a text, in one pass through the text.
+   * The text is read as a sequence of steps, where a step is a trie character,
+   * or a sequence of whitespace and ignored characters that is matched as one space.
+   * The matcher runs ahead of the scanned position by at most the length of the longest key,
+   * and remembers the longest matches for the steps within that window.
+   */
+  public class Matcher {
+    private CharSequence normalizedText;
+    private boolean caseInsensitive;
+    private CharClasses classes; // The classes of characters of the trie.
+    private int length; // The length of the text.
+    private int window; // The number of steps that are remembered.
+    // For each remembered step (modulo window):
+    private int[] stepStart; // The position in the text where the step starts.
+    private int[] stepEnd; // The position in the text after the step.
+    private char[] stepChar; // The character that is matched by the step.
+    private boolean[] stepNoise; // If the step has skipped or replaced characters of the text.
+    private int[] matchEnd; // The end of the longest match starting at the step, or -1.
+    private ArrayList<ArrayList<String>> matchKeys; // The original keys of the longest matches starting at the step.
+    private int state = ROOT; // The current state of the automaton.
+    private int nrSteps = 0; // The number of steps that have been read.
+    private int pos = 0; // The position in the text of the next step.
+    private int queryStep = 0; // The step where the last scan started.
+
+    private Matcher(CharSequence normalizedText, boolean caseInsensitive) {
+      this.normalizedText = normalizedText;
+      this.caseInsensitive = caseInsensitive;
+      this.classes = trie.charClasses();
+      this.length = normalizedText.length();
+      this.window = Math.max(1, maxKeyLength);
+      stepStart = new int[window];
+      stepEnd = new int[window];
+      stepChar = new char[window];
+      stepNoise = new boolean[window];
+      matchEnd = new int[window];
+      matchKeys = new ArrayList<ArrayList<String>>(window);
+      for (int i = 0; i < window; ++i) {
+        matchKeys.add(new ArrayList<String>(1));
+      }
+    }
+
+    /**
+     * Find the longest matches for keys that start at a position in the text.
+     * Successive calls must have non-decreasing start positions.
+     * @param start The position where matches must start.
+     * @param cursor Receives the same results as {@code TrieScanner.scan(normalizedText, start, caseInsensitive, cursor)}.
+     * @return True if there is a match.
+     */
+    public boolean scan(int start, TrieScanner.ScanCursor cursor) {
+      cursor.reset(start);
+      if (start >= length || classes.is(normalizedText.charAt(start), CharClasses.SEPARATOR)) {
+        // Keys do not start with a space.
+        return false;
+      }
+      // Find the step that starts at the start position.
+      while (queryStep == nrSteps || stepStart[queryStep % window] < start) {
+        if (queryStep == nrSteps) {
+          if (pos >= length) {
+            return false;
+          }
+          step();
+        } else {
+          ++queryStep;
+        }
+      }
+      int slot = queryStep % window;
+      if (stepStart[slot] != start) {
+        return false;
+      }
+      // Read ahead until all keys that may start at the start position have been seen.
+      while (nrSteps < queryStep + window && pos < length) {
+        step();
+      }
+      if (matchEnd[slot] < 0) {
+        return false;
+      }
+      ArrayList<String> keys = matchKeys.get(slot);
+      for (int i = 0; i < keys.size(); ++i) {
+        String key = keys.get(i);
+        boolean exactCase = !caseInsensitive || matchesExactly(key, queryStep);
+        cursor.add(matchEnd[slot], trie.getOriginal(key), key, exactCase, matchesWithoutNoise(key, queryStep, exactCase));
+      }
+      return true;
+    }
+
+    /**
+     * Read the next step in the text, and remember the matches that end after it.
+     */
+    private void step() {
+      int current = pos;
+      char ch = normalizedText.charAt(current);
+      char textChar = ch;
+      int nextPos = current + 1;
+      if (classes.is(ch, CharClasses.SEPARATOR)) {
+        // Match sequences of whitespace and ignored characters as one space.
+        while (nextPos < length && classes.is(normalizedText.charAt(nextPos), CharClasses.SEPARATOR)) {
+          ++nextPos;
+        }
+        ch = ' ';
+      }
+      int slot = nrSteps % window;
+      stepStart[slot] = current;
+      stepEnd[slot] = nextPos;
+      stepChar[slot] = ch;
+      stepNoise[slot] = nextPos > current + 1 || ch != textChar;
+      matchEnd[slot] = -1;
+      matchKeys.get(slot).clear();
+      // Follow failure links until there is a branch for the character.
+      char folded = foldCase(ch);
+      int next;
+      while ((next = foldedTrie.branch(state, folded)) < 0 && state != ROOT) {
+        state = fail[state];
+      }
+      state = next >= 0 ? next : ROOT;
+      // Remember the keys that end here, unless the next character continues the word.
+      if (nextPos == length || !classes.is(normalizedText.charAt(nextPos), CharClasses.NO_WORD_BEFORE)) {
+        for (int s = foldedTrie.values(state) != null ? state : output[state]; s != NONE; s = output[s]) {
+          for (String key : foldedTrie.values(s)) {
+            int keyStep = nrSteps + 1 - key.length();
+            int keySlot = keyStep % window;
+            // A word does not start immediately after a letter or digit, so matches starting there are never used.
+            int keyStart = stepStart[keySlot];
+            if (keyStart > 0 && classes.is(normalizedText.charAt(keyStart - 1), CharClasses.LETTER_OR_DIGIT)) {
+              break;
+            }
+            if (caseInsensitive || matchesExactly(key, keyStep)) {
+              if (nextPos > matchEnd[keySlot]) {
+                matchEnd[keySlot] = nextPos;
+                matchKeys.get(keySlot).clear();
+              }
+              matchKeys.get(keySlot).add(key);
+            }
+          }
+        }
+      }
+      ++nrSteps;
+      pos = nextPos;
+    }
+
+    /**
+     * Check if a key matches the steps from a given step, including case.
+     * @param key An original key.
+     * @param fromStep The step where the key starts.
+     * @return True if the characters of the key are the same as the characters of the steps.
+     */
+    private boolean matchesExactly(String key, int fromStep) {
+      for (int i = 0; i < key.length(); ++i) {
+        if (key.charAt(i) != stepChar[(fromStep + i) % window]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Check if a key matches the steps from a given step ignoring case, and none of the steps is noise.
+     * @param key An original key.
+     * @param fromStep The step where the key starts.
+     * @param exactCase Indicates that the key is known to match the steps including case.
+     * @return True if the characters of the key are the characters of the text, ignoring case.
+     */
+    private boolean matchesWithoutNoise(String key, int fromStep, boolean exactCase) {
+      for (int i = 0; i < key.length(); ++i) {
+        int slot = (fromStep + i) % window;
+        char c = key.charAt(i);
+        char s = stepChar[slot];
+        if (stepNoise[slot] || !exactCase && c != s && Character.toLowerCase(c) != Character.toLowerCase(s)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+  } // class Matcher
+
+}
@@ -0,0 +1,122 @@
+package com.rakensi.xml.ner;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The classes of all characters for scanning, compiled from the character options into one table,
+ * so that testing the class of a character takes one array access.
+ * The classes are bits in the table entry of a character.
+ * The classes that depend on the no-word-after characters of a {@code TrieNER} are added by {@code withNoWordAfter}.
+ * A {@code CharClasses} cannot be changed, so it can be shared by tries and threads.
+ * Tries with the same character options share one {@code CharClasses}, see {@code of}.
+ *
+ * @author Rakensi
+ */
+final class CharClasses {
+
+  static final int WHITESPACE = 1; // Whitespace.
+  static final int LETTER_OR_DIGIT = 2; // A letter or digit.
+  static final int TRIE_CHAR = 4; // A character that can be put into the trie, see {@code TrieScanner.isTrieChar}.
+  static final int NON_SPACE_TRIE_CHAR = 8; // A trie character that is not whitespace, see {@code TrieScanner.isNonSpaceTrieChar}.
+  static final int SEPARATOR = 16; // A character between words, see {@code TrieScanner.wordSeparatorChar}.
+  static final int NO_WORD_BEFORE = 32; // A character that a match cannot end before, see {@code TrieScanner.continuesWord}.
+  static final int NO_WORD_AFTER = 64; // A character that a match cannot start after, only set by {@code withNoWordAfter}.
+
+  // The compiled classes for each combination of character options. There are only a few combinations in practice.
+  private static final ConcurrentHashMap<String, CharClasses> compiled = new ConcurrentHashMap<String, CharClasses>();
+
+  private final byte[] classes; // The classes of each character.
+  private final CharClasses base; // The classes to which the no-word-after classes were added, or null.
+  private final ConcurrentHashMap<String, CharClasses> withNoWordAfter; // The classes with added no-word-after classes, or null.
+
+  /**
+   * Get the character classes for some character options, which are compiled only once.
+   * @param wordChars Characters that are considered part of a word, next to letters and digits.
+   * @param noWordBefore Characters that may not occur immediately after a match, next to letters and digits.
+   * @param unicode Letters and digits outside of low ASCII are trie characters.
+   * @return The character classes.
+   */
+  static CharClasses of(String wordChars, String noWordBefore, boolean unicode) {
+    String options = (unicode ? "U" : "A") + wordChars.length() + ":" + wordChars + noWordBefore;
+    return compiled.computeIfAbsent(options, o -> new CharClasses(wordChars, noWordBefore, unicode));
+  }
+
+  /**
+   * Compile the character classes of a trie.
+   * @param wordChars Characters that are considered part of a word, next to letters and digits.
+   * @param noWordBefore Characters that may not occur immediately after a match, next to letters and digits.
+   * @param unicode Letters and digits outside of low ASCII are trie characters.
+   */
+  private CharClasses(String wordChars, String noWordBefore, boolean unicode) {
+    classes = new byte[Character.MAX_VALUE + 1];
+    base = null;
+    withNoWordAfter = new ConcurrentHashMap<String, CharClasses>();
+    for (int i = 0; i <= Character.MAX_VALUE; ++i) {
+      char c = (char)i;
+      int charClasses = 0;
+      boolean letterOrDigit = Character.isLetterOrDigit(c);
+      boolean whitespace = Character.isWhitespace(c);
+      boolean nonSpaceTrieChar = (c < TrieScanner.R || unicode) && (letterOrDigit || wordChars.indexOf(c) >= 0);
+      if (whitespace) {
+        charClasses |= WHITESPACE;
+      }
+      if (nonSpaceTrieChar) {
+        charClasses |= NON_SPACE_TRIE_CHAR;
+      }
+      if (whitespace || nonSpaceTrieChar) {
+        charClasses |= TRIE_CHAR;
+      }
+      if (whitespace || !nonSpaceTrieChar) {
+        charClasses |= SEPARATOR;
+      }
+      if (letterOrDigit) {
+        charClasses |= LETTER_OR_DIGIT;
+      }
+      if (letterOrDigit || noWordBefore.indexOf(c) >= 0) {
+        charClasses |= NO_WORD_BEFORE;
+      }
+      classes[i] = (byte)charClasses;
+    }
+  }
+
+  private CharClasses(byte[] classes, CharClasses base) {
+    this.classes = classes;
+    this.base = base;
+    this.withNoWordAfter = null;
+  }
+
+  /**
+   * Add the classes that depend on the no-word-after characters of a {@code TrieNER}.
+   * These are compiled only once for each noWordAfter.
+   * @param noWordAfter Characters that may not occur immediately before a match, next to letters and digits.
+   * @return These classes, with the no-word-after classes.
+   */
+  CharClasses withNoWordAfter(String noWordAfter) {
+    return withNoWordAfter.computeIfAbsent(noWordAfter, n -> {
+      byte[] added = classes.clone();
+      for (int i = 0; i <= Character.MAX_VALUE; ++i) {
+        if ((classes[i] & LETTER_OR_DIGIT) != 0 || n.indexOf((char)i) >= 0) {
+          added[i] |= NO_WORD_AFTER;
+        }
+      }
+      return new CharClasses(added, this);
+    });
+  }
+
+  /**
+   * @return The classes to which {@code withNoWordAfter} added the no-word-after classes, or null.
+   */
+  CharClasses base() {
+    return base;
+  }
+
+  /**
+   * @param c A character.
+   * @param charClasses One or more classes.
+   * @return True if the character is in one of the classes.
+   */
+  boolean is(char c, int charClasses) {
+    return (classes[c] & charClasses) != 0;
+  }
+
+}
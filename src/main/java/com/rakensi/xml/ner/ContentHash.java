@@ -0,0 +1,87 @@
+package com.rakensi.xml.ner;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A hash of the content of a grammar, which is used as the key of its trie in the cache.
+ * The content is added in parts, so that a grammar does not have to be serialized to compute its hash.
+ * Every string is preceded by its length, so that different sequences of strings give different hashes.
+ *<p>
+ * The hash is SHA-256, which is much faster than compiling a grammar.
+ * A weaker hash would be a little faster, but a collision would silently give the trie of another grammar.
+ *
+ * @author Rakensi
+ */
+final class ContentHash {
+
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  private final MessageDigest digest;
+  private final byte[] buffer = new byte[8192]; // Chars are added to the digest in blocks of bytes.
+  private int length = 0; // The number of bytes in the buffer.
+
+  ContentHash() {
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available.", e); // Every Java platform must support SHA-256.
+    }
+  }
+
+  /**
+   * Add an int to the hash.
+   * @param value
+   * @return This hash.
+   */
+  ContentHash add(int value) {
+    if (length + 4 > buffer.length) {
+      flush();
+    }
+    buffer[length++] = (byte)(value >>> 24);
+    buffer[length++] = (byte)(value >>> 16);
+    buffer[length++] = (byte)(value >>> 8);
+    buffer[length++] = (byte)value;
+    return this;
+  }
+
+  /**
+   * Add a string to the hash, preceded by its length.
+   * @param text
+   * @return This hash.
+   */
+  ContentHash add(CharSequence text) {
+    int textLength = text.length();
+    add(textLength);
+    for (int i = 0; i < textLength; ++i) {
+      if (length + 2 > buffer.length) {
+        flush();
+      }
+      char c = text.charAt(i);
+      buffer[length++] = (byte)(c >>> 8);
+      buffer[length++] = (byte)c;
+    }
+    return this;
+  }
+
+  private void flush() {
+    digest.update(buffer, 0, length);
+    length = 0;
+  }
+
+  /**
+   * Finish the hash. Nothing can be added after this.
+   * @return The hash, as hexadecimal digits.
+   */
+  String toHex() {
+    flush();
+    byte[] hash = digest.digest();
+    char[] hex = new char[2 * hash.length];
+    for (int i = 0; i < hash.length; ++i) {
+      hex[2 * i] = HEX_DIGITS[(hash[i] >>> 4) & 0xF];
+      hex[2 * i + 1] = HEX_DIGITS[hash[i] & 0xF];
+    }
+    return new String(hex);
+  }
+
+}
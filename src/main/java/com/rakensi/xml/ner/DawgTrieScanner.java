@@ -0,0 +1,426 @@
+package com.rakensi.xml.ner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+/**
+ * A minimal acyclic automaton (DAWG) [https://en.wikipedia.org/wiki/Deterministic_acyclic_finite_state_automaton] for the keys of a trie.
+ * A trie shares the prefixes of keys; a minimal automaton also shares their suffixes,
+ * such as "Corporation" or "disease" at the end of many names.
+ *<p>
+ * The automaton is built incrementally from keys that are put in sorted order
+ * [Daciuk, Mihov, Watson and Watson, Incremental Construction of Minimal Acyclic Finite-State Automata, 2000].
+ * Only the path of the last key is kept as mutable states.
+ * All other states are minimal and stored in flat arrays, with a hash table to find equivalent states.
+ * The memory that is used while building is the memory of the automaton, plus the length of the longest key.
+ *<p>
+ * The values of different keys cannot be stored in shared states.
+ * Instead, the keys are numbered in sorted order, and every transition holds the number of keys that precede it
+ * among the keys that pass through its source state.
+ * The sum of these numbers on the path of a key is the number of the key, which indexes its values.
+ *<p>
+ * Keys must be put in increasing order of their normalized (and case-folded) form.
+ * A key may be put several times in a row, with different values.
+ * The automaton is completed when it is first scanned or frozen; after that, keys cannot be added.
+ *
+ * @author Rakensi
+ */
+public class DawgTrieScanner extends TrieScanner {
+
+  private static final int NONE = -1; // No state.
+
+  // The minimal states, each with a consecutive range of transitions, ordered by label.
+  private int[] firstTransition = new int[1024]; // The first transition of each state. The entry after the last state is the number of transitions.
+  private boolean[] finals = new boolean[1024]; // Indicates that a key ends in a state.
+  private char[] labels = new char[1024]; // The label of each transition.
+  private int[] targets = new int[1024]; // The target state of each transition.
+  private int[] offsets = new int[1024]; // The number of keys that precede each transition among the keys through its source state.
+  private int nrStates = 0; // number of minimal states
+  private int nrTransitions = 0; // number of transitions of minimal states
+  private int initialState = NONE; // The initial state, which is known when the automaton is complete.
+  private ArrayList<ArrayList<String>> values = new ArrayList<ArrayList<String>>(); // The values of the keys, in sorted order of the keys.
+
+  // Only used while building.
+  private int[] counts = new int[1024]; // The number of keys accepted from each state.
+  private int[] register = new int[1024]; // Hash table of the minimal states, NONE for empty slots.
+  private int nrRegistered = 0; // number of states in the register
+  private ArrayList<PathState> path = new ArrayList<PathState>(); // The states on the path of the previous key.
+  private String previousKey = null; // The previous (case-folded) key.
+  private volatile boolean completed = false; // Indicates that no keys can be added anymore.
+
+  /**
+   * A state on the path of the previous key, which may still change.
+   * The last transition leads to the next state on the path; the other transitions lead to minimal states.
+   */
+  private static class PathState {
+    char[] labels = new char[4];
+    int[] targets = new int[4];
+    int nrTransitions = 0;
+    boolean isFinal = false;
+
+    void clear() {
+      nrTransitions = 0;
+      isFinal = false;
+    }
+
+    void add(char c) {
+      if (nrTransitions == labels.length) {
+        labels = Arrays.copyOf(labels, 2 * labels.length);
+        targets = Arrays.copyOf(targets, 2 * targets.length);
+      }
+      labels[nrTransitions] = c;
+      targets[nrTransitions] = NONE;
+      ++nrTransitions;
+    }
+  }
+
+  /**
+   * Constructor for a minimal automaton.
+   * @param wordChars
+   * @param noWordBefore
+   * @param logger
+   */
+  public DawgTrieScanner(String wordChars, String noWordBefore, Logger logger) {
+    super(wordChars, noWordBefore, logger);
+    Arrays.fill(register, NONE);
+    path.add(new PathState());
+  }
+
+  /**
+   * Add a key-value pair. Keys must be added in sorted order.
+   * @param originalKey the key
+   * @param val the value
+   * @throws IllegalArgumentException if the key contains illegal characters, or if it is not in sorted order.
+   * @throws IllegalStateException if the automaton is already complete.
+   */
+  @Override
+  public synchronized void put(String originalKey, String val) {
+    if (completed) {
+      throw new IllegalStateException("Cannot put ["+originalKey+"] into a completed minimal automaton.");
+    }
+    String key = toTrieCharsIgnoringNonTrieChars(originalKey);
+    String foldedKey = foldKey(key); // The same as sortKey(originalKey).
+    for (int d = 0; d < foldedKey.length(); ++d) {
+      char c = foldedKey.charAt(d);
+      if (!isTrieChar(c)) {
+        throw new IllegalArgumentException("Illegal trie character: ["+c+"] ("+((int)c)+") in key ["+originalKey+"].");
+      }
+    }
+    int prefix = 0;
+    if (previousKey != null) {
+      int order = foldedKey.compareTo(previousKey);
+      if (order < 0) {
+        throw new IllegalArgumentException("The key ["+originalKey+"] is not in sorted order, it comes before ["+previousKey+"].");
+      } else if (order == 0) {
+        // Another value for the previous key.
+        int last = values.size() - 1;
+        values.set(last, addValue(values.get(last), key, val));
+        return;
+      }
+      while (prefix < previousKey.length() && foldedKey.charAt(prefix) == previousKey.charAt(prefix)) {
+        ++prefix;
+      }
+      // The states on the path of the previous key after the common prefix will not change anymore.
+      minimize(prefix);
+    }
+    while (path.size() <= foldedKey.length()) {
+      path.add(new PathState());
+    }
+    for (int d = prefix; d < foldedKey.length(); ++d) {
+      path.get(d).add(foldedKey.charAt(d));
+      path.get(d + 1).clear();
+    }
+    path.get(foldedKey.length()).isFinal = true;
+    values.add(addValue(null, key, val));
+    previousKey = foldedKey;
+  }
+
+  /**
+   * The form of a key that determines the order in which keys must be put.
+   * Sort keys on this form, with {@code String.compareTo}, before putting them.
+   * @param key
+   * @return The key as it is stored in the automaton.
+   */
+  public String sortKey(String key) {
+    return foldKey(toTrieCharsIgnoringNonTrieChars(key));
+  }
+
+  /**
+   * Replace the states on the path of the previous key below a depth by equivalent minimal states.
+   * @param depth The depth of the last state on the path that may still change.
+   */
+  private void minimize(int depth) {
+    for (int d = previousKey.length(); d > depth; --d) {
+      PathState parent = path.get(d - 1);
+      parent.targets[parent.nrTransitions - 1] = register(path.get(d));
+    }
+  }
+
+  /**
+   * Complete the automaton if that has not been done. After this, no keys can be added.
+   */
+  private void complete() {
+    if (!completed) {
+      completeOnce();
+    }
+  }
+
+  private synchronized void completeOnce() {
+    if (completed) {
+      return;
+    }
+    if (previousKey != null) {
+      minimize(0);
+    }
+    initialState = register(path.get(0));
+    firstTransition = Arrays.copyOf(firstTransition, nrStates + 1);
+    finals = Arrays.copyOf(finals, nrStates);
+    labels = Arrays.copyOf(labels, nrTransitions);
+    targets = Arrays.copyOf(targets, nrTransitions);
+    offsets = Arrays.copyOf(offsets, nrTransitions);
+    values.trimToSize();
+    counts = null;
+    register = null;
+    path = null;
+    previousKey = null;
+    completed = true;
+  }
+
+  /**
+   * Find the minimal state that is equivalent to a state, or make a new minimal state.
+   * Two states are equivalent if they are both final or not, and have the same transitions.
+   * @param state The state, of which all transitions lead to minimal states.
+   * @return The equivalent minimal state.
+   */
+  private int register(PathState state) {
+    int mask = register.length - 1;
+    for (int slot = hash(state.isFinal, state.labels, state.targets, 0, state.nrTransitions) & mask; ; slot = (slot + 1) & mask) {
+      int minimal = register[slot];
+      if (minimal == NONE) {
+        minimal = append(state);
+        register[slot] = minimal;
+        if (++nrRegistered * 2 > register.length) {
+          rehash();
+        }
+        return minimal;
+      } else if (equivalent(minimal, state)) {
+        return minimal;
+      }
+    }
+  }
+
+  private static int hash(boolean isFinal, char[] labels, int[] targets, int from, int to) {
+    int hash = isFinal ? 1 : 0;
+    for (int t = from; t < to; ++t) {
+      hash = 31 * (31 * hash + labels[t]) + targets[t];
+    }
+    // Mix the bits, because the targets of similar states are often consecutive numbers, which would make clusters in the table.
+    hash *= 0x9E3779B9;
+    return hash ^ (hash >>> 15);
+  }
+
+  private boolean equivalent(int minimal, PathState state) {
+    int from = firstTransition[minimal];
+    if (finals[minimal] != state.isFinal || firstTransition[minimal + 1] - from != state.nrTransitions) {
+      return false;
+    }
+    for (int i = 0; i < state.nrTransitions; ++i) {
+      if (labels[from + i] != state.labels[i] || targets[from + i] != state.targets[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void rehash() {
+    register = new int[2 * register.length];
+    Arrays.fill(register, NONE);
+    int mask = register.length - 1;
+    for (int state = 0; state < nrStates; ++state) {
+      int slot = hash(finals[state], labels, targets, firstTransition[state], firstTransition[state + 1]) & mask;
+      while (register[slot] != NONE) {
+        slot = (slot + 1) & mask;
+      }
+      register[slot] = state;
+    }
+  }
+
+  /**
+   * Store a state as a new minimal state.
+   * @param state The state, of which all transitions lead to minimal states.
+   * @return The new minimal state.
+   */
+  private int append(PathState state) {
+    if (nrStates + 2 > firstTransition.length) {
+      int length = 2 * firstTransition.length;
+      firstTransition = Arrays.copyOf(firstTransition, length);
+      finals = Arrays.copyOf(finals, length);
+      counts = Arrays.copyOf(counts, length);
+    }
+    if (nrTransitions + state.nrTransitions > labels.length) {
+      int length = Math.max(nrTransitions + state.nrTransitions, 2 * labels.length);
+      labels = Arrays.copyOf(labels, length);
+      targets = Arrays.copyOf(targets, length);
+      offsets = Arrays.copyOf(offsets, length);
+    }
+    int minimal = nrStates++;
+    finals[minimal] = state.isFinal;
+    firstTransition[minimal] = nrTransitions;
+    int count = state.isFinal ? 1 : 0;
+    for (int i = 0; i < state.nrTransitions; ++i) {
+      labels[nrTransitions] = state.labels[i];
+      targets[nrTransitions] = state.targets[i];
+      offsets[nrTransitions] = count;
+      count += counts[state.targets[i]];
+      ++nrTransitions;
+    }
+    firstTransition[minimal + 1] = nrTransitions;
+    counts[minimal] = count;
+    return minimal;
+  }
+
+  /**
+   * Find the transition from a state for a character.
+   * @param state The state.
+   * @param c The character.
+   * @return The transition, or -1 if there is none.
+   */
+  private int transition(int state, char c) {
+    int low = firstTransition[state];
+    int high = firstTransition[state + 1] - 1;
+    if (high - low < MAX_SORTED_BRANCHES) {
+      // A linear search is faster for a few transitions.
+      for (int t = low; t <= high; ++t) {
+        if (labels[t] == c) {
+          return t;
+        }
+      }
+      return -1;
+    }
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (labels[mid] < c) {
+        low = mid + 1;
+      } else if (labels[mid] > c) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Complete the automaton, which is already immutable and minimal.
+   * @return This automaton.
+   */
+  @Override
+  public TrieScanner freeze() {
+    complete();
+    return this;
+  }
+
+  /**
+   * Complete the automaton, which is already immutable and minimal.
+   * @return This automaton.
+   */
+  @Override
+  public TrieScanner compress() {
+    complete();
+    return this;
+  }
+
+  @Override
+  public ArrayList<String> get(String key) {
+    return getFolded(foldKey(toTrieCharsIgnoringNonTrieChars(key)));
+  }
+
+  @Override
+  ArrayList<String> getFolded(String key) {
+    complete();
+    int state = initialState;
+    int rank = 0;
+    for (int d = 0; d < key.length(); ++d) {
+      int t = transition(state, key.charAt(d));
+      if (t < 0) {
+        return null;
+      }
+      state = targets[t];
+      rank += offsets[t];
+    }
+    return finals[state] ? values.get(rank) : null;
+  }
+
+  @Override
+  public String longestPrefixOf(String query) {
+    complete();
+    int length = 0;
+    int state = initialState;
+    for (int d = 0; ; ++d) {
+      if (finals[state]) {
+        length = d;
+      }
+      int t = d < query.length() ? transition(state, isCaseFolded() ? foldCase(query.charAt(d)) : query.charAt(d)) : -1;
+      if (t < 0) {
+        break;
+      }
+      state = targets[t];
+    }
+    return query.substring(0, length);
+  }
+
+  @Override
+  void forEachKey(BiConsumer<String, ArrayList<String>> action) {
+    complete();
+    forEachKey(initialState, 0, new StringBuilder(), action);
+  }
+
+  private void forEachKey(int state, int rank, StringBuilder key, BiConsumer<String, ArrayList<String>> action) {
+    if (finals[state]) {
+      acceptKey(key.toString(), values.get(rank), action);
+    }
+    for (int t = firstTransition[state]; t < firstTransition[state + 1]; ++t) {
+      key.append(labels[t]);
+      forEachKey(targets[t], rank + offsets[t], key, action);
+      key.setLength(key.length() - 1);
+    }
+  }
+
+  @Override
+  public int nrNodes() {
+    return nrStates;
+  }
+
+  @Override
+  public long sizeInBytes() {
+    // The superclass has no nodes, so its size is the size of the values.
+    return 5L * nrStates + 10L * nrTransitions + 4L * values.size() + super.sizeInBytes();
+  }
+
+  @Override
+  boolean root(ScanCursor cursor) {
+    complete();
+    cursor.states[0] = initialState;
+    cursor.ranks[0] = 0;
+    return true;
+  }
+
+  @Override
+  boolean branch(ScanCursor cursor, int depth, char c) {
+    int t = transition(cursor.states[depth], c);
+    if (t < 0) {
+      return false;
+    }
+    cursor.states[depth + 1] = targets[t];
+    cursor.ranks[depth + 1] = cursor.ranks[depth] + offsets[t];
+    return true;
+  }
+
+  @Override
+  ArrayList<String> values(ScanCursor cursor, int depth) {
+    int state = cursor.states[depth];
+    return finals[state] ? values.get(cursor.ranks[depth]) : null;
+  }
+
+}
@@ -0,0 +1,515 @@
+package com.rakensi.xml.ner;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+/**
+ * An immutable double-array trie [https://linux.thai.net/~thep/datrie/datrie.html], compiled from a {@code TrieScanner}.
+ * All nodes (states) of the trie are positions in two int arrays, {@code base} and {@code check}.
+ * There is a branch for character c from state s to state t = base[s] + c + 1 if check[t] == s.
+ * The end of a key is marked by a branch with code 0, the terminator.
+ * The base of a terminator holds -1 - (the index of the values for the key).
+ *<p>
+ * Compared to a graph of {@code TrieScanner.Node} objects, this uses a fraction of the memory,
+ * and following a branch is an array lookup instead of pointer chasing.
+ * Keys cannot be added to a frozen trie.
+ *
+ * @author Rakensi
+ */
+public class FrozenTrieScanner extends TrieScanner {
+
+  static final int ROOT = 0; // The root is always at position 0.
+  private static final int FREE = -1; // The check value of an unused position.
+  private static final int USED = -2; // The check value of the root position, which has no parent.
+
+  private int[] base; // The base position of the branches of each state.
+  private int[] check; // The state that owns each position.
+  private ArrayList<ArrayList<String>> values; // The values of the keys, indexed from the terminators.
+  private int nrKeys; // number of keys in trie
+  private long totalKeySize; // estimated size of all keys in bytes
+  private int nrStates; // number of states in the trie
+  private int size; // number of used positions in base and check while building
+  private int nextCheckPos; // the first position that may be free while building
+  private char maxLabel; // the highest character of any branch
+  private int maxBranches; // the highest number of branches of any state
+
+  /**
+   * Compile the nodes of a {@code TrieScanner} into a double-array trie.
+   * Use {@code TrieScanner.freeze()} to make a frozen trie.
+   * @param wordChars
+   * @param noWordBefore
+   * @param logger
+   * @param root The root node of the trie, which may be null for an empty trie.
+   * @param nrKeys The number of keys in the trie.
+   * @param totalKeySize The estimated size of all keys in bytes.
+   * @param caseFolded Indicates that the keys in the trie are case-folded.
+   * @param unicode Indicates that the trie accepts characters outside of low ASCII.
+   */
+  FrozenTrieScanner(String wordChars, String noWordBefore, Logger logger, TrieScanner.Node root, int nrKeys, long totalKeySize,
+      boolean caseFolded, boolean unicode) {
+    super(wordChars, noWordBefore, logger);
+    setCaseFolded(caseFolded);
+    setUnicode(unicode);
+    this.nrKeys = nrKeys;
+    this.totalKeySize = totalKeySize;
+    build(root);
+  }
+
+  /**
+   * Constructor for a subclass that keeps the double array elsewhere, and overrides {@code branch}, {@code values}, {@code base}, {@code check} and {@code size}.
+   * @param wordChars
+   * @param noWordBefore
+   * @param logger
+   * @param nrKeys The number of keys in the trie.
+   * @param totalKeySize The estimated size of all keys in bytes.
+   * @param nrStates The number of states in the trie.
+   * @param maxLabel The highest character of any branch.
+   * @param maxBranches The highest number of branches of any state.
+   * @param caseFolded Indicates that the keys in the trie are case-folded.
+   * @param unicode Indicates that the trie accepts characters outside of low ASCII.
+   */
+  FrozenTrieScanner(String wordChars, String noWordBefore, Logger logger, int nrKeys, long totalKeySize,
+      int nrStates, char maxLabel, int maxBranches, boolean caseFolded, boolean unicode) {
+    super(wordChars, noWordBefore, logger);
+    setCaseFolded(caseFolded);
+    setUnicode(unicode);
+    this.nrKeys = nrKeys;
+    this.totalKeySize = totalKeySize;
+    this.nrStates = nrStates;
+    this.maxLabel = maxLabel;
+    this.maxBranches = maxBranches;
+  }
+
+  /**
+   * Place all nodes in the double array, depth-first.
+   * @param root The root node of the trie.
+   */
+  private void build(TrieScanner.Node root) {
+    base = new int[1024];
+    check = new int[1024];
+    Arrays.fill(check, FREE);
+    check[ROOT] = USED;
+    values = new ArrayList<ArrayList<String>>();
+    size = 1;
+    nextCheckPos = 1;
+    nrStates = 1;
+    if (root != null) {
+      char[] labels = new char[R];
+      TrieScanner.Node[] branches = new TrieScanner.Node[R];
+      int[] codes = new int[R + 1];
+      ArrayDeque<TrieScanner.Node> nodes = new ArrayDeque<TrieScanner.Node>();
+      int[] states = new int[64]; // Parallel to nodes.
+      nodes.push(root);
+      states[0] = ROOT;
+      while (!nodes.isEmpty()) {
+        TrieScanner.Node node = nodes.pop();
+        int state = states[nodes.size()];
+        if (labels.length < node.nrBranches()) {
+          // A node in a Unicode trie may have more than R branches.
+          labels = new char[node.nrBranches()];
+          branches = new TrieScanner.Node[labels.length];
+          codes = new int[labels.length + 1];
+        }
+        int nrBranches = node.branches(labels, branches);
+        maxBranches = Math.max(maxBranches, nrBranches);
+        int nrCodes = 0;
+        if (node.values != null) {
+          codes[nrCodes++] = 0;
+        }
+        for (int i = 0; i < nrBranches; ++i) {
+          codes[nrCodes++] = labels[i] + 1;
+          maxLabel = (char)Math.max(maxLabel, labels[i]);
+        }
+        if (nrCodes == 0) {
+          continue;
+        }
+        int b = findBase(codes, nrCodes);
+        base[state] = b;
+        for (int i = 0; i < nrCodes; ++i) {
+          check[b + codes[i]] = state;
+        }
+        if (node.values != null) {
+          base[b] = -1 - values.size();
+          // Case-folded values keep their case signatures. The values are copied, so that later puts into the source trie do not change them.
+          values.add(node.values instanceof CaseFoldedValues ? ((CaseFoldedValues)node.values).copy() : new ArrayList<String>(node.values));
+        }
+        if (states.length < nodes.size() + nrBranches) {
+          states = Arrays.copyOf(states, 2 * (nodes.size() + nrBranches));
+        }
+        for (int i = 0; i < nrBranches; ++i) {
+          states[nodes.size()] = b + labels[i] + 1;
+          nodes.push(branches[i]);
+          ++nrStates;
+        }
+      }
+    }
+    base = Arrays.copyOf(base, size);
+    check = Arrays.copyOf(check, size);
+  }
+
+  /**
+   * Find a base position such that all positions base + code are free.
+   * This is the first-fit strategy from Darts [http://chasen.org/~taku/software/darts/].
+   * @param codes The codes of the branches, in increasing order.
+   * @param nrCodes The number of codes.
+   * @return The base position.
+   */
+  private int findBase(int[] codes, int nrCodes) {
+    int first = codes[0];
+    int last = codes[nrCodes - 1];
+    int pos = Math.max(first + 1, nextCheckPos) - 1;
+    int nonFree = 0;
+    boolean foundFree = false;
+    while (true) {
+      ++pos;
+      ensureCapacity(pos + 1);
+      if (check[pos] != FREE) {
+        ++nonFree;
+        continue;
+      } else if (!foundFree) {
+        nextCheckPos = pos;
+        foundFree = true;
+      }
+      int b = pos - first;
+      ensureCapacity(b + last + 1);
+      boolean fits = true;
+      for (int i = 1; i < nrCodes && fits; ++i) {
+        fits = check[b + codes[i]] == FREE;
+      }
+      if (fits) {
+        // Skip densely used positions from now on.
+        if ((double)nonFree / (pos - nextCheckPos + 1) >= 0.95) {
+          nextCheckPos = pos;
+        }
+        size = Math.max(size, b + last + 1);
+        return b;
+      }
+    }
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity > check.length) {
+      int oldLength = check.length;
+      int newLength = Math.max(capacity, oldLength + (oldLength >> 1));
+      base = Arrays.copyOf(base, newLength);
+      check = Arrays.copyOf(check, newLength);
+      Arrays.fill(check, oldLength, newLength, FREE);
+    }
+  }
+
+  /**
+   * Determine the branch from a state for a character.
+   * @param state The current state.
+   * @param c The character for which we seek a branch.
+   * @return The state at the end of the branch for the character, or -1 if there is no such branch.
+   */
+  int branch(int state, char c) {
+    int t = base[state] + c + 1;
+    return (t < check.length && check[t] == state) ? t : -1;
+  }
+
+  /**
+   * The values of the key that ends in a state.
+   * @param state
+   * @return The values, or null if no key ends in the state.
+   */
+  ArrayList<String> values(int state) {
+    int t = base[state];
+    return (t < check.length && check[t] == state) ? values.get(-1 - base[t]) : null;
+  }
+
+  /**
+   * The base position of the branches of a state.
+   * @param state
+   * @return The base of the state.
+   */
+  int base(int state) {
+    return base[state];
+  }
+
+  /**
+   * The state that owns a position in the double array.
+   * @param position
+   * @return The state, or a negative number if no state owns the position.
+   */
+  int check(int position) {
+    return check[position];
+  }
+
+  /**
+   * Make an index of the branches of all states, which is needed to enumerate the keys or the states of the trie.
+   * @return The index.
+   */
+  BranchIndex branchIndex() {
+    return new BranchIndex();
+  }
+
+  /**
+   * The branches of all states, in increasing character order.
+   * Looking for a branch for every character up to the highest label from every state would take a time
+   * proportional to the number of states times the highest label, which is very slow in a Unicode trie.
+   * The index is made in two passes over the double array instead.
+   * It uses 4 bytes per position and 4 bytes per branch, so it is not kept with the trie.
+   */
+  final class BranchIndex {
+
+    private final int[] first; // The branches of state s are children[first[s]] ... children[first[s + 1] - 1].
+    private final int[] children; // The states at the end of the branches.
+
+    private BranchIndex() {
+      int size = size();
+      first = new int[size + 1];
+      // Count the branches of each state. The terminator of a state is at its base, and is not a branch.
+      for (int t = 1; t < size; ++t) {
+        int s = check(t);
+        if (s >= 0 && t != base(s)) {
+          ++first[s + 1];
+        }
+      }
+      for (int s = 0; s < size; ++s) {
+        first[s + 1] += first[s];
+      }
+      // Fill in the branches, which are in increasing character order because their positions increase.
+      // This moves first[s] to the end of the branches of s, which is first[s + 1] before the move.
+      children = new int[first[size]];
+      for (int t = 1; t < size; ++t) {
+        int s = check(t);
+        if (s >= 0 && t != base(s)) {
+          children[first[s]++] = t;
+        }
+      }
+      System.arraycopy(first, 0, first, 1, size);
+      first[0] = 0;
+    }
+
+    /**
+     * Collect the branches from a state, in increasing character order.
+     * @param state The state.
+     * @param labels Receives the characters of the branches. Must have room for {@code maxBranches()} characters.
+     * @param states Receives the states at the end of the branches. Must have room for {@code maxBranches()} states.
+     * @return The number of branches.
+     */
+    int branches(int state, char[] labels, int[] states) {
+      int stateBase = base(state);
+      int n = 0;
+      for (int i = first[state]; i < first[state + 1]; ++i) {
+        labels[n] = (char)(children[i] - stateBase - 1);
+        states[n++] = children[i];
+      }
+      return n;
+    }
+
+  }
+
+  /**
+   * @return The highest number of branches from any state.
+   */
+  int maxBranches() {
+    return maxBranches;
+  }
+
+  /**
+   * The number of positions in the double array.
+   * States are positions, so this is an upper bound for the state numbers.
+   * @return The size of the double array.
+   */
+  int size() {
+    return check.length;
+  }
+
+  /**
+   * Write this trie to a binary snapshot file, which can be loaded with {@code TrieScanner.load}.
+   * The format is described in {@code MappedTrieScanner}.
+   * @param file The snapshot file.
+   * @throws IOException
+   */
+  void writeSnapshot(File file) throws IOException {
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+      writeSnapshot(out);
+    }
+  }
+
+  /**
+   * Copy this trie into a direct buffer, outside of the heap.
+   * A {@code MappedTrieScanner} is already outside of the heap, and returns itself.
+   * @return A trie that uses the snapshot of this trie in a direct buffer.
+   */
+  MappedTrieScanner offHeap() {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(snapshotSize());
+    OutputStream bufferStream = new OutputStream() {
+      @Override
+      public void write(int b) {
+        buffer.put((byte)b);
+      }
+      @Override
+      public void write(byte[] b, int off, int len) {
+        buffer.put(b, off, len);
+      }
+    };
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(bufferStream, 1 << 16))) {
+      writeSnapshot(out);
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot write a trie into a buffer.", e); // This does not happen.
+    }
+    buffer.flip();
+    return MappedTrieScanner.wrap(buffer, logger());
+  }
+
+  /**
+   * The size in bytes of the snapshot of this trie.
+   * @return The number of bytes that {@code writeSnapshot} writes.
+   */
+  private int snapshotSize() {
+    long size = 44 + 4 + 2 * wordChars().length() + 4 + 2 * noWordBefore().length();
+    size = (size + 3) & ~3;
+    size += 8L * size() + 4L * values.size();
+    for (ArrayList<String> stateValues : values) {
+      size += MappedTrieScanner.valuesSize(stateValues);
+    }
+    if (size > Integer.MAX_VALUE) {
+      throw new IllegalStateException("The trie is too large for a snapshot of at most 2 gigabytes.");
+    }
+    return (int)size;
+  }
+
+  private void writeSnapshot(DataOutputStream out) throws IOException {
+    out.writeInt(MappedTrieScanner.MAGIC);
+    out.writeInt(MappedTrieScanner.VERSION);
+    out.writeInt((isCaseFolded() ? MappedTrieScanner.CASE_FOLDED : 0) | (isUnicode() ? MappedTrieScanner.UNICODE : 0));
+    out.writeInt(nrKeys);
+    out.writeLong(totalKeySize);
+    out.writeInt(nrStates);
+    out.writeInt(maxLabel);
+    out.writeInt(maxBranches);
+    out.writeInt(size());
+    out.writeInt(values.size());
+    MappedTrieScanner.writeString(out, wordChars());
+    MappedTrieScanner.writeString(out, noWordBefore());
+    if (out.size() % 4 != 0) {
+      out.writeShort(0); // Align the int arrays.
+    }
+    for (int i = 0; i < size(); ++i) {
+      out.writeInt(base(i));
+    }
+    for (int i = 0; i < size(); ++i) {
+      out.writeInt(check(i));
+    }
+    int offset = 0;
+    for (ArrayList<String> stateValues : values) {
+      out.writeInt(offset);
+      offset += MappedTrieScanner.valuesSize(stateValues);
+    }
+    for (ArrayList<String> stateValues : values) {
+      MappedTrieScanner.writeValues(out, stateValues);
+    }
+  }
+
+  @Override
+  void forEachKey(BiConsumer<String, ArrayList<String>> action) {
+    forEachKey(branchIndex(), ROOT, new StringBuilder(), action);
+  }
+
+  private void forEachKey(BranchIndex index, int state, StringBuilder key, BiConsumer<String, ArrayList<String>> action) {
+    ArrayList<String> stateValues = values(state);
+    if (stateValues != null) {
+      acceptKey(key.toString(), stateValues, action);
+    }
+    int stateBase = base(state);
+    for (int i = index.first[state]; i < index.first[state + 1]; ++i) {
+      int t = index.children[i];
+      key.append((char)(t - stateBase - 1));
+      forEachKey(index, t, key, action);
+      key.setLength(key.length() - 1);
+    }
+  }
+
+  @Override
+  public void put(String originalKey, String val) {
+    throw new IllegalStateException("Cannot put ["+originalKey+"] into a frozen trie.");
+  }
+
+  @Override
+  public TrieScanner freeze() {
+    return this;
+  }
+
+  @Override
+  public ArrayList<String> get(String key) {
+    return getFolded(foldKey(toTrieCharsIgnoringNonTrieChars(key)));
+  }
+
+  @Override
+  ArrayList<String> getFolded(String key) {
+    int state = ROOT;
+    for (int d = 0; d < key.length() && state >= 0; ++d) {
+      state = branch(state, key.charAt(d));
+    }
+    return state < 0 ? null : values(state);
+  }
+
+  @Override
+  public TrieScanner compress() {
+    throw new IllegalStateException("A frozen trie cannot be path-compressed.");
+  }
+
+  @Override
+  public String longestPrefixOf(String query) {
+    int length = 0;
+    int state = ROOT;
+    for (int d = 0; state >= 0; ++d) {
+      if (values(state) != null) {
+        length = d;
+      }
+      state = d < query.length() ? branch(state, isCaseFolded() ? foldCase(query.charAt(d)) : query.charAt(d)) : -1;
+    }
+    return query.substring(0, length);
+  }
+
+  @Override
+  public int nrKeys() {
+    return nrKeys;
+  }
+
+  @Override
+  public int nrNodes() {
+    return nrStates;
+  }
+
+  @Override
+  public long sizeInBytes() {
+    return 2 * (16L + 4L * size()) + totalKeySize;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return nrKeys == 0;
+  }
+
+  @Override
+  boolean root(ScanCursor cursor) {
+    cursor.states[0] = ROOT;
+    return true;
+  }
+
+  @Override
+  boolean branch(ScanCursor cursor, int depth, char c) {
+    int branch = branch(cursor.states[depth], c);
+    cursor.states[depth + 1] = branch;
+    return branch >= 0;
+  }
+
+  @Override
+  ArrayList<String> values(ScanCursor cursor, int depth) {
+    return values(cursor.states[depth]);
+  }
+
+}
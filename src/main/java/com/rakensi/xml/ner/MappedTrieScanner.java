@@ -0,0 +1,387 @@
+package com.rakensi.xml.ner;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A frozen trie that is kept in a binary snapshot outside of the heap,
+ * in a memory-mapped snapshot file, or in a direct buffer.
+ * The double array of the trie is used directly from the snapshot, so loading does not parse anything,
+ * and the garbage collector does not have to trace the nodes of the trie.
+ * The values of a key are read from the snapshot when they are first needed.
+ *<p>
+ * A snapshot file is made by {@code TrieScanner.save}, and loaded by {@code TrieScanner.load}.
+ * {@code TrieScanner.freezeOffHeap} makes a snapshot in a direct buffer.
+ * It consists of big-endian ints, with strings stored as an int length followed by UTF-16 chars:
+ * <ul>
+ *   <li>The header: MAGIC, VERSION, flags (CASE_FOLDED, UNICODE), number of keys, total key size (a long),
+ *       number of states, highest label, highest number of branches, size of the double array, number of values.</li>
+ *   <li>The word-characters and no-word-before characters, padded to a multiple of 4 bytes.</li>
+ *   <li>The base array, and the check array, as in {@code FrozenTrieScanner}.</li>
+ *   <li>For every index of values, the offset of its values from the start of the values.</li>
+ *   <li>The values: the number of values and the values, followed by the number of case signatures, or -1 if there are none.
+ *       Each case signature is followed by the number of values and the values that have this signature.</li>
+ * </ul>
+ * The VERSION changes when the format changes; older snapshots are then rejected, and must be made again.
+ *
+ * @author Rakensi
+ */
+public class MappedTrieScanner extends FrozenTrieScanner {
+
+  static final int MAGIC = 0x584E4552; // "XNER"
+  static final int VERSION = 1;
+  static final int CASE_FOLDED = 1; // Flag for a case-folded trie.
+  static final int UNICODE = 2; // Flag for a Unicode trie.
+
+  private ByteBuffer buffer; // The snapshot, in a mapped file or a direct buffer.
+  private IntBuffer baseBuffer; // The base array in the snapshot.
+  private IntBuffer checkBuffer; // The check array in the snapshot.
+  private IntBuffer valueOffsets; // The offsets of the values, relative to valuesStart.
+  private int size; // The size of the double array.
+  private int valuesStart; // The position in the snapshot of the first values.
+  private AtomicReferenceArray<ArrayList<String>> values; // The values that have been read from the snapshot.
+  private final AtomicLong valuesSizeInBytes = new AtomicLong(); // The estimated size of the values that have been read.
+
+  private MappedTrieScanner(String wordChars, String noWordBefore, Logger logger, int nrKeys, long totalKeySize,
+      int nrStates, char maxLabel, int maxBranches, boolean caseFolded, boolean unicode) {
+    super(wordChars, noWordBefore, logger, nrKeys, totalKeySize, nrStates, maxLabel, maxBranches, caseFolded, unicode);
+  }
+
+  /**
+   * Load a snapshot file. Use {@code TrieScanner.load} to load a snapshot.
+   * @param file The snapshot file.
+   * @param logger
+   * @return The trie in the snapshot.
+   * @throws IOException if the file cannot be read, or is not a complete snapshot in the current format.
+   */
+  static MappedTrieScanner map(File file, Logger logger) throws IOException {
+    MappedByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("The trie snapshot "+file+" is larger than 2 gigabytes.");
+      }
+      // The mapping remains valid after the channel is closed.
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    if (buffer.capacity() < 8 || buffer.getInt(0) != MAGIC) {
+      throw new IOException("The file "+file+" is not a trie snapshot.");
+    }
+    if (buffer.getInt(4) != VERSION) {
+      throw new IOException("The trie snapshot "+file+" has version "+buffer.getInt(4)+" instead of "+VERSION+", and must be made again.");
+    }
+    if (snapshotEnd(buffer) != buffer.capacity()) {
+      throw new IOException("The trie snapshot "+file+" is damaged or incomplete, and must be made again.");
+    }
+    return wrap(buffer, logger);
+  }
+
+  /**
+   * Determine where a snapshot ends according to the sizes in its header and the offsets of its values,
+   * which must be the end of the buffer. This reads the header and the last values, not the whole snapshot.
+   * @param buffer The snapshot, with a valid MAGIC and VERSION.
+   * @return The position after the last values, or -1 if a size in the snapshot does not fit in the buffer.
+   */
+  private static long snapshotEnd(ByteBuffer buffer) {
+    try {
+      int size = lengthAt(buffer, 36);
+      int nrValues = lengthAt(buffer, 40);
+      long pos = 48 + 2L * lengthAt(buffer, 44); // After the word-characters.
+      pos = (pos + 4 + 2L * lengthAt(buffer, pos) + 3) & ~3L; // After the no-word-before characters, aligned.
+      pos += 8L * size + 4L * nrValues;
+      if (pos > buffer.capacity()) {
+        return -1;
+      } else if (nrValues == 0) {
+        return pos;
+      }
+      // Skip the last values, which are at the end of the snapshot.
+      pos += lengthAt(buffer, pos - 4);
+      int nrLastValues = lengthAt(buffer, pos);
+      pos += 4;
+      for (int i = 0; i < nrLastValues; ++i) {
+        pos += 4 + 2L * lengthAt(buffer, pos);
+      }
+      int nrSignatures = buffer.getInt(checkedPosition(buffer, pos)); // This is -1 if there are no case signatures.
+      pos += 4;
+      for (int i = 0; i < nrSignatures; ++i) {
+        pos += 4 + 2L * lengthAt(buffer, pos);
+        int nrSignatureValues = lengthAt(buffer, pos);
+        pos += 4;
+        for (int j = 0; j < nrSignatureValues; ++j) {
+          pos += 4 + 2L * lengthAt(buffer, pos);
+        }
+      }
+      return pos;
+    } catch (IndexOutOfBoundsException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Read a length or a number of items from a snapshot that may be damaged.
+   * @param buffer
+   * @param pos The position of the length.
+   * @return The length.
+   * @throws IndexOutOfBoundsException if the position is outside of the buffer, or the length is negative.
+   */
+  private static int lengthAt(ByteBuffer buffer, long pos) {
+    int length = buffer.getInt(checkedPosition(buffer, pos));
+    if (length < 0) {
+      throw new IndexOutOfBoundsException("Negative length "+length+" at position "+pos+" of the snapshot.");
+    }
+    return length;
+  }
+
+  /**
+   * @param buffer
+   * @param pos A position that may be outside of the buffer.
+   * @return The position, if an int can be read there.
+   * @throws IndexOutOfBoundsException if an int cannot be read at the position.
+   */
+  private static int checkedPosition(ByteBuffer buffer, long pos) {
+    if (pos < 0 || pos + 4 > buffer.capacity()) {
+      throw new IndexOutOfBoundsException("Position "+pos+" is outside of the snapshot.");
+    }
+    return (int)pos;
+  }
+
+  /**
+   * Use a snapshot in a buffer.
+   * @param buffer The snapshot, with a valid header.
+   * @param logger
+   * @return The trie in the snapshot.
+   */
+  static MappedTrieScanner wrap(ByteBuffer buffer, Logger logger) {
+    int flags = buffer.getInt(8);
+    int nrKeys = buffer.getInt(12);
+    long totalKeySize = buffer.getLong(16);
+    int nrStates = buffer.getInt(24);
+    char maxLabel = (char)buffer.getInt(28);
+    int maxBranches = buffer.getInt(32);
+    int size = buffer.getInt(36);
+    int nrValues = buffer.getInt(40);
+    int pos = 44;
+    String wordChars = readString(buffer, pos);
+    pos += 4 + 2 * wordChars.length();
+    String noWordBefore = readString(buffer, pos);
+    pos += 4 + 2 * noWordBefore.length();
+    pos = (pos + 3) & ~3;
+    MappedTrieScanner trie = new MappedTrieScanner(wordChars, noWordBefore, logger, nrKeys, totalKeySize,
+        nrStates, maxLabel, maxBranches, (flags & CASE_FOLDED) != 0, (flags & UNICODE) != 0);
+    trie.buffer = buffer;
+    trie.size = size;
+    trie.baseBuffer = buffer.duplicate().position(pos).slice().asIntBuffer().limit(size);
+    pos += 4 * size;
+    trie.checkBuffer = buffer.duplicate().position(pos).slice().asIntBuffer().limit(size);
+    pos += 4 * size;
+    trie.valueOffsets = buffer.duplicate().position(pos).slice().asIntBuffer().limit(nrValues);
+    pos += 4 * nrValues;
+    trie.valuesStart = pos;
+    trie.values = new AtomicReferenceArray<ArrayList<String>>(nrValues);
+    return trie;
+  }
+
+  @Override
+  int branch(int state, char c) {
+    int t = baseBuffer.get(state) + c + 1;
+    return (t < size && checkBuffer.get(t) == state) ? t : -1;
+  }
+
+  @Override
+  ArrayList<String> values(int state) {
+    int t = baseBuffer.get(state);
+    return (t < size && checkBuffer.get(t) == state) ? valuesAt(-1 - baseBuffer.get(t)) : null;
+  }
+
+  @Override
+  int base(int state) {
+    return baseBuffer.get(state);
+  }
+
+  @Override
+  int check(int position) {
+    return checkBuffer.get(position);
+  }
+
+  /**
+   * The values at an index, which are read from the snapshot when they are first needed.
+   * @param index
+   * @return The values.
+   */
+  private ArrayList<String> valuesAt(int index) {
+    ArrayList<String> indexValues = values.get(index);
+    if (indexValues == null) {
+      // If two threads read the same values, they get equal lists, and the first one is kept.
+      indexValues = readValues(valuesStart + valueOffsets.get(index));
+      if (values.compareAndSet(index, null, indexValues)) {
+        valuesSizeInBytes.addAndGet(sizeInBytes(indexValues));
+      } else {
+        indexValues = values.get(index);
+      }
+    }
+    return indexValues;
+  }
+
+  /**
+   * Estimate the size on the heap of values that have been read from the snapshot.
+   * @param values
+   * @return The estimated size in bytes.
+   */
+  private static long sizeInBytes(ArrayList<String> values) {
+    long size = 40L; // The list and its array.
+    for (String value : values) {
+      size += 36L + 2L * value.length(); // Like the values in a TrieScanner.
+    }
+    if (values instanceof CaseFoldedValues) {
+      CaseFoldedValues folded = (CaseFoldedValues)values;
+      size += 80L; // The lists of signatures and of their values.
+      for (int i = 0; i < folded.signatures.size(); ++i) {
+        size += 76L + 2L * folded.signatures.get(i).length();
+        for (String value : folded.signatureValues.get(i)) {
+          size += 36L + 2L * value.length();
+        }
+      }
+    }
+    return size;
+  }
+
+  private ArrayList<String> readValues(int pos) {
+    int nrValues = buffer.getInt(pos);
+    pos += 4;
+    ArrayList<String> stateValues = new ArrayList<String>(nrValues);
+    for (int i = 0; i < nrValues; ++i) {
+      String value = readString(buffer, pos);
+      pos += 4 + 2 * value.length();
+      stateValues.add(value);
+    }
+    int nrSignatures = buffer.getInt(pos);
+    pos += 4;
+    if (nrSignatures < 0) {
+      return stateValues;
+    }
+    CaseFoldedValues folded = new CaseFoldedValues();
+    for (int i = 0; i < nrSignatures; ++i) {
+      String signature = readString(buffer, pos);
+      pos += 4 + 2 * signature.length();
+      int nrSignatureValues = buffer.getInt(pos);
+      pos += 4;
+      for (int j = 0; j < nrSignatureValues; ++j) {
+        String value = readString(buffer, pos);
+        pos += 4 + 2 * value.length();
+        folded.add(signature, value);
+      }
+    }
+    // Keep the order of the values as it was saved.
+    folded.clear();
+    folded.addAll(stateValues);
+    return folded;
+  }
+
+  private static String readString(ByteBuffer buffer, int pos) {
+    char[] chars = new char[buffer.getInt(pos)];
+    for (int i = 0; i < chars.length; ++i) {
+      chars[i] = buffer.getChar(pos + 4 + 2 * i);
+    }
+    return new String(chars);
+  }
+
+  static void writeString(DataOutputStream out, String s) throws IOException {
+    out.writeInt(s.length());
+    out.writeChars(s);
+  }
+
+  /**
+   * Write values in the snapshot format.
+   * @param out
+   * @param values
+   * @throws IOException
+   */
+  static void writeValues(DataOutputStream out, ArrayList<String> values) throws IOException {
+    out.writeInt(values.size());
+    for (String value : values) {
+      writeString(out, value);
+    }
+    if (values instanceof CaseFoldedValues) {
+      CaseFoldedValues folded = (CaseFoldedValues)values;
+      out.writeInt(folded.signatures.size());
+      for (int i = 0; i < folded.signatures.size(); ++i) {
+        writeString(out, folded.signatures.get(i));
+        out.writeInt(folded.signatureValues.get(i).size());
+        for (String value : folded.signatureValues.get(i)) {
+          writeString(out, value);
+        }
+      }
+    } else {
+      out.writeInt(-1);
+    }
+  }
+
+  /**
+   * The number of bytes that {@code writeValues} writes.
+   * @param values
+   * @return The size of the values in the snapshot.
+   */
+  static int valuesSize(ArrayList<String> values) {
+    int size = 8;
+    for (String value : values) {
+      size += 4 + 2 * value.length();
+    }
+    if (values instanceof CaseFoldedValues) {
+      CaseFoldedValues folded = (CaseFoldedValues)values;
+      for (int i = 0; i < folded.signatures.size(); ++i) {
+        size += 8 + 2 * folded.signatures.get(i).length();
+        for (String value : folded.signatureValues.get(i)) {
+          size += 4 + 2 * value.length();
+        }
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Copy the snapshot of this trie to another file.
+   */
+  @Override
+  void writeSnapshot(File file) throws IOException {
+    try (FileChannel channel = new FileOutputStream(file).getChannel()) {
+      ByteBuffer contents = buffer.duplicate().position(0);
+      while (contents.hasRemaining()) {
+        channel.write(contents);
+      }
+    }
+  }
+
+  /**
+   * A snapshot in a mapped file or a direct buffer is already outside of the heap.
+   * @return This trie.
+   */
+  @Override
+  MappedTrieScanner offHeap() {
+    return this;
+  }
+
+  @Override
+  int size() {
+    return size;
+  }
+
+  /**
+   * Estimate the size of this trie on the heap, which the snapshot is not on.
+   * This is the array of values and the values that have been read from the snapshot so far, so it grows while the trie is used.
+   * @return The estimated size in bytes.
+   */
+  @Override
+  public long sizeInBytes() {
+    return 16L + 4L * values.length() + valuesSizeInBytes.get();
+  }
+
+}
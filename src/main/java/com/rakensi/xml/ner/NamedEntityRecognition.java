@@ -5,16 +5,26 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.StringReader;
+import java.net.URISyntaxException;
 import java.net.URL;
-import java.util.Date;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
+import javax.xml.stream.XMLStreamException;
 
 import org.greenmercury.smax.Balancing;
 import org.greenmercury.smax.SmaxDocument;
@@ -81,7 +91,45 @@ import org.xml.sax.SAXParseException;
  *           If the namespace prefix in 'match-element-name' is 'fn:', the default is 'http://www.w3.org/2005/xpath-functions'.</li>
  *       <li>match-attribute The name of the attribute on the match element that will hold the id of the matching entity.
  *           Default is 'id'.</li>
- *       <li>cache Set to true to cache the generated trie scanner. Only trie scanners generated from grammars stored on the file system can be cached.</li>
+ *       <li>cache Set to true to cache the generated trie scanner. Trie scanners generated from grammars stored on the file system,
+ *           and from grammar strings and elements, can be cached.
+ *           A cached trie scanner is used for the same grammar file with the same compilation options, until the file is modified.
+ *           A grammar string or element is identified by a hash of its content, so the same grammar in another string or element uses the cached trie scanner.
+ *           The cache is shared by all instances, and evicts the least recently used trie scanners when it uses more than its budget,
+ *           which is a quarter of the maximum heap size by default, see {@code getTrieCache()}.</li>
+ *       <li>snapshot The path of a binary file that holds the compiled trie of a grammar that is read from a file URL.
+ *           If this file is at least as new as the grammar file, and was made with the same word-chars, no-word-before,
+ *           case-folded and unicode options, the trie is loaded from it, which takes milliseconds.
+ *           Otherwise, the grammar is compiled and the file is written. A loaded trie is frozen, and kept outside of the heap,
+ *           so the freeze and off-heap options make no difference. This option cannot be combined with the radix or dawg option,
+ *           and cannot be used for a grammar that is not a file, because then it cannot be known if the snapshot is older than the grammar.</li>
+ *       <li>freeze Set to true to compile the trie into a frozen, double-array trie after reading the grammar.
+ *           A frozen trie uses much less memory, and is faster to scan. Default is false.</li>
+ *       <li>aho-corasick Set to true to scan with an Aho-Corasick automaton, which reads the text in one pass,
+ *           instead of scanning the trie from every word start. Both produce the same matches. Default is false.</li>
+ *       <li>case-folded Set to true to store the names in the trie in lower case, which makes case-insensitive matching
+ *           follow one path through the trie, instead of trying both upper and lower case for every letter.
+ *           This produces the same matches. Default is false.</li>
+ *       <li>unicode Set to true to match letters and digits of all scripts, such as Greek and Cyrillic.
+ *           Otherwise, only characters with a low ASCII equivalent are matched. Default is false.</li>
+ *       <li>radix Set to true to compile the trie into a path-compressed (radix) trie after reading the grammar,
+ *           where chains of characters that are not shared by other names are stored as one node.
+ *           This uses less memory for long, multi-word names. If both radix and freeze are true, radix is used.
+ *           Default is false.</li>
+ *       <li>dawg Set to true to compile the names into a minimal automaton, which also shares common suffixes of names,
+ *           such as "Corporation" or "disease". The names are sorted before they are put into the automaton.
+ *           This takes precedence over radix and freeze. Default is false.</li>
+ *       <li>off-heap Set to true to compile the trie into a frozen trie that is stored outside of the Java heap,
+ *           so that a large trie does not slow down garbage collection. This takes precedence over radix and freeze.
+ *           Default is false.</li>
+ *       <li>compile-threads The number of threads that compile a grammar that consists of lines of text.
+ *           The lines are parsed in chunks, and the names are put into the trie in parallel, partitioned by their first character.
+ *           This gives the same trie as compiling with one thread. Default is 1.</li>
+ *       <li>scan-threads The number of threads that scan a document.
+ *           A text of at least 128K characters is split into segments at word starts, which are scanned in parallel.
+ *           If match-within-element is set, the texts of these elements are scanned in parallel.
+ *           The matches are inserted in document order, which gives the same result as scanning with one thread.
+ *           The aho-corasick option is not used for texts that are split into segments. Default is 1.</li>
  *     </ul>
  *   </li>
  * </ul>
@@ -94,6 +142,9 @@ import org.xml.sax.SAXParseException;
  * All sequences of whitespace characters will be treated like a single space,
  * both in the grammar input and the text that is scanned for named entities.
  *<p>
+ * After it has been made, an instance can be used by several threads at the same time.
+ * Each call of a {@code scan} function keeps its state to itself, so the grammar is compiled once for any number of concurrent scans.
+ *<p>
  * @see <a href="https://en.wikipedia.org/wiki/Named-entity_recognition">Wikipedia: Named Entity Recognition</a>
  * @author Rakensi
  */
@@ -135,21 +186,50 @@ public class NamedEntityRecognition
 
   private boolean cache = false;
 
-  // Cache for trie scanners, to prevent repeated grammar compilation.
-  class TrieCacheEntry {
-    public long modified;
-    public TrieScanner trieScanner;
-    public TrieCacheEntry(TrieScanner trieScanner) {
-      this.modified = new Date().getTime();
-      this.trieScanner = trieScanner;
-    }
-  }
-  private static Map<String, TrieCacheEntry> trieCache = new HashMap<String, TrieCacheEntry>();
+  private String snapshot = null;
+
+  private boolean freeze = false;
+
+  private boolean ahoCorasick = false;
+
+  private boolean caseFolded = false;
+
+  private boolean unicode = false;
+
+  private boolean radix = false;
+
+  private boolean dawg = false;
+
+  private boolean offHeap = false;
+
+  private int compileThreads = 1;
+
+  private int scanThreads = 1;
+
+  // The pool that scans segments of a text in parallel, if scanThreads > 1. It is shared with other instances, see scanPool(int).
+  private ForkJoinPool scanPool = null;
 
+  // The scan pools, by their number of threads. They are made when they are first needed, and their threads end when they are idle.
+  private static final ConcurrentHashMap<Integer, ForkJoinPool> scanPools = new ConcurrentHashMap<Integer, ForkJoinPool>();
+
+  // The minimum length of a segment of a text that is scanned by one task.
+  private static final int MIN_SEGMENT_LENGTH = 65536;
+
+  // The number of lines of a grammar that are parsed by one task when compiling with several threads.
+  private static final int LINES_PER_CHUNK = 8192;
+
+  // The sort keys, names and ids that will be put into a minimal automaton, in sorted order.
+  private ArrayList<String[]> dawgEntries = new ArrayList<String[]>();
+
+  // Cache for trie scanners, to prevent repeated grammar compilation. It may use a quarter of the heap.
+  private static final TrieCache trieCache = new TrieCache(Runtime.getRuntime().maxMemory() / 4);
+
+  // The key of the trie scanner in the cache, if it is cached for a grammar file.
+  private String cacheKey = null;
+
+  // The modification time of the grammar of the cached trie scanner.
+  private long cacheModified = 0L;
 
-  // The (sub-)document that is being transformed, and the offset of the current scanned fragment.
-  private SmaxDocument transformedDocument;
-  private int transformedFragmentOffset;
 
   // A SAX parser for parsing grammars from file.
   SAXParser saxParser = null;
@@ -214,9 +294,35 @@ public class NamedEntityRecognition
       throw new IllegalArgumentException("A match-element-namespace-uri must be defined for the match-element-name '"+this.matchElementName+"'");
     }
     this.cache = getOption(options, "cache", false);
+    this.snapshot = getOption(options, "snapshot", (String)null);
+    this.freeze = getOption(options, "freeze", false);
+    this.ahoCorasick = getOption(options, "aho-corasick", false);
+    this.caseFolded = getOption(options, "case-folded", false);
+    this.unicode = getOption(options, "unicode", false);
+    this.radix = getOption(options, "radix", false);
+    this.dawg = getOption(options, "dawg", false);
+    this.offHeap = getOption(options, "off-heap", false);
+    this.compileThreads = getOption(options, "compile-threads", 1);
+    if (this.snapshot != null && (this.radix || this.dawg)) {
+      throw new IllegalArgumentException("The snapshot option cannot be combined with the radix or dawg option, because a snapshot holds a frozen trie.");
+    }
+    this.scanThreads = getOption(options, "scan-threads", 1);
+    if (scanThreads > 1) {
+      this.scanPool = scanPool(scanThreads);
+    }
     initTrieNER();
   }
 
+  /**
+   * The scan pool with a number of threads, which is shared by all instances with the same scan-threads option.
+   * A pool per instance would never be shut down, because an instance does not know when it is no longer used.
+   * @param threads The number of threads.
+   * @return The pool.
+   */
+  private static ForkJoinPool scanPool(int threads) {
+    return scanPools.computeIfAbsent(threads, ForkJoinPool::new);
+  }
+
   private String getOption(Map<String, String> options, String key, String defaultValue) {
     return Optional.ofNullable(options.get(key)).orElse(defaultValue);
   }
@@ -235,48 +341,283 @@ public class NamedEntityRecognition
 
   private void initTrieNER()
   {
+    // This TrieNER holds the trie. Each scan uses its own TrieNER with the same trie, see DocumentScan.
     triener = new TrieNER(wordChars, noWordBefore, noWordAfter, logger) {
       @Override
       public void match(CharSequence text, int start, int end, List<String> ids) {
-        SmaxElement matchElement = new SmaxElement(matchElementNamespaceUri, matchElementName);
-        matchElement.setAttribute(matchAttribute, String.join("\t", ids));
-        transformedDocument.insertMarkup(matchElement, balancing, transformedFragmentOffset+start, transformedFragmentOffset+end);
+        // Not used for scanning.
       }
       @Override
       public void noMatch(CharSequence text, int start, int end) {
-        // No action is needed.
+        // Not used for scanning.
       }
     };
+    if (dawg) {
+      triener.setTrie(new DawgTrieScanner(wordChars, noWordBefore, logger));
+    }
+    triener.getTrie().setCaseFolded(caseFolded);
+    triener.getTrie().setUnicode(unicode);
+  }
+
+  /**
+   * The state of a scan of a SMAX document, which inserts the markup for matches into the document.
+   * Each call of {@code scan(SmaxDocument)} has its own {@code DocumentScan}, so that scans can run concurrently.
+   */
+  private class DocumentScan extends TrieNER {
+
+    private final SmaxDocument document; // The document that is being transformed.
+    private int fragmentOffset = 0; // The offset of the scanned fragment in the document.
+    private Region region = null; // If not null, matches are collected in this region, instead of inserted into the document.
+
+    /**
+     * @param document The document that is transformed, or null if the matches are only collected in regions.
+     * @param trie The version of the trie that is used for the whole document.
+     */
+    private DocumentScan(SmaxDocument document, TrieScanner trie) {
+      super(wordChars, noWordBefore, noWordAfter, logger);
+      this.document = document;
+      setTrie(trie);
+      setAhoCorasick(ahoCorasick);
+    }
+
+    @Override
+    public void match(CharSequence text, int start, int end, List<String> ids) {
+      if (region != null) {
+        region.matches.add(new int[] {fragmentOffset+start, fragmentOffset+end});
+        region.ids.add(ids);
+      } else {
+        insertMatch(fragmentOffset+start, fragmentOffset+end, ids);
+      }
+    }
+
+    /**
+     * Insert a match element into the document.
+     * @param start The start position of the match in the document.
+     * @param end The end position of the match in the document.
+     * @param ids The ids of the matched entity.
+     */
+    private void insertMatch(int start, int end, List<String> ids) {
+      SmaxElement matchElement = new SmaxElement(matchElementNamespaceUri, matchElementName);
+      matchElement.setAttribute(matchAttribute, String.join("\t", ids));
+      document.insertMarkup(matchElement, balancing, start, end);
+    }
+
+    @Override
+    public void noMatch(CharSequence text, int start, int end) {
+      // No action is needed.
+    }
+
+    /**
+     * Scan a text, in parallel if the scan-threads option is set and the text is long enough.
+     * @param text The document content, or a fragment of it.
+     */
+    private void scanText(CharSequence text) {
+      if (scanPool != null && text.length() >= 2 * MIN_SEGMENT_LENGTH) {
+        try {
+          // Four segments per thread, so that threads that finish early can take another segment.
+          scan(text, caseInsensitiveMinLength, fuzzyMinLength, scanPool, Math.max(MIN_SEGMENT_LENGTH, text.length() / (4 * scanThreads)));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException("The scan was interrupted.", e);
+        }
+      } else {
+        scan(text, caseInsensitiveMinLength, fuzzyMinLength);
+      }
+    }
+
+    /**
+     * Scan the text of a region, and collect the matches in the region.
+     * @param content The content of the document.
+     * @param region The region.
+     */
+    private void scanRegion(CharSequence content, Region region) {
+      this.region = region;
+      this.fragmentOffset = region.start;
+      scanText(content.subSequence(region.start, region.end));
+      this.region = null;
+    }
+
+  }
+
+  /**
+   * The text of a match-within element, with the matches that have been found in it.
+   */
+  private static final class Region {
+    private final int start; // The start position of the text in the document.
+    private final int end; // The end position of the text in the document.
+    private final ArrayList<int[]> matches = new ArrayList<int[]>(); // The start and end position of each match in the document.
+    private final ArrayList<List<String>> ids = new ArrayList<List<String>>(); // The ids of each match.
+    private Region(int start, int end) {
+      this.start = start;
+      this.end = end;
+    }
   }
 
   /**
    * Scan a SMAX document for text fragments that match named entities.
+   * This can be called by several threads at the same time, with different documents.
    * @param document
    */
   public void scan(SmaxDocument document) {
-    transformedDocument = document;
-    if (matchWithinElement != null) {
-      traverseAndScan(document.getContent(), document.getMarkup());
+    DocumentScan scan = new DocumentScan(document, triener.getTrie()); // This version of the trie is used for the whole document.
+    if (matchWithinElement != null && scanPool != null) {
+      scanRegions(scan, document);
+    } else if (matchWithinElement != null) {
+      traverseAndScan(scan, document.getContent(), document.getMarkup());
     } else {
-      transformedFragmentOffset = 0;
-      triener.scan(document.getContent(), caseInsensitiveMinLength, fuzzyMinLength);
+      scan.scanText(document.getContent());
     }
   }
 
-  private void traverseAndScan(CharSequence textFragment, SmaxElement element) {
+  /**
+   * Scan an XML document for text fragments that match named entities, without building the document in memory.
+   * The document is read as a stream of events, and written with the markup for the matches, like {@code scan(SmaxDocument)}.
+   * Text is scanned across element boundaries, in a window of the size that {@code TrieNER.scan(Reader, ...)} uses,
+   * so memory use does not depend on the size of the document.
+   * Match elements are balanced against the tags in the window only, see {@code XmlStreamTransformer}.
+   * The aho-corasick option is not used.
+   * @param input The XML document.
+   * @param output Receives the XML document with markup, in UTF-8.
+   * @throws XMLStreamException if the document is not well-formed XML, or cannot be written.
+   * @throws IOException if the document cannot be read.
+   */
+  public void scan(InputStream input, OutputStream output) throws XMLStreamException, IOException {
+    new XmlStreamTransformer(triener.getTrie(), wordChars, noWordBefore, noWordAfter,
+        caseInsensitiveMinLength, fuzzyMinLength, balancing,
+        matchWithinElement, matchWithinNamespace, matchElementName, matchElementNamespaceUri, matchAttribute, logger)
+      .transform(input, output);
+  }
+
+  /**
+   * Add and remove names of entities, without compiling the grammar again.
+   * This makes a new version of the trie, which shares its unchanged parts with the previous version, see {@code TrieScanner.update()}.
+   * Scans that are running keep using the previous version.
+   * If the trie scanner of a grammar file is cached, the cache gets the new version, so that instances that are made later for the same grammar use it.
+   * The trie scanner of a grammar string or element is cached for its content, so it is not replaced by a version with other names.
+   * This is not possible if the freeze, radix, dawg, off-heap or snapshot option is used.
+   * @param additions The names and ids to add, as arrays of {name, id}.
+   * @param removals The names and ids to remove, as arrays of {name, id}.
+   */
+  public void updateGrammar(List<String[]> additions, List<String[]> removals) {
+    TrieScanner version = triener.updateTrie(additions, removals);
+    if (cacheKey != null) {
+      trieCache.put(cacheKey, version, cacheModified);
+    }
+    logger.info("NamedEntityRecognition: Trie updated with "+additions.size()+" additions and "+removals.size()+" removals, has "+version.nrKeys()+" keys");
+  }
+
+  private boolean isMatchWithinElement(SmaxElement element) {
     String elementNsURI = element.getNamespaceURI();
-    if ( matchWithinElement.equals(element.getLocalName()) &&
-         ( (matchWithinNamespace == null || matchWithinNamespace.isEmpty()) && (elementNsURI == null || elementNsURI.isEmpty()) ||
-            matchWithinNamespace.equals(element.getNamespaceURI())
-         )) {
+    return matchWithinElement.equals(element.getLocalName()) &&
+           ( (matchWithinNamespace == null || matchWithinNamespace.isEmpty()) && (elementNsURI == null || elementNsURI.isEmpty()) ||
+              matchWithinNamespace.equals(element.getNamespaceURI())
+           );
+  }
+
+  private void traverseAndScan(DocumentScan scan, CharSequence textFragment, SmaxElement element) {
+    if (isMatchWithinElement(element)) {
       int textStart = element.getStartPos();
       int textEnd = element.getEndPos();
-      transformedFragmentOffset = textStart;
-      triener.scan(textFragment.subSequence(textStart, textEnd), caseInsensitiveMinLength, fuzzyMinLength);
+      scan.fragmentOffset = textStart;
+      scan.scanText(textFragment.subSequence(textStart, textEnd));
     } else if (element.hasChildNodes()) {
       SmaxElement[] children = element.getChildren().toArray(SmaxElement[]::new);
       for (SmaxElement child : children) {
-        traverseAndScan(textFragment, child);
+        traverseAndScan(scan, textFragment, child);
+      }
+    }
+  }
+
+  /**
+   * Scan the texts of the match-within elements of a document with the threads of the scan pool.
+   * The texts are scanned in tasks of several texts, and the matches are collected.
+   * Then the matches are inserted in document order, which inserts the same markup as {@code traverseAndScan}.
+   * A text of at least 128K characters is split into segments that are scanned in parallel, see {@code DocumentScan.scanText}.
+   * @param scan The scan of the document.
+   * @param document The document.
+   */
+  private void scanRegions(DocumentScan scan, SmaxDocument document) {
+    CharSequence content = document.getContent();
+    ArrayList<Region> regions = new ArrayList<Region>();
+    collectRegions(document.getMarkup(), regions);
+    long totalLength = 0;
+    for (Region region : regions) {
+      totalLength += region.end - region.start;
+    }
+    if (totalLength < 2 * MIN_SEGMENT_LENGTH) {
+      // Not worth the tasks.
+      for (Region region : regions) {
+        scan.fragmentOffset = region.start;
+        scan.scanText(content.subSequence(region.start, region.end));
+      }
+      return;
+    }
+    // Four tasks per thread, so that threads that finish early can take another task.
+    long taskLength = totalLength / (4 * scanThreads);
+    List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    ArrayList<Region> largeRegions = new ArrayList<Region>();
+    ArrayList<Region> taskRegions = new ArrayList<Region>();
+    long taskRegionsLength = 0;
+    for (Region region : regions) {
+      if (region.end - region.start >= 2 * MIN_SEGMENT_LENGTH) {
+        largeRegions.add(region);
+        continue;
+      }
+      taskRegions.add(region);
+      taskRegionsLength += region.end - region.start;
+      if (taskRegionsLength >= taskLength) {
+        tasks.add(scanRegionsTask(scan.getTrie(), content, taskRegions));
+        taskRegions = new ArrayList<Region>();
+        taskRegionsLength = 0;
+      }
+    }
+    if (!taskRegions.isEmpty()) {
+      tasks.add(scanRegionsTask(scan.getTrie(), content, taskRegions));
+    }
+    try {
+      TrieScanner.invokeAll(scanPool, tasks);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("The scan was interrupted.", e);
+    }
+    for (Region region : largeRegions) {
+      scan.scanRegion(content, region);
+    }
+    for (Region region : regions) {
+      for (int i = 0; i < region.matches.size(); ++i) {
+        scan.insertMatch(region.matches.get(i)[0], region.matches.get(i)[1], region.ids.get(i));
+      }
+    }
+  }
+
+  /**
+   * Make a task that scans the texts of some match-within elements, and collects the matches.
+   * @param trie The version of the trie that is used for the document.
+   * @param content The content of the document.
+   * @param regions The texts of the elements.
+   * @return The task.
+   */
+  private Callable<Void> scanRegionsTask(TrieScanner trie, CharSequence content, List<Region> regions) {
+    return () -> {
+      DocumentScan regionScan = new DocumentScan(null, trie);
+      for (Region region : regions) {
+        regionScan.scanRegion(content, region);
+      }
+      return null;
+    };
+  }
+
+  /**
+   * Collect the texts of the match-within elements, in the same order as {@code traverseAndScan} scans them.
+   * @param element The element in which the match-within elements are collected.
+   * @param regions Receives the texts.
+   */
+  private void collectRegions(SmaxElement element, List<Region> regions) {
+    if (isMatchWithinElement(element)) {
+      regions.add(new Region(element.getStartPos(), element.getEndPos()));
+    } else if (element.hasChildNodes()) {
+      for (SmaxElement child : element.getChildren()) {
+        collectRegions(child, regions);
       }
     }
   }
@@ -289,15 +630,22 @@ public class NamedEntityRecognition
    */
   private void readGrammar(String grammar) throws Exception
   {
-    logger.info("NamedEntityRecognition: Reading grammar from string of length "+grammar.length());
-    try (
-      StringReader grammarStringReader = new StringReader(grammar);
-      BufferedReader grammarReader = new BufferedReader(grammarStringReader);
-    ) {
-      readGrammar(grammarReader);
-    } catch (IOException e) {
-      throw new Exception(e);
-    }
+    // Maybe the compiled grammar is in the cache.
+    String key = cache ? cacheKey("string:"+new ContentHash().add(grammar).toHex()) : null;
+    String source = "string of length "+grammar.length();
+    readGrammarCached(key, 0L, source, () -> {
+      logger.info("NamedEntityRecognition: Reading grammar from "+source);
+      try (
+        StringReader grammarStringReader = new StringReader(grammar);
+        BufferedReader grammarReader = new BufferedReader(grammarStringReader);
+      ) {
+        readGrammar(grammarReader);
+      } catch (IOException e) {
+        throw new Exception(e);
+      }
+      freezeTrie();
+      return null;
+    });
   }
 
   /**
@@ -309,64 +657,145 @@ public class NamedEntityRecognition
   {
     // Maybe the compiled grammar is in the cache.
     String grammarFilePath = grammar.toString();
-    TrieCacheEntry cached = trieCache.get(grammarFilePath);
-    if (cached != null && cached.modified > new File(grammarFilePath).lastModified()) {
-      logger.info("NamedEntityRecognition: Trie scanner for ["+grammarFilePath+"] retrieved from cache.");
-      triener.setTrie(cached.trieScanner);
-    } else {
-      logger.info("NamedEntityRecognition: Reading grammar from URL ["+grammar.toExternalForm()+"]");
-      // Try to parse the document that the URL points to as XML.
-      if (saxParser == null) {
-        SAXParserFactory  factory = SAXParserFactory.newInstance();
-        saxParser = factory.newSAXParser();
-      }
-      try {
-        saxParser.parse(grammar.toString(), new GrammarSAXHandler(triener.getTrie()));
-      } catch (SAXParseException spe) {
-        // If the document is not XML, try to parse as text.
-        try (
-          InputStream grammarStream = grammar.openStream();
-          InputStreamReader grammarStreamReader = new InputStreamReader(grammarStream);
-          BufferedReader grammarReader = new BufferedReader(grammarStreamReader);
-        ) {
-          readGrammar(grammarReader);
-        } catch (Exception e) {
-          throw new Exception("The grammar URL "+grammar+" cannot be parsed as XML ("+spe.getMessage()+") or text ("+e.getMessage()+")", e);
+    if (snapshot != null && !"file".equals(grammar.getProtocol())) {
+      throw new IllegalArgumentException("The snapshot option can only be used for a grammar file, not for ["+grammarFilePath+"].");
+    }
+    boolean cacheable = cache && "file".equals(grammar.getProtocol());
+    String key = cacheable ? cacheKey(grammarFilePath) : null;
+    // The modification time is taken before the grammar is read, so that a change while it is read makes the cached trie stale.
+    long modified = cacheable ? lastModified(grammar) : 0L;
+    readGrammarCached(key, modified, grammarFilePath, () -> {
+      File snapshotFile = snapshot != null ? new File(snapshot) : null;
+      TrieScanner loaded = null;
+      if (snapshotFile != null && snapshotFile.exists() && snapshotFile.lastModified() >= lastModified(grammar)) {
+        try {
+          loaded = TrieScanner.load(snapshotFile, logger);
+        } catch (IOException e) {
+          logger.warning("NamedEntityRecognition: Snapshot ["+snapshot+"] cannot be loaded, and is made again. "+e.getMessage());
+        }
+        if (loaded != null && !loaded.hasSameSettings(triener.getTrie())) {
+          logger.info("NamedEntityRecognition: Snapshot ["+snapshot+"] was made with other options, and is made again.");
+          loaded = null;
         }
       }
-      if (cache && grammarFilePath.startsWith("file:/")) {
-        trieCache.put(grammarFilePath, new TrieCacheEntry(triener.getTrie()));
-        logger.info("NamedEntityRecognition: Trie scanner for ["+grammarFilePath+"] entered into cache.");
+      if (loaded != null) {
+        triener.setTrie(loaded);
+        logger.info("NamedEntityRecognition: Trie scanner for ["+grammarFilePath+"] loaded from snapshot ["+snapshot+"].");
+      } else {
+        logger.info("NamedEntityRecognition: Reading grammar from URL ["+grammar.toExternalForm()+"]");
+        // Try to parse the document that the URL points to as XML.
+        if (saxParser == null) {
+          SAXParserFactory  factory = SAXParserFactory.newInstance();
+          saxParser = factory.newSAXParser();
+        }
+        try {
+          saxParser.parse(grammar.toString(), new GrammarSAXHandler(triener.getTrie()));
+        } catch (SAXParseException spe) {
+          // If the document is not XML, try to parse as text.
+          try (
+            InputStream grammarStream = grammar.openStream();
+            InputStreamReader grammarStreamReader = new InputStreamReader(grammarStream);
+            BufferedReader grammarReader = new BufferedReader(grammarStreamReader);
+          ) {
+            readGrammar(grammarReader);
+          } catch (Exception e) {
+            throw new Exception("The grammar URL "+grammar+" cannot be parsed as XML ("+spe.getMessage()+") or text ("+e.getMessage()+")", e);
+          }
+        }
+        freezeTrie();
+        if (snapshotFile != null) {
+          triener.getTrie().save(snapshotFile);
+          logger.info("NamedEntityRecognition: Trie scanner for ["+grammarFilePath+"] saved to snapshot ["+snapshot+"].");
+        }
       }
+      return null;
+    });
+    // Updates of the trie scanner of a grammar file are put into the cache, see updateGrammar.
+    cacheKey = key;
+    cacheModified = modified;
+  }
+
+  /**
+   * Compile a grammar, or use the trie scanner for it from the cache.
+   * If another instance is compiling the same grammar, wait for it and use its trie scanner, instead of compiling the grammar again.
+   * @param key The cache key, see {@code cacheKey}, or null if the trie scanner is not cached.
+   * @param modified The modification time of the grammar before it is read, or 0 if it cannot change.
+   * @param source A description of the grammar, for logging.
+   * @param compiler Compiles the grammar into the trie scanner of this instance.
+   * @throws Exception
+   */
+  private void readGrammarCached(String key, long modified, String source, Callable<Void> compiler) throws Exception
+  {
+    if (key == null) {
+      compiler.call();
+      return;
+    }
+    TrieScanner cached = trieCache.get(key, modified, () -> {
+      compiler.call();
+      logger.info("NamedEntityRecognition: Trie scanner for ["+source+"] compiled for the cache.");
+      return triener.getTrie();
+    });
+    // If the trie scanner was compiled by this instance, it is already used.
+    if (cached != triener.getTrie()) {
+      logger.info("NamedEntityRecognition: Trie scanner for ["+source+"] retrieved from cache.");
+      triener.setTrie(cached);
+    }
+  }
+
+  /**
+   * The key of a trie scanner in the cache. A grammar that is compiled with different options gives a different trie scanner.
+   * The options that are only used while scanning, or that do not change the compiled trie, are not part of the key.
+   * @param grammarSource The URL of the grammar, or the hash of its content, see {@code ContentHash}.
+   * @return The cache key.
+   */
+  private String cacheKey(String grammarSource)
+  {
+    return String.join("\u0000", grammarSource, entitySeparator, nameSeparator, wordChars, noWordBefore,
+        String.valueOf(caseFolded), String.valueOf(unicode), String.valueOf(freeze), String.valueOf(radix),
+        String.valueOf(dawg), String.valueOf(offHeap), String.valueOf(snapshot));
+  }
+
+  /**
+   * The cache of trie scanners that is shared by all instances, which can be used to see its statistics or to change its budget.
+   * @return The cache.
+   */
+  public static TrieCache getTrieCache()
+  {
+    return trieCache;
+  }
+
+  /**
+   * The time when a grammar was last modified, if it is a file.
+   * @param grammar
+   * @return The modification time, or 0 if it is not known.
+   */
+  private long lastModified(URL grammar)
+  {
+    try {
+      return "file".equals(grammar.getProtocol()) ? new File(grammar.toURI()).lastModified() : 0L;
+    } catch (URISyntaxException e) {
+      return 0L;
     }
   }
 
   private void readGrammar(BufferedReader grammarReader) throws Exception
   {
+    if (compileThreads > 1) {
+      readGrammarParallel(grammarReader);
+      return;
+    }
     String line;
     int lineNumber = 0;
     try {
       TrieScanner trie = triener.getTrie();
+      ArrayList<String[]> names = new ArrayList<String[]>();
       while ((line = grammarReader.readLine()) != null) {
         ++lineNumber;
-        line = line.trim();
-        if (line.length() > 0) {
-          String[] parts = line.split(entitySeparator, 2);
-          if (parts.length != 2) {
-            throw new Exception("Bad trie syntax in line "+lineNumber+": "+line+
-                "\n\tEvery line must contain two parts separated by the regular expression \""+entitySeparator+"\".");
-          }
-          if (parts[1].equals("")) {
-            throw new Exception("Bad trie syntax in line "+lineNumber+": "+line+
-                "\n\tThe second part of a rule must not be empty).");
-          }
-          String nttid = parts[0];
-          parts = parts[1].split(nameSeparator);
-          for (int i = 0; i < parts.length; ++i) {
-            String nttname = parts[i];
-            trie.put(nttname, nttid);
-          }
+        parseLine(line, lineNumber, names);
+        for (String[] name : names) {
+          putName(trie, name[0], name[1]);
         }
+        names.clear();
       }
       logger.info("NamedEntityRecognition: Trie has "+trie.nrKeys()+" keys, "+trie.sizeInBytes()/1048576+" megabytes");
     } catch (IOException e) {
@@ -374,6 +803,103 @@ public class NamedEntityRecognition
     }
   }
 
+  /**
+   * Read a grammar consisting of lines of text with several threads.
+   * The lines are read in chunks, which are parsed in parallel.
+   * The names are then put into the trie in parallel, see {@code TrieScanner.putAll}.
+   * @param grammarReader
+   * @throws Exception
+   */
+  private void readGrammarParallel(BufferedReader grammarReader) throws Exception
+  {
+    long startTime = System.nanoTime();
+    ExecutorService executor = Executors.newFixedThreadPool(compileThreads);
+    try {
+      TrieScanner trie = triener.getTrie();
+      ArrayList<Future<ArrayList<String[]>>> chunks = new ArrayList<Future<ArrayList<String[]>>>();
+      ArrayList<String> lines = new ArrayList<String>(LINES_PER_CHUNK);
+      String line;
+      int lineNumber = 0;
+      while ((line = grammarReader.readLine()) != null) {
+        lines.add(line);
+        if (lines.size() == LINES_PER_CHUNK) {
+          chunks.add(parseChunk(executor, lines, lineNumber + 1));
+          lineNumber += lines.size();
+          lines = new ArrayList<String>(LINES_PER_CHUNK);
+        }
+      }
+      chunks.add(parseChunk(executor, lines, lineNumber + 1));
+      ArrayList<String[]> names = new ArrayList<String[]>();
+      for (Future<ArrayList<String[]>> chunk : chunks) {
+        try {
+          names.addAll(chunk.get());
+        } catch (ExecutionException e) {
+          throw e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
+        }
+      }
+      if (trie instanceof DawgTrieScanner) {
+        for (String[] name : names) {
+          putName(trie, name[0], name[1]);
+        }
+      } else {
+        trie.putAll(names, executor);
+      }
+      logger.info("NamedEntityRecognition: Trie has "+trie.nrKeys()+" keys, "+trie.sizeInBytes()/1048576+" megabytes, compiled by "+
+          compileThreads+" threads in "+(System.nanoTime() - startTime)/1000000+" ms");
+    } catch (IOException e) {
+      throw new Exception(e);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Parse a chunk of lines of a grammar in a separate task.
+   * @param executor
+   * @param lines The lines.
+   * @param firstLineNumber The line number of the first line.
+   * @return The names and ids in the lines, as arrays of {name, id}.
+   */
+  private Future<ArrayList<String[]>> parseChunk(ExecutorService executor, ArrayList<String> lines, int firstLineNumber)
+  {
+    return executor.submit(() -> {
+      ArrayList<String[]> names = new ArrayList<String[]>();
+      for (int i = 0; i < lines.size(); ++i) {
+        parseLine(lines.get(i), firstLineNumber + i, names);
+      }
+      return names;
+    });
+  }
+
+  /**
+   * Parse a line of a grammar.
+   * @param line The line.
+   * @param lineNumber The line number, for error messages.
+   * @param names Receives the names and ids in the line, as arrays of {name, id}.
+   * @throws Exception if the line is not a valid rule.
+   */
+  private void parseLine(String line, int lineNumber, ArrayList<String[]> names) throws Exception
+  {
+    line = line.trim();
+    if (line.length() > 0) {
+      String[] parts = line.split(entitySeparator, 2);
+      if (parts.length != 2) {
+        throw new Exception("Bad trie syntax in line "+lineNumber+": "+line+
+            "\n\tEvery line must contain two parts separated by the regular expression \""+entitySeparator+"\".");
+      }
+      if (parts[1].equals("")) {
+        throw new Exception("Bad trie syntax in line "+lineNumber+": "+line+
+            "\n\tThe second part of a rule must not be empty).");
+      }
+      String nttid = parts[0];
+      parts = parts[1].split(nameSeparator);
+      for (int i = 0; i < parts.length; ++i) {
+        String nttname = parts[i];
+        names.add(new String[] {nttname, nttid});
+      }
+    }
+  }
+
   /**
    * Parse a grammar represented by XML.
    * The names of the elements are not significant.
@@ -384,25 +910,110 @@ public class NamedEntityRecognition
    */
   private void readGrammar(Element grammar) throws Exception
   {
-    logger.info("NamedEntityRecognition: Reading grammar from XML element <"+grammar.getNodeName()+">");
-    TrieScanner trie = triener.getTrie();
+    // Maybe the compiled grammar is in the cache.
+    String key = cache ? cacheKey("element:"+elementHash(grammar)) : null;
+    String source = "XML element <"+grammar.getNodeName()+">";
+    readGrammarCached(key, 0L, source, () -> {
+      logger.info("NamedEntityRecognition: Reading grammar from "+source);
+      TrieScanner trie = triener.getTrie();
+      NodeList entityNodes = grammar.getChildNodes();
+      int entitiesCount = entityNodes.getLength();
+      for (int entityIndex = 0; entityIndex < entitiesCount; ++entityIndex) {
+        Node entityNode = entityNodes.item(entityIndex);
+        if (entityNode instanceof Element) {
+          NamedNodeMap entityAttributes = entityNode.getAttributes();
+          if (entityAttributes.getLength() != 1) throw new Exception("The entity elements in a NER grammar must have exactly one attribute.");
+          String entityId = entityAttributes.item(0).getNodeValue();
+          NodeList nameNodes = entityNode.getChildNodes();
+          int namesCount = nameNodes.getLength();
+          for (int nameIndex = 0; nameIndex < namesCount; ++ nameIndex) {
+            String name = nameNodes.item(nameIndex).getTextContent();
+            putName(trie, name, entityId);
+          }
+        }
+      }
+      logger.info("NamedEntityRecognition: Trie has "+trie.nrKeys()+" keys, "+trie.sizeInBytes()/1048576+" megabytes");
+      freezeTrie();
+      return null;
+    });
+  }
+
+  /**
+   * The hash of the parts of a grammar element that are read by {@code readGrammar(Element)}.
+   * Entity elements that do not have one attribute are hashed as well, so that reading the grammar reports them.
+   * @param grammar
+   * @return The hash, see {@code ContentHash}.
+   */
+  private String elementHash(Element grammar)
+  {
+    ContentHash hash = new ContentHash();
     NodeList entityNodes = grammar.getChildNodes();
     int entitiesCount = entityNodes.getLength();
     for (int entityIndex = 0; entityIndex < entitiesCount; ++entityIndex) {
       Node entityNode = entityNodes.item(entityIndex);
       if (entityNode instanceof Element) {
         NamedNodeMap entityAttributes = entityNode.getAttributes();
-        if (entityAttributes.getLength() != 1) throw new Exception("The entity elements in a NER grammar must have exactly one attribute.");
-        String entityId = entityAttributes.item(0).getNodeValue();
+        hash.add(entityAttributes.getLength());
+        for (int attributeIndex = 0; attributeIndex < entityAttributes.getLength(); ++attributeIndex) {
+          hash.add(entityAttributes.item(attributeIndex).getNodeValue());
+        }
         NodeList nameNodes = entityNode.getChildNodes();
         int namesCount = nameNodes.getLength();
+        hash.add(namesCount);
         for (int nameIndex = 0; nameIndex < namesCount; ++ nameIndex) {
-          String name = nameNodes.item(nameIndex).getTextContent();
-          trie.put(name, entityId);
+          hash.add(nameNodes.item(nameIndex).getTextContent());
         }
       }
     }
-    logger.info("NamedEntityRecognition: Trie has "+trie.nrKeys()+" keys, "+trie.sizeInBytes()/1048576+" megabytes");
+    return hash.toHex();
+  }
+
+  /**
+   * Put a name of an entity into the trie.
+   * A minimal automaton needs its names in sorted order, so these are collected, and put into it by {@code freezeTrie()}.
+   * @param trie
+   * @param name
+   * @param id
+   */
+  private void putName(TrieScanner trie, String name, String id)
+  {
+    if (trie instanceof DawgTrieScanner) {
+      dawgEntries.add(new String[] {((DawgTrieScanner)trie).sortKey(name), name, id});
+    } else {
+      trie.put(name, id);
+    }
+  }
+
+  /**
+   * Put the collected names into the minimal automaton if the 'dawg' option is set.
+   * Otherwise, replace the trie by its off-heap version if the 'off-heap' option is set,
+   * by its path-compressed version if the 'radix' option is set,
+   * or by its frozen version if the 'freeze' option is set.
+   */
+  private void freezeTrie()
+  {
+    if (triener.getTrie() instanceof DawgTrieScanner) {
+      DawgTrieScanner automaton = (DawgTrieScanner)triener.getTrie();
+      dawgEntries.sort(Comparator.comparing(entry -> entry[0]));
+      for (String[] entry : dawgEntries) {
+        automaton.put(entry[1], entry[2]);
+      }
+      dawgEntries.clear();
+      automaton.freeze();
+      logger.info("NamedEntityRecognition: Minimal automaton has "+automaton.nrKeys()+" keys, "+automaton.nrNodes()+" states, "+automaton.sizeInBytes()/1048576+" megabytes");
+    } else if (offHeap) {
+      TrieScanner offHeapTrie = triener.getTrie().freezeOffHeap();
+      triener.setTrie(offHeapTrie);
+      logger.info("NamedEntityRecognition: Off-heap trie has "+offHeapTrie.nrNodes()+" nodes, "+offHeapTrie.sizeInBytes()/1048576+" megabytes on the heap");
+    } else if (radix) {
+      TrieScanner compressedTrie = triener.getTrie().compress();
+      triener.setTrie(compressedTrie);
+      logger.info("NamedEntityRecognition: Path-compressed trie has "+compressedTrie.nrNodes()+" nodes, "+compressedTrie.sizeInBytes()/1048576+" megabytes");
+    } else if (freeze) {
+      TrieScanner frozenTrie = triener.getTrie().freeze();
+      triener.setTrie(frozenTrie);
+      logger.info("NamedEntityRecognition: Frozen trie has "+frozenTrie.nrNodes()+" nodes, "+frozenTrie.sizeInBytes()/1048576+" megabytes");
+    }
   }
 
   /**
@@ -441,7 +1052,7 @@ public class NamedEntityRecognition
     public void endElement(String uri, String localName, String qName) throws SAXException
     {
       if (level == 3) {
-        trie.put(name.toString(), entityId);
+        putName(trie, name.toString(), entityId);
       }
       --level;
     }
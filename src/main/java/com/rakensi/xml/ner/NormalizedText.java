@@ -0,0 +1,117 @@
+package com.rakensi.xml.ner;
+
+/**
+ * A view of a text that is normalized like {@code StringUtils.normalizeOneToOne} or {@code StringUtils.normalizeUnicodeOneToOne},
+ * without making a normalized copy of the whole text.
+ * The text is normalized in windows of a fixed size when its characters are read, and a few recently used windows are kept.
+ * A scan reads the text mostly forward, looking back one character and ahead for the length of a match,
+ * so almost all reads are from a kept window.
+ *<p>
+ * The text must not change while the view is used. A view is not thread-safe.
+ *
+ * @author Rakensi
+ */
+public class NormalizedText implements CharSequence {
+
+  private static final int WINDOW_BITS = 12; // Windows of 4096 characters.
+  private static final int WINDOW_SIZE = 1 << WINDOW_BITS;
+  private static final int NR_WINDOWS = 4; // The number of kept windows, a power of 2.
+
+  private final CharSequence text; // The text that is normalized.
+  private final int length; // The length of the text.
+  private final boolean unicode; // Keep characters that have no low ASCII equivalent.
+  private final char[][] windows = new char[NR_WINDOWS][]; // The normalized characters of the kept windows.
+  private final int[] windowNumbers = new int[NR_WINDOWS]; // The number of the window in each slot, or -1.
+
+  /**
+   * Make a normalized view of a text.
+   * @param text The text.
+   * @param unicode Normalize like {@code StringUtils.normalizeUnicodeOneToOne} instead of {@code StringUtils.normalizeOneToOne}.
+   */
+  public NormalizedText(CharSequence text, boolean unicode) {
+    this.text = text;
+    this.length = text.length();
+    this.unicode = unicode;
+    for (int slot = 0; slot < NR_WINDOWS; ++slot) {
+      windowNumbers[slot] = -1;
+    }
+  }
+
+  @Override
+  public int length() {
+    return length;
+  }
+
+  @Override
+  public char charAt(int index) {
+    if (index < 0 || index >= length) {
+      throw new IndexOutOfBoundsException("Index "+index+" is not in a text of length "+length);
+    }
+    int number = index >>> WINDOW_BITS;
+    int slot = number & (NR_WINDOWS - 1);
+    if (windowNumbers[slot] != number) {
+      fill(slot, number);
+    }
+    return windows[slot][index & (WINDOW_SIZE - 1)];
+  }
+
+  /**
+   * Normalize a window into a slot.
+   * @param slot The slot, which may hold another window.
+   * @param number The number of the window.
+   */
+  private void fill(int slot, int number) {
+    if (windows[slot] == null) {
+      windows[slot] = new char[Math.min(WINDOW_SIZE, length)];
+    }
+    int start = number << WINDOW_BITS;
+    int end = Math.min(start + WINDOW_SIZE, length);
+    normalize(start, end, windows[slot]);
+    windowNumbers[slot] = number;
+  }
+
+  /**
+   * Copy a part of the text into a char array, and normalize it.
+   * @param start The start of the part.
+   * @param end The end of the part.
+   * @param chars Receives the normalized characters, from position 0.
+   */
+  private void normalize(int start, int end, char[] chars) {
+    if (text instanceof String) {
+      ((String)text).getChars(start, end, chars, 0);
+    } else if (text instanceof StringBuilder) {
+      ((StringBuilder)text).getChars(start, end, chars, 0);
+    } else {
+      for (int i = start; i < end; ++i) {
+        chars[i - start] = text.charAt(i);
+      }
+    }
+    if (unicode) {
+      StringUtils.normalizeUnicodeOneToOne(chars, 0, end - start);
+    } else {
+      StringUtils.normalizeOneToOne(chars, 0, end - start);
+    }
+  }
+
+  /**
+   * @return A normalized copy of a part of the text.
+   */
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    if (start < 0 || end > length || start > end) {
+      throw new IndexOutOfBoundsException("The range "+start+" - "+end+" is not in a text of length "+length);
+    }
+    char[] chars = new char[end - start];
+    normalize(start, end, chars);
+    return new String(chars);
+  }
+
+  /**
+   * @return A normalized copy of the text.
+   */
+  @Override
+  public String toString() {
+    return subSequence(0, length).toString();
+  }
+
+}
@@ -0,0 +1,349 @@
+package com.rakensi.xml.ner;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+/**
+ * An immutable path-compressed (radix) trie [https://en.wikipedia.org/wiki/Radix_tree], compiled from a {@code TrieScanner}.
+ * Every chain of nodes that have a single branch and no values is stored as one node with a label of several characters.
+ * For long entity names, most of the trie consists of such chains.
+ *<p>
+ * The nodes are numbered breadth-first, so the labels of all nodes are stored after each other in one char array,
+ * and the children of a node are consecutive nodes.
+ * Node n has the label {@code labelChars[labelStart[n] .. labelStart[n+1])},
+ * and the children {@code firstChild[n] .. firstChild[n+1]}, ordered by the first character of their labels.
+ * The root is node 0, and has an empty label.
+ *<p>
+ * Scanning compares whole labels against the scanned text, and finds the same matches as {@code TrieScanner.scan}.
+ * Keys cannot be added to a path-compressed trie.
+ *
+ * @author Rakensi
+ */
+public class RadixTrieScanner extends TrieScanner {
+
+  static final int ROOT = 0; // The root is always node 0.
+
+  private char[] labelChars; // The labels of all nodes.
+  private int[] labelStart; // The start of the label of each node in labelChars. The last entry is the end of the last label.
+  private int[] firstChild; // The first child of each node. The last entry is the number of nodes.
+  private ArrayList<ArrayList<String>> values; // The values of each node, or null.
+  private int nrKeys; // number of keys in trie
+  private long totalKeySize; // estimated size of all keys in bytes
+  private int nrRadixNodes; // number of nodes in the trie
+  private int nrLabelChars; // number of used characters in labelChars while building
+
+  /**
+   * Compile the nodes of a {@code TrieScanner} into a path-compressed trie.
+   * Use {@code TrieScanner.compress()} to make a path-compressed trie.
+   * @param wordChars
+   * @param noWordBefore
+   * @param logger
+   * @param root The root node of the trie, which may be null for an empty trie.
+   * @param nrKeys The number of keys in the trie.
+   * @param totalKeySize The estimated size of all keys in bytes.
+   * @param caseFolded Indicates that the keys in the trie are case-folded.
+   * @param unicode Indicates that the trie accepts characters outside of low ASCII.
+   */
+  RadixTrieScanner(String wordChars, String noWordBefore, Logger logger, TrieScanner.Node root, int nrKeys, long totalKeySize,
+      boolean caseFolded, boolean unicode) {
+    super(wordChars, noWordBefore, logger);
+    setCaseFolded(caseFolded);
+    setUnicode(unicode);
+    this.nrKeys = nrKeys;
+    this.totalKeySize = totalKeySize;
+    build(root);
+  }
+
+  /**
+   * Number the nodes breadth-first, and collect the labels of single-branch chains.
+   * @param root The root node of the trie.
+   */
+  private void build(TrieScanner.Node root) {
+    labelChars = new char[1024];
+    labelStart = new int[1024];
+    firstChild = new int[1024];
+    values = new ArrayList<ArrayList<String>>();
+    nrRadixNodes = 1;
+    nrLabelChars = 0;
+    if (root == null) {
+      values.add(null);
+      labelStart[1] = 0;
+      firstChild[0] = 1;
+      firstChild[1] = 1;
+    } else {
+      char[] branchLabels = new char[R];
+      TrieScanner.Node[] branches = new TrieScanner.Node[R];
+      // The queue holds the trie node after the first character of the label of each radix node, and that first character.
+      ArrayDeque<TrieScanner.Node> nodes = new ArrayDeque<TrieScanner.Node>();
+      StringBuilder firstChars = new StringBuilder();
+      nodes.add(root);
+      for (int n = 0; !nodes.isEmpty(); ++n) {
+        TrieScanner.Node node = nodes.remove();
+        ensureCapacity(n + 2);
+        labelStart[n] = nrLabelChars;
+        if (n > 0) {
+          appendLabelChar(firstChars.charAt(n - 1));
+          // Follow the chain of nodes with a single branch and no values.
+          while (node.values == null && node.nrBranches() == 1) {
+            node.branches(branchLabels, branches);
+            appendLabelChar(branchLabels[0]);
+            node = branches[0];
+          }
+        }
+        values.add(node.values);
+        if (branchLabels.length < node.nrBranches()) {
+          // A node in a Unicode trie may have more than R branches.
+          branchLabels = new char[node.nrBranches()];
+          branches = new TrieScanner.Node[branchLabels.length];
+        }
+        int nrBranches = node.branches(branchLabels, branches);
+        firstChild[n] = nrRadixNodes;
+        for (int i = 0; i < nrBranches; ++i) {
+          nodes.add(branches[i]);
+          firstChars.append(branchLabels[i]);
+        }
+        nrRadixNodes += nrBranches;
+      }
+      labelStart[nrRadixNodes] = nrLabelChars;
+      firstChild[nrRadixNodes] = nrRadixNodes;
+    }
+    labelChars = Arrays.copyOf(labelChars, nrLabelChars);
+    labelStart = Arrays.copyOf(labelStart, nrRadixNodes + 1);
+    firstChild = Arrays.copyOf(firstChild, nrRadixNodes + 1);
+    values.trimToSize();
+  }
+
+  private void appendLabelChar(char c) {
+    if (nrLabelChars == labelChars.length) {
+      labelChars = Arrays.copyOf(labelChars, 2 * labelChars.length);
+    }
+    labelChars[nrLabelChars++] = c;
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity > labelStart.length) {
+      int newLength = Math.max(capacity, 2 * labelStart.length);
+      labelStart = Arrays.copyOf(labelStart, newLength);
+      firstChild = Arrays.copyOf(firstChild, newLength);
+    }
+  }
+
+  /**
+   * Find the child of a node whose label starts with a character.
+   * @param node The node.
+   * @param c The first character of the label of the child.
+   * @return The child, or -1 if there is no such child.
+   */
+  private int child(int node, char c) {
+    int low = firstChild[node];
+    int high = firstChild[node + 1] - 1;
+    if (high - low < MAX_SORTED_BRANCHES) {
+      // A linear search is faster for a few children.
+      for (int child = low; child <= high; ++child) {
+        if (labelChars[labelStart[child]] == c) {
+          return child;
+        }
+      }
+      return -1;
+    }
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      char midChar = labelChars[labelStart[mid]];
+      if (midChar < c) {
+        low = mid + 1;
+      } else if (midChar > c) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Does a character in a label match the character of a step in the text?
+   * This matches the same characters as the branches that {@code TrieScanner.scan} tries for the step.
+   * @param labelChar The character in the label.
+   * @param stepChar The character of the step, or noChar if there is none.
+   * @param caseInsensitive Indicates that matching is case-insensitive.
+   * @return True if the characters match.
+   */
+  private boolean matches(char labelChar, char stepChar, boolean caseInsensitive) {
+    if (stepChar == noChar) {
+      return false;
+    } else if (isCaseFolded()) {
+      return labelChar == foldCase(stepChar);
+    } else if (caseInsensitive && Character.isLetter(stepChar)) {
+      return labelChar == Character.toUpperCase(stepChar) || labelChar == Character.toLowerCase(stepChar);
+    } else {
+      return labelChar == stepChar;
+    }
+  }
+
+  /**
+   * Find the longest substring in a text, starting at a specified position, that matches a key in the trie.
+   * The trie is walked depth-first, like in {@code TrieScanner.scan}, but one node at a time instead of one character at a time.
+   * The cursor holds the nodes on the path and the depth (number of steps in the text) at the end of each of them.
+   */
+  @Override
+  public boolean scan(CharSequence normalizedText, int start, boolean caseInsensitive, ScanCursor cursor) {
+    cursor.reset(start);
+    int end = normalizedText.length();
+    int stepsKnown = 0; // The depths for which stepChar and stepEnd are known. They only depend on the text.
+    int top = 0; // The position of the current node in the path.
+    cursor.states[0] = ROOT;
+    cursor.depths[0] = 0;
+    cursor.variant[0] = 0;
+    addResults(values.get(ROOT), normalizedText, start, 0, caseInsensitive, cursor);
+    while (top >= 0) {
+      int node = cursor.states[top];
+      int depth = cursor.depths[top];
+      if (depth == stepsKnown) {
+        cursor.ensureDepth(depth + 1);
+        step(normalizedText, depth > 0 ? cursor.stepEnd[depth - 1] : start, end, cursor, depth);
+        ++stepsKnown;
+      }
+      // Try the next character variant for the first character of a child label.
+      char c = variant(cursor.stepChar[depth], cursor.variant[top], caseInsensitive);
+      ++cursor.variant[top];
+      if (c == noChar) {
+        // All variants have been tried for this node.
+        --top;
+        continue;
+      }
+      int child = child(node, c);
+      if (child < 0) {
+        continue;
+      }
+      // Compare the rest of the label with the next steps in the text.
+      cursor.walk(depth, c);
+      int d = depth + 1;
+      int p = labelStart[child] + 1;
+      int labelEnd = labelStart[child + 1];
+      while (p < labelEnd) {
+        if (d == stepsKnown) {
+          cursor.ensureDepth(d + 1);
+          step(normalizedText, cursor.stepEnd[d - 1], end, cursor, d);
+          ++stepsKnown;
+        }
+        char labelChar = labelChars[p];
+        if (!matches(labelChar, cursor.stepChar[d], caseInsensitive)) {
+          break;
+        }
+        cursor.walk(d, labelChar);
+        ++d;
+        ++p;
+      }
+      if (p == labelEnd) {
+        // The whole label matches, so move to the child.
+        addResults(values.get(child), normalizedText, cursor.stepEnd[d - 1], d, caseInsensitive, cursor);
+        ++top;
+        cursor.states[top] = child;
+        cursor.depths[top] = d;
+        cursor.variant[top] = 0;
+      }
+    }
+    return cursor.size() > 0;
+  }
+
+  @Override
+  void forEachKey(BiConsumer<String, ArrayList<String>> action) {
+    forEachKey(ROOT, new StringBuilder(), action);
+  }
+
+  private void forEachKey(int node, StringBuilder key, BiConsumer<String, ArrayList<String>> action) {
+    int length = key.length();
+    key.append(labelChars, labelStart[node], labelStart[node + 1] - labelStart[node]);
+    if (values.get(node) != null) {
+      acceptKey(key.toString(), values.get(node), action);
+    }
+    for (int child = firstChild[node]; child < firstChild[node + 1]; ++child) {
+      forEachKey(child, key, action);
+    }
+    key.setLength(length);
+  }
+
+  @Override
+  public void put(String originalKey, String val) {
+    throw new IllegalStateException("Cannot put ["+originalKey+"] into a path-compressed trie.");
+  }
+
+  @Override
+  public TrieScanner freeze() {
+    return this;
+  }
+
+  @Override
+  public TrieScanner compress() {
+    return this;
+  }
+
+  @Override
+  public ArrayList<String> get(String key) {
+    return getFolded(foldKey(toTrieCharsIgnoringNonTrieChars(key)));
+  }
+
+  @Override
+  ArrayList<String> getFolded(String key) {
+    int node = ROOT;
+    int d = 0;
+    while (d < key.length()) {
+      node = child(node, key.charAt(d));
+      if (node < 0) {
+        return null;
+      }
+      for (int p = labelStart[node]; p < labelStart[node + 1]; ++p, ++d) {
+        if (d == key.length() || labelChars[p] != key.charAt(d)) {
+          return null;
+        }
+      }
+    }
+    return values.get(node);
+  }
+
+  @Override
+  public String longestPrefixOf(String query) {
+    int length = 0;
+    int node = ROOT;
+    int d = 0;
+    while (node >= 0) {
+      if (values.get(node) != null) {
+        length = d;
+      }
+      node = d < query.length() ? child(node, queryChar(query, d)) : -1;
+      for (int p = node < 0 ? 0 : labelStart[node]; node >= 0 && p < labelStart[node + 1]; ++p, ++d) {
+        if (d == query.length() || labelChars[p] != queryChar(query, d)) {
+          node = -1;
+        }
+      }
+    }
+    return query.substring(0, length);
+  }
+
+  private char queryChar(String query, int d) {
+    return isCaseFolded() ? foldCase(query.charAt(d)) : query.charAt(d);
+  }
+
+  @Override
+  public int nrKeys() {
+    return nrKeys;
+  }
+
+  @Override
+  public int nrNodes() {
+    return nrRadixNodes;
+  }
+
+  @Override
+  public long sizeInBytes() {
+    return 16L + 2L * labelChars.length + 2 * (16L + 4L * labelStart.length) + 16L + 4L * values.size() + totalKeySize;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return nrKeys == 0;
+  }
+
+}
@@ -2,6 +2,7 @@ package com.rakensi.xml.ner;
 
 import java.io.UnsupportedEncodingException;
 import java.text.Normalizer;
+import java.util.Arrays;
 
 /**
  * See [http://docs.oracle.com/javase/6/docs/api/java/text/Normalizer.html],
@@ -110,6 +111,39 @@ public class StringUtils {
   };
 
 
+  /* The low ASCII equivalents of all characters, compiled from the tables above.
+   * This is a two-level table, indexed by the high byte and the low byte of a character.
+   * Pages for high bytes without any equivalents share one page that contains only NO_EQUIVALENT.
+   */
+  private static final char NO_EQUIVALENT = 0x00;
+  private static final char[][] EQUIVALENT_PAGES = equivalentPages();
+
+  private static char[][] equivalentPages() {
+    char[] equivalents = new char[Character.MAX_VALUE + 1];
+    // Later entries take precedence: whitespace, diacriticals, punctuation and low ASCII, in that order.
+    for (char c = 0x20; c < 0x80; ++c) {
+      equivalents[c] = c;
+    }
+    for (int i = UNICODE_PUNCTUATION.length() - 1; i >= 0; --i) {
+      equivalents[UNICODE_PUNCTUATION.charAt(i)] = PLAIN_ASCII_PUNCTUATION.charAt(i);
+    }
+    for (int i = UNICODE_DIACRITICAL.length() - 1; i >= 0; --i) {
+      equivalents[UNICODE_DIACRITICAL.charAt(i)] = PLAIN_ASCII_DIACRITICAL.charAt(i);
+    }
+    for (int c = 0; c <= Character.MAX_VALUE; ++c) {
+      if (Character.isWhitespace((char)c)) {
+        equivalents[c] = ' ';
+      }
+    }
+    char[] none = new char[256];
+    char[][] pages = new char[256][];
+    for (int page = 0; page < 256; ++page) {
+      char[] pageEquivalents = Arrays.copyOfRange(equivalents, page << 8, (page + 1) << 8);
+      pages[page] = Arrays.equals(pageEquivalents, none) ? none : pageEquivalents;
+    }
+    return pages;
+  }
+
   /**
    * Convert all characters in a string to ASCII codes 0x20 - 0x7E.
    * The number of characters in the string will not change.
@@ -121,27 +155,53 @@ public class StringUtils {
    * @return a string corresponding to {@code s}, with only low ASCII characters.
    */
   public static CharSequence convertToLowAsciiOneToOne(CharSequence s, char defaultChar) {
+    return convertOneToOne(s, defaultChar, false);
+  }
+
+  /**
+   * Convert characters in a string to ASCII codes 0x20 - 0x7E where they have an equivalent, keeping the string length.
+   * @param s the inputSource string
+   * @param defaultChar Replaces control characters, and characters that have no low ASCII equivalent unless they are kept.
+   * @param keepNonAscii Keep characters above low ASCII that have no low ASCII equivalent.
+   * @return a string corresponding to {@code s}.
+   */
+  private static CharSequence convertOneToOne(CharSequence s, char defaultChar, boolean keepNonAscii) {
     if (s == null) {
       return null;
     }
     int n = s.length();
-    StringBuilder sb = new StringBuilder(n);
-    for (int i = 0; i < n; i++) {
-      char c = s.charAt(i);
-      int pos;
-      if (Character.isWhitespace(c)) {
-        sb.append(' ');
-      } else if ((pos = UNICODE_DIACRITICAL.indexOf(c)) >= 0) {
-        sb.append(PLAIN_ASCII_DIACRITICAL.charAt(pos));
-      } else if ((pos = UNICODE_PUNCTUATION.indexOf(c)) >= 0) {
-        sb.append(PLAIN_ASCII_PUNCTUATION.charAt(pos));
-      } else if (c >= 0x20 && c < 0x80) {
-        sb.append(c);
-      } else {
-        sb.append(defaultChar);
+    char[] chars = new char[n];
+    if (s instanceof String) {
+      ((String)s).getChars(0, n, chars, 0);
+    } else if (s instanceof StringBuilder) {
+      ((StringBuilder)s).getChars(0, n, chars, 0);
+    } else {
+      for (int i = 0; i < n; i++) {
+        chars[i] = s.charAt(i);
+      }
+    }
+    convertOneToOne(chars, 0, n, defaultChar, keepNonAscii);
+    return new String(chars);
+  }
+
+  /**
+   * Convert characters in a part of a char array to ASCII codes 0x20 - 0x7E where they have an equivalent, in place.
+   * @param chars The characters.
+   * @param start The start of the part that is converted.
+   * @param end The end of the part that is converted.
+   * @param defaultChar Replaces control characters, and characters that have no low ASCII equivalent unless they are kept.
+   * @param keepNonAscii Keep characters above low ASCII that have no low ASCII equivalent.
+   */
+  private static void convertOneToOne(char[] chars, int start, int end, char defaultChar, boolean keepNonAscii) {
+    for (int i = start; i < end; i++) {
+      char c = chars[i];
+      char equivalent = EQUIVALENT_PAGES[c >>> 8][c & 0xFF];
+      if (equivalent != NO_EQUIVALENT) {
+        chars[i] = equivalent;
+      } else if (!keepNonAscii || c < 0x80) {
+        chars[i] = defaultChar;
       }
     }
-    return sb;
   }
 
 
@@ -186,13 +246,50 @@ public class StringUtils {
   }
 
 
+  /**
+   * Normalize a part of a char array in place, like {@code normalizeOneToOne}.
+   * This can be used to normalize a text in chunks, without making a string for each chunk.
+   * @param chars The characters.
+   * @param start The start of the part that is normalized.
+   * @param end The end of the part that is normalized.
+   */
+  public static void normalizeOneToOne(char[] chars, int start, int end) {
+    convertOneToOne(chars, start, end, '\u0080', false);
+  }
+
+
+  /**
+   * Normalize a string, keeping characters that have no low ASCII equivalent.
+   * The number of characters in the string will not change.
+   * This is like {@code normalizeOneToOne}, but letters in other scripts, such as Greek and Cyrillic, are kept,
+   * so they can be matched by a Unicode trie.
+   * @param s the inputSource string
+   * @return a normalized version of {@code s} with the same number of characters.
+   */
+  public static CharSequence normalizeUnicodeOneToOne(CharSequence s) {
+    return convertOneToOne(s, '\u0080', true);
+  }
+
+
+  /**
+   * Normalize a part of a char array in place, like {@code normalizeUnicodeOneToOne}.
+   * @param chars The characters.
+   * @param start The start of the part that is normalized.
+   * @param end The end of the part that is normalized.
+   */
+  public static void normalizeUnicodeOneToOne(char[] chars, int start, int end) {
+    convertOneToOne(chars, start, end, '\u0080', true);
+  }
+
+
   /**
    * Normalize a character to ASCII
    * @param c the inputSource character
    * @return the normalized character.
    */
   public static char normalizeOneToOne(char c) {
-    return normalizeOneToOne(Character.toString(c)).charAt(0);
+    char equivalent = EQUIVALENT_PAGES[c >>> 8][c & 0xFF];
+    return equivalent != NO_EQUIVALENT ? equivalent : '\u0080';
   }
 
 
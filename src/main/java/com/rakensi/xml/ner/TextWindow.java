@@ -0,0 +1,176 @@
+package com.rakensi.xml.ner;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * A window of fixed size that slides over a text that is read from a {@code Reader}.
+ * The window holds the characters of the text as they were read, and the same characters normalized for a trie.
+ * Both are available as a {@code CharSequence} that is indexed by positions in the whole text,
+ * so that scanning code can use the same positions as for a text that is completely in memory.
+ * Only positions in the window can be read; {@code length()} is the position after the last character that has been read.
+ *<p>
+ * A window is not thread-safe.
+ *
+ * @author Rakensi
+ */
+final class TextWindow {
+
+  private final Reader reader;
+  private final TrieScanner trie; // Normalizes the characters.
+  private final char[] chars; // The characters in the window, as they were read.
+  private final char[] normalizedChars; // The characters in the window, normalized.
+  private int offset = 0; // The position in the text of the first character in the window.
+  private int size = 0; // The number of characters in the window.
+  private int released = 0; // The position in the text before which characters may be dropped from the window.
+  private boolean atEnd = false; // All characters of the text have been read.
+  private final CharSequence text = new View(false);
+  private final CharSequence normalizedText = new View(true);
+
+  /**
+   * Make a window for a text.
+   * @param reader Reads the text.
+   * @param capacity The size of the window.
+   * @param trie The trie for which the characters are normalized.
+   */
+  TextWindow(Reader reader, int capacity, TrieScanner trie) {
+    this.reader = reader;
+    this.trie = trie;
+    this.chars = new char[capacity];
+    this.normalizedChars = new char[capacity];
+  }
+
+  /**
+   * Drop the released characters from the window, and read characters until the window is full or the text ends.
+   * @throws IOException if the text cannot be read.
+   */
+  void fill() throws IOException {
+    int drop = released - offset;
+    if (drop > 0) {
+      System.arraycopy(chars, drop, chars, 0, size - drop);
+      System.arraycopy(normalizedChars, drop, normalizedChars, 0, size - drop);
+      offset += drop;
+      size -= drop;
+    }
+    int from = size;
+    while (!atEnd && size < chars.length) {
+      int n = reader.read(chars, size, chars.length - size);
+      if (n < 0) {
+        atEnd = true;
+      } else {
+        size += n;
+      }
+    }
+    if (offset + (long)size > Integer.MAX_VALUE) {
+      throw new IOException("The text is longer than "+Integer.MAX_VALUE+" characters.");
+    }
+    System.arraycopy(chars, from, normalizedChars, from, size - from);
+    trie.normalize(normalizedChars, from, size);
+  }
+
+  /**
+   * Allow characters before a position to be dropped by the next {@code fill()}.
+   * @param position A position in the text.
+   */
+  void release(int position) {
+    released = Math.max(released, Math.min(position, offset + size));
+  }
+
+  /**
+   * @return True if all characters of the text have been read.
+   */
+  boolean atEnd() {
+    return atEnd;
+  }
+
+  /**
+   * @return True if the window cannot hold more characters without dropping some.
+   */
+  boolean isFull() {
+    return size == chars.length;
+  }
+
+  /**
+   * @return The position in the text after the last character in the window.
+   */
+  int end() {
+    return offset + size;
+  }
+
+  /**
+   * @return The characters in the window, as they were read, at their positions in the text.
+   */
+  CharSequence text() {
+    return text;
+  }
+
+  /**
+   * @return The characters in the window, normalized, at their positions in the text.
+   */
+  CharSequence normalizedText() {
+    return normalizedText;
+  }
+
+  /**
+   * Find a position before the end of the window such that there are at least a number of steps from that position to the end,
+   * where a step is one character, or a sequence of characters in the SEPARATOR class, like in {@code TrieScanner.step}.
+   * @param nrSteps The number of steps.
+   * @param classes The classes of characters of the trie.
+   * @return The position, which is not before the start of the window.
+   */
+  int positionBeforeEnd(int nrSteps, CharClasses classes) {
+    int p = size;
+    for (int steps = 0; steps < nrSteps && p > 0; ++steps) {
+      if (classes.is(normalizedChars[--p], CharClasses.SEPARATOR)) {
+        while (p > 0 && classes.is(normalizedChars[p - 1], CharClasses.SEPARATOR)) {
+          --p;
+        }
+      }
+    }
+    return offset + p;
+  }
+
+  /**
+   * A view of the characters in the window, at their positions in the text.
+   */
+  private class View implements CharSequence {
+
+    private final boolean normalized;
+
+    private View(boolean normalized) {
+      this.normalized = normalized;
+    }
+
+    @Override
+    public int length() {
+      return offset + size;
+    }
+
+    @Override
+    public char charAt(int index) {
+      int i = index - offset;
+      if (i < 0 || i >= size) {
+        throw new IndexOutOfBoundsException("Position "+index+" is not in the window "+offset+" - "+(offset + size));
+      }
+      return normalized ? normalizedChars[i] : chars[i];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+      if (start < offset || end > offset + size || start > end) {
+        throw new IndexOutOfBoundsException("The range "+start+" - "+end+" is not in the window "+offset+" - "+(offset + size));
+      }
+      return new String(normalized ? normalizedChars : chars, start - offset, end - start);
+    }
+
+    /**
+     * @return The characters in the window. These are not the whole text.
+     */
+    @Override
+    public String toString() {
+      return new String(normalized ? normalizedChars : chars, 0, size);
+    }
+
+  }
+
+}
@@ -0,0 +1,230 @@
+package com.rakensi.xml.ner;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A cache of compiled tries, so that a grammar is not compiled again for every {@code NamedEntityRecognition}.
+ * The key of a trie consists of the source of the grammar and the options that affect how it is compiled, see {@code NamedEntityRecognition}.
+ * An entry remembers the modification time of the grammar when it was compiled; an entry for a grammar that has changed since then is not used.
+ *<p>
+ * The total size of the cached tries, as given by {@code TrieScanner.sizeInBytes()}, is kept within a budget.
+ * This is their size on the heap. A trie that is kept off-heap only counts the values that have been read from its snapshot when it is cached.
+ * When a trie is added, the least recently used tries are evicted until the total size is within the budget.
+ * A trie that is larger than the budget is not cached.
+ *<p>
+ * A cache can be used by several threads at the same time.
+ * When several threads need a trie that is not in the cache, only one of them compiles it, and the others wait for it and get the same trie.
+ *
+ * @author Rakensi
+ */
+public final class TrieCache {
+
+  private long budget; // The maximum total size of the cached tries, in bytes.
+  private long sizeInBytes = 0; // The total size of the cached tries, in bytes.
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true); // In the order of use.
+  private final HashMap<String, Compilation> compilations = new HashMap<String, Compilation>(); // The tries that are being compiled.
+
+  /**
+   * A cached trie.
+   */
+  private static final class Entry {
+    private final TrieScanner trie;
+    private final long modified; // The modification time of the grammar when the trie was compiled.
+    private final long sizeInBytes;
+    private Entry(TrieScanner trie, long modified) {
+      this.trie = trie;
+      this.modified = modified;
+      this.sizeInBytes = trie.sizeInBytes();
+    }
+  }
+
+  /**
+   * A trie that is being compiled by one thread, which other threads can wait for.
+   */
+  private static final class Compilation {
+    private final long modified; // The modification time of the grammar when the compilation started.
+    private final CompletableFuture<TrieScanner> trie = new CompletableFuture<TrieScanner>();
+    private Compilation(long modified) {
+      this.modified = modified;
+    }
+  }
+
+  /**
+   * Make a cache.
+   * @param budget The maximum total size of the cached tries, in bytes.
+   */
+  public TrieCache(long budget) {
+    this.budget = budget;
+  }
+
+  /**
+   * Get a trie from the cache, or compile it if it is not in the cache.
+   * If another thread is already compiling the trie for the same key and modification time, wait for it, and use its trie.
+   * Otherwise, the trie is compiled in this thread and put into the cache.
+   * @param key The source of the grammar and the compilation options.
+   * @param modified The current modification time of the grammar.
+   * @param compiler Compiles the grammar, if the trie is not in the cache.
+   * @return The trie.
+   * @throws Exception if the grammar cannot be compiled, also when it was compiled by another thread.
+   */
+  TrieScanner get(String key, long modified, Callable<TrieScanner> compiler) throws Exception {
+    Compilation compilation;
+    boolean compiling = false;
+    synchronized (this) {
+      Entry entry = entries.get(key);
+      if (entry != null && entry.modified != modified) {
+        // The grammar has changed.
+        remove(key);
+        entry = null;
+      }
+      if (entry != null) {
+        ++hits;
+        return entry.trie;
+      }
+      compilation = compilations.get(key);
+      if (compilation != null && compilation.modified == modified) {
+        ++hits;
+      } else {
+        // Compilations of an older version of the grammar are not waited for.
+        compilation = new Compilation(modified);
+        compilations.put(key, compilation);
+        compiling = true;
+        ++misses;
+      }
+    }
+    if (compiling) {
+      try {
+        TrieScanner trie = compiler.call();
+        put(key, trie, modified);
+        compilation.trie.complete(trie);
+      } catch (Throwable e) {
+        compilation.trie.completeExceptionally(e);
+      } finally {
+        synchronized (this) {
+          compilations.remove(key, compilation);
+        }
+      }
+    }
+    try {
+      return compilation.trie.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof Error) {
+        throw (Error)e.getCause();
+      }
+      throw (Exception)e.getCause();
+    }
+  }
+
+  /**
+   * Put a trie into the cache, replacing a trie with the same key. Least recently used tries are evicted to keep within the budget.
+   * @param key The source of the grammar and the compilation options.
+   * @param trie The trie.
+   * @param modified The modification time of the grammar when the trie was compiled.
+   * @return True if the trie has been cached, false if it is larger than the budget.
+   */
+  synchronized boolean put(String key, TrieScanner trie, long modified) {
+    remove(key);
+    Entry entry = new Entry(trie, modified);
+    if (entry.sizeInBytes > budget) {
+      return false;
+    }
+    entries.put(key, entry);
+    sizeInBytes += entry.sizeInBytes;
+    evict();
+    return true;
+  }
+
+  private void remove(String key) {
+    Entry entry = entries.remove(key);
+    if (entry != null) {
+      sizeInBytes -= entry.sizeInBytes;
+    }
+  }
+
+  /**
+   * Evict the least recently used tries until the total size is within the budget.
+   */
+  private void evict() {
+    Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+    while (sizeInBytes > budget && eldest.hasNext()) {
+      sizeInBytes -= eldest.next().getValue().sizeInBytes;
+      eldest.remove();
+      ++evictions;
+    }
+  }
+
+  /**
+   * Change the budget, and evict tries if the cache is larger than the new budget.
+   * @param budget The maximum total size of the cached tries, in bytes.
+   */
+  public synchronized void setBudget(long budget) {
+    this.budget = budget;
+    evict();
+  }
+
+  /**
+   * @return The maximum total size of the cached tries, in bytes.
+   */
+  public synchronized long getBudget() {
+    return budget;
+  }
+
+  /**
+   * Remove all tries from the cache. The statistics are not changed.
+   */
+  public synchronized void clear() {
+    entries.clear();
+    sizeInBytes = 0;
+  }
+
+  /**
+   * @return The number of cached tries.
+   */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * @return The total size of the cached tries, in bytes.
+   */
+  public synchronized long sizeInBytes() {
+    return sizeInBytes;
+  }
+
+  /**
+   * @return The number of times that a trie was found in the cache, or was compiled by another thread.
+   */
+  public synchronized long hits() {
+    return hits;
+  }
+
+  /**
+   * @return The number of times that a trie was compiled, because it was not found in the cache, or because its grammar changed.
+   */
+  public synchronized long misses() {
+    return misses;
+  }
+
+  /**
+   * @return The number of tries that have been evicted to keep within the budget.
+   */
+  public synchronized long evictions() {
+    return evictions;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "TrieCache: "+entries.size()+" tries, "+sizeInBytes/1048576+" of "+budget/1048576+" megabytes, "+
+        hits+" hits, "+misses+" misses, "+evictions+" evictions";
+  }
+
+}
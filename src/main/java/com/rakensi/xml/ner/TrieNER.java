@@ -1,11 +1,20 @@
 package com.rakensi.xml.ner;
 
+import java.io.IOException;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 
 public abstract class TrieNER
 {
 
+  /**
+   * The number of characters for whitespace and ignored characters in matches, when a text is scanned from a reader.
+   */
+  public static final int DEFAULT_SEPARATOR_SLACK = 4096;
+
   private Logger logger;
 
   /**
@@ -30,8 +39,21 @@ public abstract class TrieNER
    * The trie used for scanning. Only access this via {@code getTrie()} and {@code setTrie()}.
    * Multiple {@code TrieScanner} instances can be used in the same {@code TrieNER},
    * using {@code setTrie()} and {@code getTrie()}.
+   * A scan uses the trie that was set when it started, so the trie can be replaced by a new version during scans.
+   */
+  private volatile TrieScanner trie;
+
+  /**
+   * The classes of characters of the trie, with the classes for the noWordAfter characters.
+   * These are compiled again when the trie has other classes of characters.
    */
-  private TrieScanner trie;
+  private volatile CharClasses charClasses;
+
+  /**
+   * Use the Aho-Corasick automaton of the trie for scanning, instead of scanning the trie from every word start.
+   * Only access this via {@code setAhoCorasick()}.
+   */
+  private boolean ahoCorasick = false;
 
   /**
    * Constructor for TrieNER.
@@ -60,10 +82,35 @@ public abstract class TrieNER
    * @return the trie used by this {@code TrieNER}.
    */
   public TrieScanner getTrie() {
-    if (trie == null) {
-      trie = new TrieScanner(wordChars, noWordBefore, logger);
+    TrieScanner current = trie;
+    if (current == null) {
+      current = trie = new TrieScanner(wordChars, noWordBefore, logger);
     }
-    return trie;
+    return current;
+  }
+
+  /**
+   * Replace the trie of this {@code TrieNER} by a new version, with added and removed names, see {@code TrieScanner.update()}.
+   * The new version shares the unchanged parts of the trie with the previous version.
+   * Scans that are running keep using the previous version, and later scans use the new version.
+   * @param additions The names and ids to add, as arrays of {name, id}.
+   * @param removals The names and ids to remove, as arrays of {name, id}.
+   * @return The new version of the trie.
+   */
+  public synchronized TrieScanner updateTrie(List<String[]> additions, List<String[]> removals) {
+    TrieScanner version = getTrie().update(additions, removals);
+    setTrie(version);
+    return version;
+  }
+
+  /**
+   * Select the scanning engine for this {@code TrieNER}.
+   * @param ahoCorasick If true, scan using the Aho-Corasick automaton of the trie, which reads the text in one pass.
+   * If false, scan the trie from every word start. This is the default.
+   * Both engines produce the same matches.
+   */
+  public void setAhoCorasick(boolean ahoCorasick) {
+    this.ahoCorasick = ahoCorasick;
   }
 
   /**
@@ -83,22 +130,37 @@ public abstract class TrieNER
    */
   public abstract void noMatch(CharSequence text, int start, int end);
 
+  /**
+   * Get the classes of characters for scanning with a trie.
+   * @param trie The trie that is used for scanning.
+   * @return The classes of characters of the trie, with the classes for the noWordAfter characters.
+   */
+  private CharClasses charClasses(TrieScanner trie) {
+    CharClasses classes = charClasses;
+    if (classes == null || classes.base() != trie.charClasses()) {
+      classes = charClasses = trie.charClasses().withNoWordAfter(noWordAfter);
+    }
+    return classes;
+  }
+
   /**
    * Is 'c' a character that may appear in a word?
+   * @param classes The classes of characters for scanning.
    * @param c
    * @return
    */
-  private boolean isWordChar(char c) {
-    return getTrie().isTrieChar(c);
+  private static boolean isWordChar(CharClasses classes, char c) {
+    return classes.is(c, CharClasses.TRIE_CHAR);
   }
 
   /**
    * Is 'c' a character that must not immediately precede a word?
+   * @param classes The classes of characters for scanning.
    * @param c
    * @return
    */
-  private boolean noWordAfter(char c) {
-    return Character.isLetterOrDigit(c) || noWordAfter.indexOf(c) >= 0;
+  private static boolean noWordAfter(CharClasses classes, char c) {
+    return classes.is(c, CharClasses.NO_WORD_AFTER);
   }
 
   /**
@@ -111,112 +173,328 @@ public abstract class TrieNER
    *        Set to -1 to match exact. Set to 0 to match fuzzy.
    */
   public void scan(CharSequence text, int caseInsensitiveMinLength, int fuzzyMinLength) {
-    TrieScanner trie = getTrie(); // Make sure the trie is initialized.
+    TrieScanner trie = getTrie(); // Make sure the trie is initialized. This version of the trie is used for the whole scan.
     // Internally, we will work with normalized text.
-    CharSequence normalizedOneToOneText = StringUtils.normalizeOneToOne(text);
-    int start = 0; // Starting position to search in text.
+    CharSequence normalizedOneToOneText = trie.normalizedView(text);
+    Scan scan = new Scan(trie, caseInsensitiveMinLength, fuzzyMinLength);
+    if (ahoCorasick) {
+      scan.matcher = trie.ahoCorasick().matcher(normalizedOneToOneText, caseInsensitiveMinLength >= 0);
+    }
+    scan.scanUntil(text, normalizedOneToOneText, text.length());
+    // Output left-over characters.
+    scan.unMatched(text);
+  }
+
+  /**
+   * Scan a text from a reader, like {@code scan(CharSequence, int, int)}, with a separator slack of DEFAULT_SEPARATOR_SLACK.
+   * @param reader Reads the text that will be scanned for entities.
+   * @param caseInsensitiveMinLength See {@code scan(CharSequence, int, int)}.
+   * @param fuzzyMinLength See {@code scan(CharSequence, int, int)}.
+   * @throws IOException if the text cannot be read.
+   */
+  public void scan(Reader reader, int caseInsensitiveMinLength, int fuzzyMinLength) throws IOException {
+    scan(reader, caseInsensitiveMinLength, fuzzyMinLength, DEFAULT_SEPARATOR_SLACK);
+  }
+
+  /**
+   * Scan a text from a reader for substrings matching an entity in the trie, like {@code scan(CharSequence, int, int)}.
+   * The text is read into a window of constant size, so that memory use does not depend on the length of the text.
+   * The window holds twice the length of the longest key plus separatorSlack,
+   * so that it can hold all characters that a match can have after the position where the match is tried.
+   *<p>
+   * The start and end positions that are passed to `match` and `noMatch` are positions in the whole text.
+   * The text that is passed with them is a view of the window, which only holds the characters from the previous match or unmatched text on.
+   * Unmatched text may be passed to `noMatch` in several parts.
+   * The Aho-Corasick engine is not used for this scan.
+   * Matches in which whitespace and ignored characters take more than separatorSlack characters in total
+   * may be missed, because the window cannot show what follows them.
+   * A shorter match at the same position may then be found instead.
+   * @param reader Reads the text that will be scanned for entities.
+   * @param caseInsensitiveMinLength See {@code scan(CharSequence, int, int)}.
+   * @param fuzzyMinLength See {@code scan(CharSequence, int, int)}.
+   * @param separatorSlack The number of characters that the window can hold beyond the length of the longest key.
+   * @throws IOException if the text cannot be read.
+   */
+  public void scan(Reader reader, int caseInsensitiveMinLength, int fuzzyMinLength, int separatorSlack) throws IOException {
+    TrieScanner trie = getTrie();
+    Scan scan = new Scan(trie, caseInsensitiveMinLength, fuzzyMinLength);
+    // A scan from a position walks at most one step more than the longest key, and may read the character after that step.
+    int nrSteps = trie.maxKeyLength() + 2;
+    TextWindow window = new TextWindow(reader, 2 * (nrSteps + separatorSlack), trie);
+    do {
+      window.fill();
+      // Try matches only where the window holds all steps that a match can have, until the end of the text is in the window.
+      // If the window is full of whitespace and ignored characters, try one position anyway.
+      int limit = window.atEnd() ? window.end() : Math.max(window.positionBeforeEnd(nrSteps, scan.classes), scan.start + 1);
+      scan.textEnds = window.atEnd();
+      scan.scanUntil(window.text(), window.normalizedText(), limit);
+      scan.unMatched(window.text());
+      // Keep the character before the next start, for the noWordAfter test.
+      window.release(scan.start - 1);
+    } while (!window.atEnd());
+  }
+
+  /**
+   * Scan a text for substrings matching an entity in the trie, like {@code scan(CharSequence, int, int)}, using the threads of an executor.
+   * The text is split into segments at the start of words, and the segments are scanned in parallel.
+   * A match may extend beyond the end of its segment, and then the next segment is scanned again from the end of that match,
+   * until that scan tries a position that the scan of the segment also tried; from there, the scans find the same matches.
+   * This finds the same matches as {@code scan(CharSequence, int, int)}.
+   *<p>
+   * The functions `match` and `noMatch` are called on the calling thread, in the order of the text, after all segments have been scanned.
+   * The Aho-Corasick engine is not used for this scan, because it reads the text from the start.
+   * @param text The text that will be scanned for entities. It must not change during the scan.
+   * @param caseInsensitiveMinLength See {@code scan(CharSequence, int, int)}.
+   * @param fuzzyMinLength See {@code scan(CharSequence, int, int)}.
+   * @param executor The executor that scans the segments.
+   * @param segmentLength The length of a segment, which is scanned by one task. A segment ends at the first word start after this length.
+   * @throws InterruptedException if the scan is interrupted while waiting for the segments.
+   */
+  public void scan(CharSequence text, int caseInsensitiveMinLength, int fuzzyMinLength, ExecutorService executor, int segmentLength)
+      throws InterruptedException {
+    if (segmentLength < 1) {
+      throw new IllegalArgumentException("The segment length must be positive, not "+segmentLength);
+    }
+    TrieScanner trie = getTrie();
+    CharSequence normalizedOneToOneText = trie.normalizedView(text);
+    CharClasses classes = charClasses(trie);
+    // Split the text at the first word start after each nominal segment boundary.
     final int length = text.length();
-    StringBuilder unmatched = new StringBuilder(); // Collects unmatched characters, up to the next match.
-    while (start < length) {
-      // Set start at the next first letter of a word.
-      char c = 0;
-      // A word must start with letter, digit or word-character.
-      // It cannot start *immediately after* a word-character or a noWordAfter-character.
-      while ( start < length &&
-              ( !isWordChar(c = normalizedOneToOneText.charAt(start)) ||
-                ( start > 0 && noWordAfter(normalizedOneToOneText.charAt(start-1)) )
-              )
+    ArrayList<Integer> bounds = new ArrayList<Integer>();
+    bounds.add(0);
+    for (int bound = segmentLength; bound < length; bound += segmentLength) {
+      while ( bound < length &&
+              !( classes.is(normalizedOneToOneText.charAt(bound - 1), CharClasses.SEPARATOR) &&
+                 !classes.is(normalizedOneToOneText.charAt(bound), CharClasses.SEPARATOR) )
             ) {
-        // c == normalizedText.charAt(start)
-        unmatched.append(c);
-        ++start;
-        // c == normalizedText.charAt(start - 1)
+        ++bound;
       }
-      // Scan for a match, starting at the word beginning at normalizedText[start].
-      ArrayList<TrieScanner.ScanResult> results = trie.scan(normalizedOneToOneText, start, caseInsensitiveMinLength >= 0);
-      /* Determine if the match qualifies:
-       * - There is a result.
-       * - If (caseInsensitiveMinLength >= 0) the result-match was case-insensitive,
-       *   which is correct if the matched text was long enough,
-       *   otherwise there must be a case-sensitive match but no noise characters, so use matchedKey.
-       * - The result-match ignores noise, i.e., non-word characters, which are interpreted as whitespace.
-       *   If the match is longer than fuzzyMinLength that is correct.
-       *   Otherwise, the match must be exact, including noise characters.
-       */
-      ArrayList<String> matchedIds = new ArrayList<String>();
-      int matchedStart = -1;
-      int matchedEnd = -1;
-      if (results != null) {
-        for (TrieScanner.ScanResult result : results) {
-          if (matchedStart < 0) {
-            matchedStart = result.start;
-          } else if (matchedStart != result.start) {
-            throw new RuntimeException("Match starts at both "+result.start+" and "+matchedStart);
-          }
-          if (matchedEnd < 0) {
-            matchedEnd = result.end;
-          } else if (matchedEnd != result.end) {
-            throw new RuntimeException("Match ends at both "+result.end+" and "+matchedEnd);
-          }
-          // Use toTrieCharsNormalizingNonTrieChars, so that sequences of non-significant characters are treated as a space.
-          String onlyTrieCharsMatched = trie.toTrieCharsNormalizingNonTrieChars(text.subSequence(result.start, result.end));
-          // Test caseInsensitiveMinLength. If caseInsensitiveMinLength >= 0, match result is case-insensitive, which may not be correct.
-          boolean satisfiesCaseInsensitiveMinLength =
-            caseInsensitiveMinLength >= 0 && result.end - result.start >= caseInsensitiveMinLength
-            ||
-            onlyTrieCharsMatched.equals(result.matchedKey);
-          // Test fuzzyMinLength. For non-fuzzy matching, insignificant characters become significant, but upper/lower case is insignificant.
-          boolean satisfiesFuzzyMinLength =
-            fuzzyMinLength >= 0 && result.end - result.start >= fuzzyMinLength
-            ||
-            result.matchedText.toLowerCase().equals(result.matchedKey.toLowerCase());
-          if (satisfiesCaseInsensitiveMinLength && satisfiesFuzzyMinLength) { // This is a correct match.
-            if (start == result.end) {
-              throw new RuntimeException("No progress matching from '"+text.subSequence(result.start, text.length())+"'");
-            }
-            // Add ids that are not already present.
-            for (String value : result.values) {
-              if (!matchedIds.contains(value)) {
-                matchedIds.add(value);
-              }
-            }
-          }
-        }
+      if (bound < length) {
+        bounds.add(bound);
       }
-      if (matchedIds.size() > 0) {
-        // Output the characters before the match.
-        unMatched(unmatched, text, start);
-        // Process the match.
-        match(text, matchedStart, matchedEnd, matchedIds);
-        // Continue after the match.
-        start = matchedEnd;
-      } else if (start < length) { // There is no match and there is more to see.
-        unmatched.append(c = text.charAt(start++));
-        // Skip over the rest of a word containing letters and digits, but not wordChars.
-        if (Character.isLetterOrDigit(c)) {
-          while (start < length && Character.isLetterOrDigit(c = text.charAt(start))) {
-            unmatched.append(c);
-            ++ start;
+    }
+    bounds.add(length);
+    // Scan the segments, collecting their matches.
+    List<Callable<Scan>> tasks = new ArrayList<Callable<Scan>>(bounds.size() - 1);
+    for (int i = 0; i + 1 < bounds.size(); ++i) {
+      int from = bounds.get(i);
+      int to = bounds.get(i + 1);
+      tasks.add(() -> {
+        // A normalized view is not thread-safe, so each task has its own.
+        Scan segment = new Scan(trie, caseInsensitiveMinLength, fuzzyMinLength, new ArrayList<Match>(), from);
+        segment.scanUntil(text, trie.normalizedView(text), to);
+        return segment;
+      });
+    }
+    List<Scan> segments = TrieScanner.invokeAll(executor, tasks);
+    // Join the matches of the segments, and pass them on in order.
+    int position = 0; // The position that the scan of the whole text has reached.
+    int unmatchedStart = 0; // The position of the first unmatched character that has not been output.
+    for (int i = 0; i < segments.size(); ++i) {
+      Scan segment = segments.get(i);
+      int from = bounds.get(i);
+      int to = bounds.get(i + 1);
+      List<Match> matches = segment.matches;
+      if (position > from) {
+        // The scan of the whole text is past the start of the segment. Scan again from there, until it meets the scan of the segment.
+        Scan rescan = new Scan(trie, caseInsensitiveMinLength, fuzzyMinLength, new ArrayList<Match>(), position);
+        Scan replay = new Scan(trie, caseInsensitiveMinLength, fuzzyMinLength, new ArrayList<Match>(), from);
+        while (rescan.start != replay.start && rescan.start < to) {
+          if (replay.start < rescan.start) {
+            replay.scanUntil(text, normalizedOneToOneText, replay.start + 1);
+          } else {
+            rescan.scanUntil(text, normalizedOneToOneText, rescan.start + 1);
           }
         }
+        for (Match match : rescan.matches) {
+          unmatchedStart = output(text, unmatchedStart, match);
+        }
+        if (rescan.start != replay.start) {
+          position = rescan.start;
+          continue;
+        }
+        int met = rescan.start;
+        int first = 0;
+        while (first < matches.size() && matches.get(first).start < met) {
+          ++first;
+        }
+        matches = matches.subList(first, matches.size());
       }
-    } // while (start < length)
+      for (Match match : matches) {
+        unmatchedStart = output(text, unmatchedStart, match);
+      }
+      position = segment.start;
+    }
     // Output left-over characters.
-    unMatched(unmatched, text, length);
+    if (unmatchedStart < length) {
+      noMatch(text, unmatchedStart, length);
+    }
   }
 
   /**
-   * Output unmatched characters and delete them from `unmatched`.
-   * @param sb The characters to output.
-   * @param text The string from where these characters come.
-   * @param end The index in `text` immediately after the characters to output.
+   * Pass a collected match, and the unmatched characters before it, to `noMatch` and `match`.
+   * @param text The text that is scanned.
+   * @param unmatchedStart The position of the first unmatched character that has not been output.
+   * @param match The match.
+   * @return The position after the match.
    */
-  private void unMatched(StringBuilder sb, CharSequence text, int end) {
-    int len = sb.length();
-    if (len > 0) {
-      noMatch(text, end - len, end);
-      sb.delete(0, len);
+  private int output(CharSequence text, int unmatchedStart, Match match) {
+    if (unmatchedStart < match.start) {
+      noMatch(text, unmatchedStart, match.start);
+    }
+    match(text, match.start, match.end, match.ids);
+    return match.end;
+  }
+
+  /**
+   * A match that has been collected by a scan, to be passed to `match` later.
+   */
+  private static final class Match {
+    private final int start;
+    private final int end;
+    private final List<String> ids;
+    private Match(int start, int end, List<String> ids) {
+      this.start = start;
+      this.end = end;
+      this.ids = ids;
+    }
+  }
+
+  /**
+   * The state of a scan through a text.
+   * The text can be scanned in parts, when it is not completely available, see {@code scanUntil}.
+   * The scan from a position only depends on the text, so two scans that reach the same {@code start} find the same matches after it.
+   */
+  private class Scan {
+
+    private final TrieScanner trie; // The version of the trie that is used for the whole scan.
+    private final CharClasses classes; // The classes of characters of the trie.
+    private final int caseInsensitiveMinLength;
+    private final int fuzzyMinLength;
+    private final TrieScanner.ScanCursor cursor = new TrieScanner.ScanCursor(); // Receives the results of each scan.
+    private AhoCorasickAutomaton.Matcher matcher = null; // If not null, use this instead of scanning the trie.
+    private int start; // Starting position to search in text.
+    private int unmatchedStart; // The position of the first unmatched character that has not been output.
+    private boolean textEnds = true; // False if the text continues beyond the characters that are available to the scan.
+    private final List<Match> matches; // If not null, matches are collected here instead of passed to `match` and `noMatch`.
+
+    private Scan(TrieScanner trie, int caseInsensitiveMinLength, int fuzzyMinLength) {
+      this(trie, caseInsensitiveMinLength, fuzzyMinLength, null, 0);
     }
+
+    private Scan(TrieScanner trie, int caseInsensitiveMinLength, int fuzzyMinLength, List<Match> matches, int start) {
+      this.trie = trie;
+      this.classes = charClasses(trie);
+      this.caseInsensitiveMinLength = caseInsensitiveMinLength;
+      this.fuzzyMinLength = fuzzyMinLength;
+      this.matches = matches;
+      this.start = this.unmatchedStart = start;
+    }
+
+    /**
+     * Scan for matches that start before a limit.
+     * @param text The text that will be scanned for entities.
+     * @param normalizedOneToOneText The normalized text.
+     * @param limit Matches are tried at positions before the limit. A match may end after the limit.
+     */
+    private void scanUntil(CharSequence text, CharSequence normalizedOneToOneText, int limit) {
+      final int length = text.length();
+      while (start < limit) {
+        // Set start at the next first letter of a word.
+        // A word must start with letter, digit or word-character.
+        // It cannot start *immediately after* a word-character or a noWordAfter-character.
+        while ( start < limit &&
+                ( !isWordChar(classes, normalizedOneToOneText.charAt(start)) ||
+                  ( start > 0 && noWordAfter(classes, normalizedOneToOneText.charAt(start-1)) )
+                )
+              ) {
+          ++start;
+        }
+        if (start == limit) {
+          break;
+        }
+        // Scan for a match, starting at the word beginning at normalizedText[start].
+        boolean found = matcher != null
+          ? matcher.scan(start, cursor)
+          : trie.scan(normalizedOneToOneText, start, caseInsensitiveMinLength >= 0, cursor);
+        /* Determine if the match qualifies:
+         * - There is a result.
+         * - If (caseInsensitiveMinLength >= 0) the result-match was case-insensitive,
+         *   which is correct if the matched text was long enough,
+         *   otherwise there must be a case-sensitive match but no noise characters, so use matchedKey.
+         * - The result-match ignores noise, i.e., non-word characters, which are interpreted as whitespace.
+         *   If the match is longer than fuzzyMinLength that is correct.
+         *   Otherwise, the match must be exact, including noise characters.
+         * All results have the same start and end, so the matched text is the same for all results.
+         */
+        ArrayList<String> matchedIds = null;
+        int matchedStart = cursor.start();
+        int matchedEnd = cursor.end();
+        // A match that ends where the available text ends cannot be checked against the next character, unless that is the end of the text.
+        if (found && !textEnds && matchedEnd == length) {
+          found = false;
+        }
+        if (found) {
+          boolean longEnoughForCaseInsensitive = caseInsensitiveMinLength >= 0 && matchedEnd - matchedStart >= caseInsensitiveMinLength;
+          boolean longEnoughForFuzzy = fuzzyMinLength >= 0 && matchedEnd - matchedStart >= fuzzyMinLength;
+          for (int i = 0; i < cursor.size(); ++i) {
+            // Test caseInsensitiveMinLength. If caseInsensitiveMinLength >= 0, match result is case-insensitive, which may not be correct.
+            // The scan has determined if the matched key has the same case as the text, where sequences of non-significant characters are a space.
+            boolean satisfiesCaseInsensitiveMinLength = longEnoughForCaseInsensitive || cursor.exactCase(i);
+            // Test fuzzyMinLength. For non-fuzzy matching, insignificant characters become significant, but upper/lower case is insignificant.
+            // The scan has determined if the matched key has the same characters as the text, ignoring case.
+            boolean satisfiesFuzzyMinLength = longEnoughForFuzzy || cursor.exactChars(i);
+            if (satisfiesCaseInsensitiveMinLength && satisfiesFuzzyMinLength) { // This is a correct match.
+              if (start == matchedEnd) {
+                throw new RuntimeException("No progress matching from '"+text.subSequence(matchedStart, text.length())+"'");
+              }
+              if (matchedIds == null) {
+                matchedIds = new ArrayList<String>();
+              }
+              // Add ids that are not already present.
+              for (String value : cursor.values(i)) {
+                if (!matchedIds.contains(value)) {
+                  matchedIds.add(value);
+                }
+              }
+            }
+          }
+        }
+        if (matchedIds != null) {
+          if (matches != null) {
+            matches.add(new Match(matchedStart, matchedEnd, matchedIds));
+          } else {
+            // Output the characters before the match.
+            unMatched(text);
+            // Process the match.
+            match(text, matchedStart, matchedEnd, matchedIds);
+          }
+          // Continue after the match.
+          start = unmatchedStart = matchedEnd;
+        } else {
+          // There is no match and there is more to see.
+          char c = text.charAt(start++);
+          // Skip over the rest of a word containing letters and digits, but not wordChars.
+          if (classes.is(c, CharClasses.LETTER_OR_DIGIT)) {
+            while (start < length && classes.is(text.charAt(start), CharClasses.LETTER_OR_DIGIT)) {
+              ++ start;
+            }
+          }
+        }
+      } // while (start < limit)
+    }
+
+    /**
+     * Output the unmatched characters before the current position.
+     * @param text The text that is scanned.
+     */
+    private void unMatched(CharSequence text) {
+      if (unmatchedStart < start) {
+        noMatch(text, unmatchedStart, start);
+        unmatchedStart = start;
+      }
+    }
+
   }
 
 }
@@ -1,6 +1,22 @@
 package com.rakensi.xml.ner;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
 
 /**
  * A memory-efficient trie-based lookup, based on the TrieST implementation
@@ -9,27 +25,233 @@ import java.util.ArrayList;
  * A node can contain multiple values, which is an extension of the usual functionality.
  * The values must be strings.
  *
- * The keys are low ASCII strings, containing characters between 0x20 and 0x7F (inclusive).
+ * The keys consist of trie characters, which are letters, digits, whitespace and the word-characters, see {@code isTrieChar}.
+ * By default, these are low ASCII characters between 0x20 and 0x7F (inclusive).
+ * In Unicode mode, see {@code setUnicode}, letters, digits and word-characters outside of low ASCII are also trie characters.
  * There is room to put other information in the range 0x00 - 0x1F:
  * - 0x00 is used to indicate no character.
- * - 0x1A is used as a substitute for characters that are outside of the 0x20 - 0x7F range.
+ * - 0x1A is used as a substitute for characters that are not trie characters.
+ *
+ * A node with one branch keeps it in a single field.
+ * A node with a few more branches keeps them in {@code SortedBranches}, which are sorted arrays of characters and nodes.
+ * When a node has more branches for low ASCII characters, these are moved into a table of R nodes, indexed by character.
+ * Branches for characters outside of low ASCII always stay in the sorted branches, so there are no tables for all 64K characters.
  *
  * @author Rakensi
  */
 public class TrieScanner {
 
-  private static final char noChar = 0x00; // No character, used to indicate that there is no single branch in the trie.
+  static final char noChar = 0x00; // No character, used to indicate that there is no single branch in the trie.
   private static final char substituteChar = 0x1A; // Substitute character for characters outside of the 0x20 - 0x7F range.
 
   private String wordChars; // Characters that are considered part of a word, next to characters and digits and whitespace.
   private String noWordBefore; // May not occur immediately after a match, next to characters and digits.
-  private static final int R = 128; // Low ASCII characters appear in a node as possible next branches.
+  static final int R = 128; // Low ASCII characters appear in a node as possible next branches.
   private Node root; // root of trie
   private int nrKeys; // number of keys in trie
   private long totalKeySize; // estimated size of all keys in bytes
   private int nrNodes; // number of nodes in the trie
   private int nrBigNodes; // number of nodes that have a `next` array
+  private int nrLabels; // number of branches in `SortedBranches`
+  private int nrSortedNodes; // number of nodes that have `SortedBranches`
+  private static final long NODE_SIZE = 32L; // The size of a `Node` in bytes: a 12-byte header, 4 fields of 4 bytes, a char, and padding.
+  static final int MAX_SORTED_BRANCHES = 8; // The highest number of branches below R that are kept in `SortedBranches`.
+  private static final int KEYS_PER_TASK = 16384; // The number of keys that {@code putAll} prepares in one task.
+  private boolean unicode = false; // Characters above low ASCII can be trie characters.
   private Logger logger;
+  private AhoCorasickAutomaton ahoCorasick; // Aho-Corasick automaton for the keys in this trie, made when needed.
+  private int maxKeyLength = -1; // The length of the longest key, or -1 if it has not been determined.
+  private boolean caseFolded = false; // Keys are stored with their letters in lower case, with case signatures for their values.
+  private CharClasses charClasses; // The classes of characters for scanning, compiled when they are first needed.
+
+  /**
+   * The values of a key in a case-folded trie.
+   * This contains the values for all keys that have the same case-folded form.
+   * Each value has a case signature, which is the key with its original upper and lower case letters.
+   * Values that have the same signature are grouped, and the signatures are kept in the order in which
+   * a case-insensitive scan of a trie that is not case-folded would find them, i.e., upper case before lower case.
+   */
+  static class CaseFoldedValues extends ArrayList<String> {
+    private static final long serialVersionUID = 1L;
+    ArrayList<String> signatures = new ArrayList<String>(1); // The distinct case signatures.
+    ArrayList<ArrayList<String>> signatureValues = new ArrayList<ArrayList<String>>(1); // The values for each signature.
+
+    CaseFoldedValues() {
+      super(1); // The most common case is a single value.
+    }
+
+    /**
+     * Add a value with a case signature.
+     * @param signature The key with its original case.
+     * @param val The value.
+     * @return False if the value was already present with this signature.
+     */
+    boolean add(String signature, String val) {
+      int i = 0;
+      while (i < signatures.size() && compareSignatures(signatures.get(i), signature) < 0) {
+        ++i;
+      }
+      if (i == signatures.size() || !signatures.get(i).equals(signature)) {
+        signatures.add(i, signature);
+        signatureValues.add(i, new ArrayList<String>(1));
+      } else if (signatureValues.get(i).contains(val)) {
+        return false;
+      }
+      signatureValues.get(i).add(val);
+      if (!contains(val)) {
+        add(val);
+      }
+      return true;
+    }
+
+    /**
+     * Remove a value with a case signature.
+     * The value remains in the list of values if it also has another signature.
+     * @param signature The key with its original case.
+     * @param val The value.
+     * @return False if the value was not present with this signature.
+     */
+    boolean remove(String signature, String val) {
+      int i = signatures.indexOf(signature);
+      if (i < 0 || !signatureValues.get(i).remove(val)) {
+        return false;
+      }
+      if (signatureValues.get(i).isEmpty()) {
+        signatures.remove(i);
+        signatureValues.remove(i);
+      }
+      for (ArrayList<String> values : signatureValues) {
+        if (values.contains(val)) {
+          return true;
+        }
+      }
+      remove((Object)val);
+      return true;
+    }
+
+    /**
+     * @return A copy of these values, which can be changed without changing these values.
+     */
+    CaseFoldedValues copy() {
+      CaseFoldedValues copy = new CaseFoldedValues();
+      copy.addAll(this);
+      copy.signatures.addAll(signatures);
+      for (ArrayList<String> values : signatureValues) {
+        copy.signatureValues.add(new ArrayList<String>(values));
+      }
+      return copy;
+    }
+
+    /**
+     * Order signatures that have the same case-folded form, with upper case before lower case.
+     */
+    private static int compareSignatures(String a, String b) {
+      for (int i = 0; i < a.length(); ++i) {
+        if (a.charAt(i) != b.charAt(i)) {
+          return Character.isUpperCase(a.charAt(i)) ? -1 : 1;
+        }
+      }
+      return 0;
+    }
+  }
+
+  /**
+   * Branches of a node in sorted arrays.
+   * These are used for nodes with a few branches, which do not need a {@code next} array of R nodes,
+   * and for characters that are not in the {@code next} array of a node.
+   * This is kept in a separate object, so that it takes only one field in nodes that do not need it.
+   */
+  static class SortedBranches {
+    char[] labels = new char[0]; // The characters of the branches, in increasing order.
+    Node[] nodes = new Node[0]; // The nodes at the end of the branches.
+
+    /**
+     * @param c The character for which we seek a branch.
+     * @return The branch for the character, or null if there is none.
+     */
+    Node get(char c) {
+      if (labels.length <= MAX_SORTED_BRANCHES) {
+        // A linear search is faster for a few labels.
+        for (int i = 0; i < labels.length && labels[i] <= c; ++i) {
+          if (labels[i] == c) {
+            return nodes[i];
+          }
+        }
+        return null;
+      }
+      int i = Arrays.binarySearch(labels, c);
+      return i >= 0 ? nodes[i] : null;
+    }
+
+    /**
+     * @param limit
+     * @return The number of branches for characters below the limit.
+     */
+    int countBelow(int limit) {
+      int n = 0;
+      while (n < labels.length && labels[n] < limit) {
+        ++n;
+      }
+      return n;
+    }
+
+    /**
+     * Move the branches for characters below a limit into a table that is indexed by character.
+     * @param limit
+     * @param table Receives the moved branches.
+     * @return The number of moved branches.
+     */
+    int moveBelow(int limit, Node[] table) {
+      int n = countBelow(limit);
+      for (int i = 0; i < n; ++i) {
+        table[labels[i]] = nodes[i];
+      }
+      labels = Arrays.copyOfRange(labels, n, labels.length);
+      nodes = Arrays.copyOfRange(nodes, n, nodes.length);
+      return n;
+    }
+
+    /**
+     * Add a branch for a character that has no branch yet.
+     * @param c The character of the branch.
+     * @param branch The node at the end of the branch.
+     */
+    void add(char c, Node branch) {
+      int i = -1 - Arrays.binarySearch(labels, c);
+      labels = Arrays.copyOf(labels, labels.length + 1);
+      nodes = Arrays.copyOf(nodes, nodes.length + 1);
+      System.arraycopy(labels, i, labels, i + 1, labels.length - 1 - i);
+      System.arraycopy(nodes, i, nodes, i + 1, nodes.length - 1 - i);
+      labels[i] = c;
+      nodes[i] = branch;
+    }
+
+    /**
+     * Remove the branch for a character.
+     * @param c The character of the branch, which must have a branch.
+     */
+    void remove(char c) {
+      int i = Arrays.binarySearch(labels, c);
+      char[] newLabels = new char[labels.length - 1];
+      Node[] newNodes = new Node[nodes.length - 1];
+      System.arraycopy(labels, 0, newLabels, 0, i);
+      System.arraycopy(nodes, 0, newNodes, 0, i);
+      System.arraycopy(labels, i + 1, newLabels, i, newLabels.length - i);
+      System.arraycopy(nodes, i + 1, newNodes, i, newNodes.length - i);
+      labels = newLabels;
+      nodes = newNodes;
+    }
+
+    /**
+     * @return A copy of these branches, which can be changed without changing these branches.
+     */
+    SortedBranches copy() {
+      SortedBranches copy = new SortedBranches();
+      copy.labels = labels.clone();
+      copy.nodes = nodes.clone();
+      return copy;
+    }
+  }
 
   /**
    * Scan result, contains information about a successful match.
@@ -50,129 +272,280 @@ public class TrieScanner {
     }
   }
 
+  /**
+   * A reusable cursor for scanning, which receives the results of a scan.
+   * It also holds the scratch buffers that are used while walking through the trie,
+   * so that scanning a position in a text does not allocate memory.
+   * A cursor can be used for many scans, but not for concurrent scans.
+   *<p>
+   * All results of a scan start and end at the same positions in the text,
+   * and their keys have the same length. Their keys may differ in case.
+   */
+  public static class ScanCursor {
+    // The results of the last scan.
+    private int start; // The position in the scanned text from where the matches start.
+    private int end; // The position in the scanned text where the matches have stopped.
+    private int size; // The number of results.
+    private int keyLength; // The length of the matched keys.
+    private ArrayList<ArrayList<String>> values = new ArrayList<ArrayList<String>>(); // The values for each result.
+    private char[] keys = new char[64]; // The matched keys, keyLength characters for each result.
+    private boolean[] exactCase = new boolean[4]; // For each result, if the key matches the text including case.
+    private boolean[] exactChars = new boolean[4]; // For each result, if the key matches the text ignoring case, without noise.
+    // Scratch buffers, indexed by depth in the trie.
+    Node[] nodes; // The nodes on the walked path, for tries of Node objects.
+    int[] states; // The states on the walked path, for tries of states.
+    char[] key; // The key on the walked path.
+    int[] stepEnd; // The position in the text after the step at each depth.
+    char[] stepChar; // The character to match at each depth, or noChar if there is none.
+    byte[] variant; // The next case variant of stepChar to try at each depth.
+    int[] depths; // The depth at the end of each node on the path, for path-compressed tries.
+    int[] ranks; // The number of keys that precede the path at each depth, for minimal automata.
+    // Flags that are tracked while walking, for each depth. They apply to the steps and the key before that depth.
+    boolean[] noise; // Some step has skipped or replaced characters of the text.
+    boolean[] otherCase; // Some character of the key differs from its step, at least in case.
+
+    public ScanCursor() {
+      allocate(32);
+    }
+
+    private void allocate(int capacity) {
+      nodes = nodes == null ? new Node[capacity] : Arrays.copyOf(nodes, capacity);
+      states = states == null ? new int[capacity] : Arrays.copyOf(states, capacity);
+      key = key == null ? new char[capacity] : Arrays.copyOf(key, capacity);
+      stepEnd = stepEnd == null ? new int[capacity] : Arrays.copyOf(stepEnd, capacity);
+      stepChar = stepChar == null ? new char[capacity] : Arrays.copyOf(stepChar, capacity);
+      variant = variant == null ? new byte[capacity] : Arrays.copyOf(variant, capacity);
+      depths = depths == null ? new int[capacity] : Arrays.copyOf(depths, capacity);
+      ranks = ranks == null ? new int[capacity] : Arrays.copyOf(ranks, capacity);
+      noise = noise == null ? new boolean[capacity] : Arrays.copyOf(noise, capacity);
+      otherCase = otherCase == null ? new boolean[capacity] : Arrays.copyOf(otherCase, capacity);
+    }
+
+    /**
+     * Make sure that the scratch buffers can hold a path up to a depth.
+     * @param depth
+     */
+    void ensureDepth(int depth) {
+      if (depth >= key.length) {
+        allocate(2 * depth);
+      }
+    }
+
+    /**
+     * Start a new scan, without results.
+     * @param start The position in the scanned text from where the scan starts.
+     */
+    void reset(int start) {
+      this.start = start;
+      this.end = -1;
+      this.size = 0;
+      this.noise[0] = false;
+      this.otherCase[0] = false;
+    }
+
+    /**
+     * Walk one character of a key, matching the step at a depth, and track if the key still matches the text including case.
+     * The step at the depth must be known.
+     * @param depth The depth of the step.
+     * @param c The character of the key.
+     */
+    void walk(int depth, char c) {
+      key[depth] = c;
+      otherCase[depth + 1] = otherCase[depth] || c != stepChar[depth];
+    }
+
+    /**
+     * Add a result, if it is not shorter than the results so far. Shorter results are dropped.
+     * @param end The position in the scanned text where the match has stopped.
+     * @param resultValues The values for the matched key.
+     * @param resultKey Contains the matched key.
+     * @param resultKeyLength The length of the matched key.
+     * @param resultExactCase Indicates that the key matches the text including case.
+     * @param resultExactChars Indicates that the key matches the text ignoring case, without noise characters.
+     */
+    void add(int end, ArrayList<String> resultValues, char[] resultKey, int resultKeyLength, boolean resultExactCase, boolean resultExactChars) {
+      if (accept(end, resultKeyLength)) {
+        System.arraycopy(resultKey, 0, keys, size * keyLength, keyLength);
+        append(resultValues, resultExactCase, resultExactChars);
+      }
+    }
+
+    /**
+     * Add a result, if it is not shorter than the results so far.
+     * @param end The position in the scanned text where the match has stopped.
+     * @param resultValues The values for the matched key.
+     * @param resultKey The matched key.
+     * @param resultExactCase Indicates that the key matches the text including case.
+     * @param resultExactChars Indicates that the key matches the text ignoring case, without noise characters.
+     */
+    void add(int end, ArrayList<String> resultValues, String resultKey, boolean resultExactCase, boolean resultExactChars) {
+      if (accept(end, resultKey.length())) {
+        resultKey.getChars(0, keyLength, keys, size * keyLength);
+        append(resultValues, resultExactCase, resultExactChars);
+      }
+    }
+
+    /**
+     * Decide if a result is added, and make room for it.
+     * @return False if the result is shorter than the results so far.
+     */
+    private boolean accept(int end, int resultKeyLength) {
+      if (end < this.end) {
+        return false;
+      } else if (end > this.end) {
+        this.end = end;
+        this.size = 0;
+        this.keyLength = resultKeyLength;
+      }
+      if (keys.length < (size + 1) * keyLength) {
+        keys = Arrays.copyOf(keys, 2 * (size + 1) * keyLength);
+      }
+      if (exactCase.length <= size) {
+        exactCase = Arrays.copyOf(exactCase, 2 * (size + 1));
+        exactChars = Arrays.copyOf(exactChars, 2 * (size + 1));
+      }
+      return true;
+    }
+
+    private void append(ArrayList<String> resultValues, boolean resultExactCase, boolean resultExactChars) {
+      if (values.size() > size) {
+        values.set(size, resultValues);
+      } else {
+        values.add(resultValues);
+      }
+      exactCase[size] = resultExactCase;
+      exactChars[size] = resultExactChars;
+      ++size;
+    }
+
+    /**
+     * @return The position in the scanned text from where the matches start.
+     */
+    public int start() {
+      return start;
+    }
+
+    /**
+     * @return The position in the scanned text where the matches have stopped.
+     */
+    public int end() {
+      return end;
+    }
+
+    /**
+     * @return The number of results, which is 0 if there is no match.
+     */
+    public int size() {
+      return size;
+    }
+
+    /**
+     * @return The length of the matched keys.
+     */
+    public int keyLength() {
+      return keyLength;
+    }
+
+    /**
+     * @param i The index of a result.
+     * @return The values for the result.
+     */
+    public ArrayList<String> values(int i) {
+      return values.get(i);
+    }
+
+    /**
+     * @param i The index of a result.
+     * @param k A position in the matched key.
+     * @return The character at position k in the key of the result.
+     */
+    public char keyChar(int i, int k) {
+      return keys[i * keyLength + k];
+    }
+
+    /**
+     * @param i The index of a result.
+     * @return True if the key of the result matches the text including case, apart from noise characters.
+     */
+    public boolean exactCase(int i) {
+      return exactCase[i];
+    }
+
+    /**
+     * @param i The index of a result.
+     * @return True if the key of the result matches the text ignoring case, including noise characters,
+     *   which means that the matched text has no other characters than the key.
+     */
+    public boolean exactChars(int i) {
+      return exactChars[i];
+    }
+
+    /**
+     * @param i The index of a result.
+     * @return The key of the result. This may differ from scanned text in noise characters and case.
+     */
+    public String matchedKey(int i) {
+      return new String(keys, i * keyLength, keyLength);
+    }
+  }
+
   /**
    * Optimized implementation of nodes in the trie.
    * When there is only one branch, it does not allocate memory for R outgoing branches.
+   * A node does not refer to its trie, because nodes are shared by the versions of a trie that {@code update} makes,
+   * and an old version must not be kept in memory by the nodes of a newer version.
    */
-  public class Node {
+  public static class Node {
     public ArrayList<String> values = null; // The values for this key, if any.
     private Node[] next = null; // Multiple branches extending from this node, always has size R.
     private char c = noChar; // Character for a single branch.
     private Node nextc = null; // The single branch for this character.
-
-    public Node() {
-      nrNodes++;
-    }
+    private SortedBranches sorted = null; // Multiple branches, if there are only a few, and branches for characters not below R.
 
     @Override
     public String toString()
     {
       if (this.next == null)
-        if (this.nextc == null) return "[]";
+        if (this.sorted != null) return "["+String.valueOf(sorted.labels)+"]";
+        else if (this.nextc == null) return "[]";
         else return "["+this.c+"]";
       else {
         char[] nexts = new char[R];
         for (char c = 0; c < R; ++c) {
           nexts[c] = (this.next[c] == null) ? '◦' : c;
         }
-        return String.valueOf(nexts);
+        return String.valueOf(nexts) + (sorted == null ? "" : String.valueOf(sorted.labels));
       }
     }
 
     /**
      * Add a key-value pair to a (root) node.
+     * @param trie The trie that counts the added nodes and keys, and determines the trie characters.
      * @param originalKey The original key.
      * @param key The acceptable characters from the key.
      * @param val The value associated with the key.
      * @throws IllegalArgumentException
+     * @deprecated Use {@code TrieScanner.put}, which also normalizes the key.
      */
-    public synchronized void putIterative(String originalKey, String key, String val) throws IllegalArgumentException {
-      Node putNode = this; // The Node that put is using for the next step in the trie. Starts at the root node.
-      for (int d = 0; d < key.length(); ++d) {
-        char c = key.charAt(d);
-        if (!isTrieChar(c)) {
-          throw new IllegalArgumentException("Illegal trie character: ["+c+"] ("+((int)c)+") in key ["+originalKey+"].");
-        }
-        if (putNode.next != null) {
-          if (putNode.next[c] == null) putNode.next[c] = new Node();
-          putNode = putNode.next[c];
-        } else if (putNode.nextc != null) {
-          if (putNode.c == noChar || putNode.c == c) {
-            putNode.c = c;
-            putNode = putNode.nextc;
-          } else {
-            putNode.next = new Node[R];
-            putNode.next[putNode.c] = putNode.nextc;
-            putNode.next[c] = new Node();
-            putNode.c = noChar; // No single branch anymore.
-            putNode.nextc = null;
-            nrBigNodes++;
-            putNode = putNode.next[c];
-          }
-        } else {
-          putNode.c = c;
-          putNode.nextc = new Node();
-          putNode = putNode.nextc;
-        }
-      }
-      // The key has been put into the trie, and will be found at putNode.
-      if (putNode.values == null) {
-        putNode.values = new ArrayList<String>(1); // The most common case is a single value.
-      }
-      if (!putNode.values.contains(val)) {
-        nrKeys++;
-        totalKeySize += 36 + 2 * val.length(); // http://java-performance.info/overview-of-memory-saving-techniques-java/
-        putNode.values.ensureCapacity(putNode.values.size()+1);
-        putNode.values.add(val);
-      }
+    @Deprecated
+    public void putIterative(TrieScanner trie, String originalKey, String key, String val) throws IllegalArgumentException {
+      trie.putIterative(this, originalKey, key, val);
     }
 
     /**
      * Add a key-value pair to a node.
+     * @param trie The trie that counts the added nodes and keys, and determines the trie characters.
      * @param originalKey The original key.
      * @param key The acceptable characters from the key.
      * @param val The value associated with the key.
      * @param d The current depth in the trie. The root has depth 0.
      * @return The updated node.
      * @throws IllegalArgumentException
+     * @deprecated Use {@code TrieScanner.put}, which also normalizes the key.
      */
-    public Node putRecursive(String originalKey, String key, String val, int d) throws IllegalArgumentException {
-      if (d == key.length()) {
-        if (values == null)
-         {
-          values = new ArrayList<String>(1); // The most common case is a single value.
-        }
-        if (!values.contains(val)) {
-          nrKeys++;
-          totalKeySize += 36 + 2 * val.length(); // http://java-performance.info/overview-of-memory-saving-techniques-java/
-          values.ensureCapacity(values.size()+1);
-          values.add(val);
-        }
-        return this;
-      }
-      char c = key.charAt(d);
-      if (!isTrieChar(c)) {
-        throw new IllegalArgumentException("Illegal trie character: ["+c+"] ("+((int)c)+") in key ["+originalKey+"].");
-      }
-      if (next != null) {
-        next[c] = (next[c] != null ? next[c] : new Node()).putRecursive(originalKey, key, val, d + 1);
-      } else if (nextc != null) {
-        if (this.c == noChar || this.c == c) {
-          this.c = c;
-          nextc = nextc.putRecursive(originalKey, key, val, d + 1);
-        } else {
-          next = new Node[R];
-          next[this.c] = nextc;
-          next[c] = new Node().putRecursive(originalKey, key, val, d + 1);
-          this.c = noChar; // No single branch anymore.
-          nextc = null;
-          nrBigNodes++;
-        }
-      } else {
-        this.c = c;
-        nextc = new Node().putRecursive(originalKey, key, val, d + 1);
-      }
-      return this;
+    @Deprecated
+    public Node putRecursive(TrieScanner trie, String originalKey, String key, String val, int d) throws IllegalArgumentException {
+      return trie.putRecursive(this, originalKey, key, val, d);
     }
 
     /**
@@ -186,20 +559,12 @@ public class TrieScanner {
         // The key has been matched, return this node.
         return this;
       }
-      char c = key.charAt(d);
-      if (next != null) {
-        if (next[c] == null) {
-          return null;
-        }
-        // Match one character and move deeper into the trie.
-        return next[c].get(key, d + 1);
-      }
-      if (this.c == c && nextc != null) {
-        // The single branch matches.
-        return nextc.get(key, d + 1);
-      } else {
+      Node branch = branch(key.charAt(d));
+      if (branch == null) {
         return null;
       }
+      // Match one character and move deeper into the trie.
+      return branch.get(key, d + 1);
     }
 
     /**
@@ -217,119 +582,12 @@ public class TrieScanner {
       if (d == query.length()) {
         return length;
       }
-      char c = query.charAt(d);
-      if (next != null) {
-        if (next[c] == null) {
-          return length;
-        } else {
-          return next[c].longestPrefixOf(query, d + 1, length);
-        }
+      Node branch = branch(query.charAt(d));
+      if (branch == null) {
+        return length;
       } else {
-        if (this.c != c) {
-          return length;
-        } else {
-          return nextc.longestPrefixOf(query, d + 1, length);
-        }
-      }
-    }
-
-    /**
-     * Find the longest substring in `text`, starting at `start` that matches a key in the trie.
-     * @param normalizedText The normalized version of the text that we are scanning.
-     * @param start The position in `text` from where the current scan starts.
-     * @param current The position in `text` that holds the next character to scan.
-     * @param end The position one beyond the last position in `text`.
-     * @param caseInsensitive Indicates that matching is case-insensitive.
-     * @param matchedText Fragment of the input text that has actually matched. This corresponds to normalizedText[start,current).
-     * @param matchedKey The exact key in the trie that has been matched so far.
-     * @return The results of the current scan. This may be null if there are no results
-     * Whitespace must be normalized in {@code normalizedText}.
-     * All sequences of whitespace characters will be matched like a single space.
-     * If the scan is case-insensitive there can be multiple results with different matched texts.
-     * The matched texts may differ in case, and in whitespace.
-     */
-    public ArrayList<ScanResult> scan(CharSequence normalizedText, int start, int current, int end,
-        boolean caseInsensitive, StringBuilder matchedText, StringBuilder matchedKey, Logger logger
-    ) {
-      if (current < end) {
-        // Look for a longer match starting at the next not-yet-matched character.
-        // Within this block, matchedText may be temporarily extended.
-        char ch = normalizedText.charAt(current);
-        // NextPos is what current will become if there is a match.
-        int nextPos = current + 1;
-        // Match sequences of whitespace and ignored characters as one space.
-        while ( nextPos < end && wordSeparatorChar(ch) ) {
-          ch = normalizedText.charAt(nextPos);
-          nextPos = nextPos + 1;
-        }
-        // If there were ignored characters and / or whitespace, match them as if it was one space.
-        if (nextPos > current + 1) {
-          ch = ' ';
-          nextPos = nextPos - 1;
-        }
-        // Now ch is the trie-character or space that must be matched; nextPos points to the character after ch.
-        // Append text that has been matched. When there are ignored characters, this may contain more than 1 character.
-        matchedText.append(normalizedText.subSequence(current, nextPos));
-        // Do the actual scan for a longer match.
-        ArrayList<ScanResult> longer = null;
-        if (isTrieChar(ch)) {
-          // Do a case-insensitive match if the character has case.
-          if (caseInsensitive && Character.isLetter(ch)) {
-            // Try upper-case to find a longer match.
-            ArrayList<ScanResult> longerUpperCase = null;
-            matchedKey.append(Character.toUpperCase(ch));
-            Node branch = branch(Character.toUpperCase(ch));
-            if (branch != null) {
-              longerUpperCase = branch.scan(normalizedText, start, nextPos, end, caseInsensitive, matchedText, matchedKey, logger);
-            }
-            // Try lower-case to find a longer match.
-            ArrayList<ScanResult> longerLowerCase = null;
-            matchedKey.setCharAt(matchedKey.length()-1, Character.toLowerCase(ch));
-            branch = branch(Character.toLowerCase(ch));
-            if (branch != null) {
-              longerLowerCase = branch.scan(normalizedText, start, nextPos, end, caseInsensitive, matchedText, matchedKey, logger);
-            }
-            // Merge the longer matches for upper- and lower-case.
-            if (longerUpperCase != null) {
-              if (longerLowerCase != null) {
-                if (longerUpperCase.get(0).end > longerLowerCase.get(0).end) {
-                  longer = longerUpperCase;
-                } else if (longerLowerCase.get(0).end > longerUpperCase.get(0).end) {
-                  longer = longerLowerCase;
-                } else {
-                  longer = longerUpperCase;
-                  longer.addAll(longerLowerCase);
-                }
-              } else {
-                longer = longerUpperCase;
-              }
-            } else if (longerLowerCase != null) {
-              longer = longerLowerCase;
-            }
-          } else {
-            // Case-sensitive match.
-            matchedKey.append(ch);
-            Node branch = branch(ch);
-            if (branch != null) {
-              longer = branch.scan(normalizedText, start, nextPos, end, caseInsensitive, matchedText, matchedKey, logger);
-            }
-          }
-          matchedKey.deleteCharAt(matchedKey.length()-1);
-        } // if (trieChar(ch))
-        matchedText.delete(current-start, matchedText.length());
-        if ( longer != null) {
-          // We have found a longer match.
-          return longer;
-        }
-        // We have not found a longer match, but we may have found a match here.
-      } // End of if(current < end); We did not find longer match.
-      ArrayList<ScanResult> result = null;
-      // The result that we found is valid if the current node has values and the match is not followed by a noWordBefore character.
-      if (values != null && ( current == end || current < end && !continuesWord(normalizedText.charAt(current)) ) ) {
-        result = new ArrayList<ScanResult>();
-        result.add(new ScanResult(values, start, current, matchedText, matchedKey));
+        return branch.longestPrefixOf(query, d + 1, length);
       }
-      return result;
     }
 
     /**
@@ -338,26 +596,120 @@ public class TrieScanner {
      * @return The branch for the character if there is one, or null if there is no branch for the character.
      */
     private Node branch(char c) {
-      if (next != null) {
+      if (c < R && next != null) {
         return next[c];
       } else if (this.c == c) {
         return nextc;
+      } else if (sorted != null) {
+        return sorted.get(c);
       } else {
         return null;
       }
     }
 
     /**
-     * Is the character a word separator?
-     * @param c
-     * @return True if the character is not a valid trie character, or if it is a space.
+     * Replace the node at the end of an existing branch.
+     * @param c The character of the branch.
+     * @param branch The new node at the end of the branch.
+     */
+    private void replaceBranch(char c, Node branch) {
+      if (c < R && next != null) {
+        next[c] = branch;
+      } else if (this.c == c && nextc != null) {
+        nextc = branch;
+      } else {
+        sorted.nodes[Arrays.binarySearch(sorted.labels, c)] = branch;
+      }
+    }
+
+    /**
+     * @return A copy of this node, with the same branches and values, which can be changed without changing this node.
+     */
+    private Node copy() {
+      Node copy = new Node();
+      if (values instanceof CaseFoldedValues) {
+        copy.values = ((CaseFoldedValues)values).copy();
+      } else if (values != null) {
+        copy.values = new ArrayList<String>(values);
+      }
+      copy.next = next != null ? next.clone() : null;
+      copy.c = c;
+      copy.nextc = nextc;
+      copy.sorted = sorted != null ? sorted.copy() : null;
+      return copy;
+    }
+
+    /**
+     * Collect the branches extending from this node, in increasing character order.
+     * @param labels Receives the characters of the branches. Must have room for {@code nrBranches()} characters.
+     * @param branches Receives the nodes of the branches. Must have room for {@code nrBranches()} nodes.
+     * @return The number of branches.
+     */
+    int branches(char[] labels, Node[] branches) {
+      int n = 0;
+      if (next != null) {
+        for (char c = 0; c < R; ++c) {
+          if (next[c] != null) {
+            labels[n] = c;
+            branches[n++] = next[c];
+          }
+        }
+      } else if (nextc != null) {
+        labels[n] = this.c;
+        branches[n++] = nextc;
+      }
+      if (sorted != null) {
+        System.arraycopy(sorted.labels, 0, labels, n, sorted.labels.length);
+        System.arraycopy(sorted.nodes, 0, branches, n, sorted.nodes.length);
+        n += sorted.labels.length;
+      }
+      return n;
+    }
+
+    /**
+     * @return The number of branches extending from this node.
      */
-    private boolean wordSeparatorChar(char c) {
-      return !isTrieChar(c) || Character.isWhitespace(c);
+    int nrBranches() {
+      int n = nextc != null ? 1 : 0;
+      if (next != null) {
+        for (char c = 0; c < R; ++c) {
+          if (next[c] != null) {
+            ++n;
+          }
+        }
+      }
+      return sorted != null ? n + sorted.labels.length : n;
     }
 
-    private boolean continuesWord(char c) {
-      return Character.isLetterOrDigit(c) || noWordBefore.indexOf(c) >= 0;
+    /**
+     * Perform an action for every key in the subtrie rooted at this node, in increasing order of keys.
+     * @param key The key that leads to this node. It is temporarily extended for the keys in the subtrie.
+     * @param action Receives each key with its values.
+     */
+    void forEachKey(StringBuilder key, BiConsumer<String, ArrayList<String>> action) {
+      if (values != null) {
+        acceptKey(key.toString(), values, action);
+      }
+      if (next != null) {
+        for (char c = 0; c < R; ++c) {
+          if (next[c] != null) {
+            key.append(c);
+            next[c].forEachKey(key, action);
+            key.setLength(key.length() - 1);
+          }
+        }
+      } else if (nextc != null) {
+        key.append(this.c);
+        nextc.forEachKey(key, action);
+        key.setLength(key.length() - 1);
+      }
+      if (sorted != null) {
+        for (int i = 0; i < sorted.labels.length; ++i) {
+          key.append(sorted.labels[i]);
+          sorted.nodes[i].forEachKey(key, action);
+          key.setLength(key.length() - 1);
+        }
+      }
     }
 
   } // class Node
@@ -378,41 +730,137 @@ public class TrieScanner {
   }
 
   /**
-   * Determines if c is an acceptable character to put in the Trie, i.e., c is a letter or digit or whitespace or in wordChars.
-   * @param c A character
-   * @return Indicates if c is acceptable.
-   * Whitespace is acceptable, but will be converted to normal space when put into the trie or when matched.
+   * Is the character a word separator?
+   * @param c
+   * @return True if the character is not a valid trie character, or if it is a space.
    */
-  public boolean isTrieChar(char c) {
-    return Character.isWhitespace(c) || isNonSpaceTrieChar(c);
+  protected boolean wordSeparatorChar(char c) {
+    return charClasses().is(c, CharClasses.SEPARATOR);
   }
 
   /**
-   * Determines if c is an acceptable character to put in the Trie, i.e., c is a letter or digit or in wordChars, but not whitespace.
-   * @param c A character
-   * @return Indicates if c is acceptable.
-   * Whitespace is acceptable, but will be converted to normal space when put into the trie or when matched.
+   * Does the character continue a word, so that a match cannot end immediately before it?
+   * @param c
+   * @return True if the character is a letter or digit, or in noWordBefore.
    */
-  public boolean isNonSpaceTrieChar(char c) {
-    return c < R && ( Character.isLetterOrDigit(c) || wordChars.indexOf(c) >= 0 );
+  protected boolean continuesWord(char c) {
+    return charClasses().is(c, CharClasses.NO_WORD_BEFORE);
   }
 
-  /** It is not clear which function is preferable: toTrieCharsSubstitutingNonTrieChars or toTrieCharsIgnoringNonTrieChars or toTrieCharsNormalizingNonTrieChars.
-   * Turn the normalized version of a string into acceptable Trie characters.
-   * Other characters are replaced by substituteChar.
-   * Whitespace is normalized; it is removed at the start and end, and collapsed in the middle.
-   * @param s
-   * @return
+  /**
+   * @return The classes of characters for scanning with this trie.
    */
-  public String toTrieCharsSubstitutingNonTrieChars(CharSequence s) {
-    if (s == null) {
-      return null;
+  CharClasses charClasses() {
+    CharClasses classes = charClasses;
+    if (classes == null) {
+      // A CharClasses cannot be changed, so if two threads get it at the same time, either one can be used.
+      classes = charClasses = CharClasses.of(wordChars, noWordBefore, unicode);
     }
-    s = StringUtils.normalizeOneToOne(s);
-    StringBuilder sb = new StringBuilder();
-    boolean inSpace = false;
-    int n = s.length();
-    for (int i = 0; i < n; i++) {
+    return classes;
+  }
+
+  /**
+   * @return The characters that are considered part of a word, next to letters and digits and whitespace.
+   */
+  String wordChars() {
+    return wordChars;
+  }
+
+  /**
+   * @return The characters that may not occur immediately after a match, next to letters and digits.
+   */
+  String noWordBefore() {
+    return noWordBefore;
+  }
+
+  /**
+   * Does another trie treat characters in the same way as this trie?
+   * A trie that is loaded from a snapshot has the settings with which it was saved, which must be the same as the settings of the trie that it replaces.
+   * @param other Another trie.
+   * @return True if both tries have the same word-characters, no-word-before characters, case-folding and character set.
+   */
+  boolean hasSameSettings(TrieScanner other) {
+    return wordChars.equals(other.wordChars) && noWordBefore.equals(other.noWordBefore) &&
+           caseFolded == other.caseFolded && unicode == other.unicode;
+  }
+
+  /**
+   * @return The logger of this trie.
+   */
+  Logger logger() {
+    return logger;
+  }
+
+  /**
+   * Determines if c is an acceptable character to put in the Trie, i.e., c is a letter or digit or whitespace or in wordChars.
+   * @param c A character
+   * @return Indicates if c is acceptable.
+   * Whitespace is acceptable, but will be converted to normal space when put into the trie or when matched.
+   */
+  public boolean isTrieChar(char c) {
+    return charClasses().is(c, CharClasses.TRIE_CHAR);
+  }
+
+  /**
+   * Determines if c is an acceptable character to put in the Trie, i.e., c is a letter or digit or in wordChars, but not whitespace.
+   * @param c A character
+   * @return Indicates if c is acceptable.
+   * Whitespace is acceptable, but will be converted to normal space when put into the trie or when matched.
+   */
+  public boolean isNonSpaceTrieChar(char c) {
+    return charClasses().is(c, CharClasses.NON_SPACE_TRIE_CHAR);
+  }
+
+  /**
+   * Normalize a text for this trie.
+   * For a Unicode trie, characters that have no ASCII equivalent are kept, otherwise they are substituted.
+   * @param s A text.
+   * @return A normalized version of {@code s} with the same number of characters.
+   */
+  public CharSequence normalize(CharSequence s) {
+    return unicode ? StringUtils.normalizeUnicodeOneToOne(s) : StringUtils.normalizeOneToOne(s);
+  }
+
+  /**
+   * Make a view of a text that is normalized for this trie, like {@code normalize},
+   * without making a normalized copy of the whole text. Characters are normalized when they are read.
+   * @param s A text, which must not change while the view is used.
+   * @return A normalized view of {@code s}.
+   */
+  public CharSequence normalizedView(CharSequence s) {
+    return new NormalizedText(s, unicode);
+  }
+
+  /**
+   * Normalize characters in place for this trie, like {@code normalize}.
+   * @param chars The characters.
+   * @param start The position of the first character to normalize.
+   * @param end The position after the last character to normalize.
+   */
+  void normalize(char[] chars, int start, int end) {
+    if (unicode) {
+      StringUtils.normalizeUnicodeOneToOne(chars, start, end);
+    } else {
+      StringUtils.normalizeOneToOne(chars, start, end);
+    }
+  }
+
+  /** It is not clear which function is preferable: toTrieCharsSubstitutingNonTrieChars or toTrieCharsIgnoringNonTrieChars or toTrieCharsNormalizingNonTrieChars.
+   * Turn the normalized version of a string into acceptable Trie characters.
+   * Other characters are replaced by substituteChar.
+   * Whitespace is normalized; it is removed at the start and end, and collapsed in the middle.
+   * @param s
+   * @return
+   */
+  public String toTrieCharsSubstitutingNonTrieChars(CharSequence s) {
+    if (s == null) {
+      return null;
+    }
+    s = normalize(s);
+    StringBuilder sb = new StringBuilder();
+    boolean inSpace = false;
+    int n = s.length();
+    for (int i = 0; i < n; i++) {
       char c = s.charAt(i);
       if (Character.isWhitespace(c)) {
         inSpace = true;
@@ -442,7 +890,7 @@ public class TrieScanner {
     if (s == null) {
       return null;
     }
-    s = StringUtils.normalizeOneToOne(s);
+    s = normalize(s);
     StringBuilder sb = new StringBuilder();
     boolean inSpace = false;
     int n = s.length();
@@ -474,7 +922,7 @@ public class TrieScanner {
     if (s == null) {
       return null;
     }
-    s = StringUtils.normalizeOneToOne(s);
+    s = normalize(s);
     StringBuilder sb = new StringBuilder();
     boolean inSpace = false;
     int n = s.length();
@@ -493,6 +941,185 @@ public class TrieScanner {
     return sb.toString();
   }
 
+  /**
+   * Add a key-value pair to a (root) node.
+   * @param root The root node.
+   * @param originalKey The original key.
+   * @param key The acceptable characters from the key.
+   * @param val The value associated with the key.
+   * @throws IllegalArgumentException
+   */
+  private synchronized void putIterative(Node root, String originalKey, String key, String val) throws IllegalArgumentException {
+    Node putNode = root; // The Node that put is using for the next step in the trie. Starts at the root node.
+    for (int d = 0; d < key.length(); ++d) {
+      char c = caseFolded ? foldCase(key.charAt(d)) : key.charAt(d);
+      if (!isTrieChar(c)) {
+        throw new IllegalArgumentException("Illegal trie character: ["+c+"] ("+((int)c)+") in key ["+originalKey+"].");
+      }
+      putNode = addBranch(putNode, c);
+    }
+    // The key has been put into the trie, and will be found at putNode.
+    putNode.values = addValue(putNode.values, key, val);
+  }
+
+  /**
+   * Add a key-value pair to a node.
+   * @param node The node.
+   * @param originalKey The original key.
+   * @param key The acceptable characters from the key.
+   * @param val The value associated with the key.
+   * @param d The current depth in the trie. The root has depth 0.
+   * @return The updated node.
+   * @throws IllegalArgumentException
+   */
+  private Node putRecursive(Node node, String originalKey, String key, String val, int d) throws IllegalArgumentException {
+    if (d == key.length()) {
+      node.values = addValue(node.values, key, val);
+      return node;
+    }
+    char c = caseFolded ? foldCase(key.charAt(d)) : key.charAt(d);
+    if (!isTrieChar(c)) {
+      throw new IllegalArgumentException("Illegal trie character: ["+c+"] ("+((int)c)+") in key ["+originalKey+"].");
+    }
+    putRecursive(addBranch(node, c), originalKey, key, val, d + 1);
+    return node;
+  }
+
+  /**
+   * Get the branch for a character, or add it if there is none.
+   * The first branch of a node is a single branch.
+   * Up to {@code MAX_SORTED_BRANCHES} more branches go into sorted branches.
+   * When there are more branches for characters below R, these are moved into the {@code next} array.
+   * Branches for characters not below R always stay in the sorted branches.
+   * @param node The node.
+   * @param c The character of the branch.
+   * @return The node at the end of the branch.
+   */
+  private Node addBranch(Node node, char c) {
+    Node branch = node.branch(c);
+    if (branch == null) {
+      branch = new Node();
+      nrNodes++;
+      attachBranch(node, c, branch);
+    }
+    return branch;
+  }
+
+  /**
+   * Add a branch for a character that a node does not have yet.
+   * @param node The node.
+   * @param c The character of the branch.
+   * @param branch The node at the end of the branch.
+   */
+  private void attachBranch(Node node, char c, Node branch) {
+    if (node.nextc == null && node.next == null && node.sorted == null) {
+      node.c = c;
+      node.nextc = branch;
+    } else {
+      if (node.nextc != null) {
+        addMultipleBranch(node, node.c, node.nextc);
+        node.c = noChar; // No single branch anymore.
+        node.nextc = null;
+      }
+      addMultipleBranch(node, c, branch);
+    }
+  }
+
+  private void addMultipleBranch(Node node, char c, Node branch) {
+    if (c < R && node.next == null && node.sorted != null && node.sorted.countBelow(R) == MAX_SORTED_BRANCHES) {
+      // Promote the node to a node with a `next` array.
+      node.next = new Node[R];
+      nrBigNodes++;
+      nrLabels -= node.sorted.moveBelow(R, node.next);
+      if (node.sorted.labels.length == 0) {
+        node.sorted = null;
+        nrSortedNodes--;
+      }
+    }
+    if (c < R && node.next != null) {
+      node.next[c] = branch;
+    } else {
+      if (node.sorted == null) {
+        node.sorted = new SortedBranches();
+        nrSortedNodes++;
+      }
+      node.sorted.add(c, branch);
+      nrLabels++;
+    }
+  }
+
+  /**
+   * Remove the branch for a character from a node.
+   * @param node The node.
+   * @param c The character of the branch, which must have a branch.
+   */
+  private void detachBranch(Node node, char c) {
+    if (c < R && node.next != null) {
+      node.next[c] = null;
+    } else if (node.c == c && node.nextc != null) {
+      node.c = noChar;
+      node.nextc = null;
+    } else {
+      node.sorted.remove(c);
+      nrLabels--;
+      if (node.sorted.labels.length == 0) {
+        node.sorted = null;
+        nrSortedNodes--;
+      }
+    }
+  }
+
+  /**
+   * Add a value to the values of the node where a key ends.
+   * In a case-folded trie, the key is the case signature of the value.
+   * @param values The values of the key, or null if the key has no values yet.
+   * @param key The acceptable characters from the key.
+   * @param val The value associated with the key.
+   * @return The values of the key, including the added value.
+   */
+  ArrayList<String> addValue(ArrayList<String> values, String key, String val) {
+    if (caseFolded) {
+      if (values == null) {
+        values = new CaseFoldedValues();
+      }
+      if (((CaseFoldedValues)values).add(key, val)) {
+        nrKeys++;
+        totalKeySize += 36 + 2 * val.length() + 40 + 2 * key.length(); // The value and its signature.
+      }
+    } else {
+      if (values == null) {
+        values = new ArrayList<String>(1); // The most common case is a single value.
+      }
+      if (!values.contains(val)) {
+        nrKeys++;
+        totalKeySize += 36 + 2 * val.length(); // http://java-performance.info/overview-of-memory-saving-techniques-java/
+        values.ensureCapacity(values.size()+1);
+        values.add(val);
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Remove a value from the values of the node where a key ends.
+   * @param values The values of the key.
+   * @param key The acceptable characters from the key.
+   * @param val The value that is removed.
+   * @return The remaining values of the key, or null if there are none.
+   */
+  private ArrayList<String> removeValue(ArrayList<String> values, String key, String val) {
+    if (caseFolded) {
+      if (((CaseFoldedValues)values).remove(key, val)) {
+        nrKeys--;
+        totalKeySize -= 36 + 2 * val.length() + 40 + 2 * key.length();
+      }
+    } else if (values.remove(val)) {
+      nrKeys--;
+      totalKeySize -= 36 + 2 * val.length();
+    }
+    return values.isEmpty() ? null : values;
+  }
+
   /**
    * Returns the values associated with the given key.
    * @param key the key
@@ -501,7 +1128,16 @@ public class TrieScanner {
    * @throws NullPointerException if <tt>key</tt> is <tt>null</tt>
    */
   public ArrayList<String> get(String key) {
-    key = toTrieCharsIgnoringNonTrieChars(key);
+    return getFolded(foldKey(toTrieCharsIgnoringNonTrieChars(key)));
+  }
+
+  /**
+   * Get the values of a key that already consists of trie characters and is case-folded if the trie is.
+   * This skips the normalization that {@code get} does, for callers that have keys from the trie itself.
+   * @param key A normalized key.
+   * @return The values of the key, or null if the key is not in the trie.
+   */
+  ArrayList<String> getFolded(String key) {
     if (root == null) {
       return null;
     }
@@ -535,9 +1171,525 @@ public class TrieScanner {
     String key = toTrieCharsIgnoringNonTrieChars(originalKey);
     if (root == null) {
       root = new Node();
+      nrNodes++;
+    }
+    putIterative(root, originalKey, key, val);
+    ahoCorasick = null;
+    maxKeyLength = -1;
+    //putRecursive(root, originalKey, key, val, 0);
+  }
+
+  /**
+   * Inserts many key-value pairs into an empty trie, using the threads of an executor.
+   * The keys are prepared in parallel, and partitioned by their first character.
+   * The subtrie for each first character is built by a separate task, in a trie of its own,
+   * and the subtries are attached to the root of this trie when they are complete.
+   * This makes the same trie as putting the key-value pairs one by one, in the same order.
+   * If this trie is not empty, the key-value pairs are put one by one.
+   * @param entries The key-value pairs, as arrays of {key, value}.
+   * @param executor The executor that runs the tasks.
+   * @throws InterruptedException
+   */
+  public void putAll(List<String[]> entries, ExecutorService executor) throws InterruptedException {
+    if (root != null || getClass() != TrieScanner.class) {
+      // Subclasses have their own way of putting keys.
+      for (String[] entry : entries) {
+        put(entry[0], entry[1]);
+      }
+      return;
+    }
+    // Prepare the keys.
+    String[] keys = new String[entries.size()];
+    ArrayList<Callable<Void>> keyTasks = new ArrayList<Callable<Void>>();
+    for (int from = 0; from < keys.length; from += KEYS_PER_TASK) {
+      final int start = from;
+      final int end = Math.min(from + KEYS_PER_TASK, keys.length);
+      keyTasks.add(() -> {
+        for (int i = start; i < end; ++i) {
+          keys[i] = toTrieCharsIgnoringNonTrieChars(entries.get(i)[0]);
+        }
+        return null;
+      });
+    }
+    invokeAll(executor, keyTasks);
+    // Partition the keys by their first character, in the order in which the first characters appear.
+    HashMap<Character, Integer> partitionOfChar = new HashMap<Character, Integer>();
+    StringBuilder partitionChars = new StringBuilder();
+    int[] partitionOf = new int[keys.length];
+    int[] partitionSizes = new int[16];
+    for (int i = 0; i < keys.length; ++i) {
+      if (keys[i].isEmpty()) {
+        partitionOf[i] = -1; // The values of an empty key are in the root.
+      } else {
+        char c = caseFolded ? foldCase(keys[i].charAt(0)) : keys[i].charAt(0);
+        Integer partition = partitionOfChar.get(c);
+        if (partition == null) {
+          partition = partitionChars.length();
+          partitionOfChar.put(c, partition);
+          partitionChars.append(c);
+          if (partition == partitionSizes.length) {
+            partitionSizes = Arrays.copyOf(partitionSizes, 2 * partitionSizes.length);
+          }
+        }
+        partitionOf[i] = partition;
+        ++partitionSizes[partition];
+      }
+    }
+    int[][] partitions = new int[partitionChars.length()][];
+    for (int p = 0; p < partitions.length; ++p) {
+      partitions[p] = new int[partitionSizes[p]];
+      partitionSizes[p] = 0;
+    }
+    for (int i = 0; i < keys.length; ++i) {
+      if (partitionOf[i] >= 0) {
+        partitions[partitionOf[i]][partitionSizes[partitionOf[i]]++] = i;
+      }
+    }
+    // Build the subtries, starting with the largest partitions, so that the threads finish at about the same time.
+    Integer[] order = new Integer[partitions.length];
+    for (int p = 0; p < order.length; ++p) {
+      order[p] = p;
+    }
+    Arrays.sort(order, (a, b) -> partitions[b].length - partitions[a].length);
+    ArrayList<Callable<TrieScanner>> subtrieTasks = new ArrayList<Callable<TrieScanner>>();
+    for (int p : order) {
+      subtrieTasks.add(() -> {
+        TrieScanner subtrie = emptyCopy();
+        subtrie.caseFolded = caseFolded;
+        subtrie.root = new Node();
+        subtrie.nrNodes = 1;
+        for (int i : partitions[p]) {
+          subtrie.putIterative(subtrie.root, entries.get(i)[0], keys[i], entries.get(i)[1]);
+        }
+        return subtrie;
+      });
+    }
+    List<TrieScanner> subtries = invokeAll(executor, subtrieTasks);
+    TrieScanner[] subtrieOfPartition = new TrieScanner[partitions.length];
+    for (int p = 0; p < order.length; ++p) {
+      subtrieOfPartition[order[p]] = subtries.get(p);
+    }
+    // Stitch the subtries to the root, and put the empty keys.
+    if (keys.length > 0) {
+      root = new Node();
+      nrNodes++;
+    }
+    for (int p = 0; p < partitions.length; ++p) {
+      TrieScanner subtrie = subtrieOfPartition[p];
+      char c = partitionChars.charAt(p);
+      attachBranch(root, c, subtrie.root.branch(c));
+      nrNodes += subtrie.nrNodes - 1; // The root of the subtrie is not used.
+      nrBigNodes += subtrie.nrBigNodes;
+      nrLabels += subtrie.nrLabels;
+      nrSortedNodes += subtrie.nrSortedNodes;
+      nrKeys += subtrie.nrKeys;
+      totalKeySize += subtrie.totalKeySize;
+    }
+    for (int i = 0; i < keys.length; ++i) {
+      if (partitionOf[i] < 0) {
+        root.values = addValue(root.values, keys[i], entries.get(i)[1]);
+      }
+    }
+    ahoCorasick = null;
+    maxKeyLength = -1;
+  }
+
+  /**
+   * Make a new version of this trie, with added and removed key-value pairs.
+   * The new version shares all nodes with this trie, except the nodes on the paths of the added and removed keys,
+   * which are copied. This takes time in proportion to the number of changes, not to the size of the trie.
+   * This trie is not changed, so scans that use it are not affected, and it remains usable.
+   * The removals are done before the additions.
+   * Only a trie that has not been frozen, compressed or loaded can be updated.
+   * @param additions The key-value pairs to add, as arrays of {key, value}.
+   * @param removals The key-value pairs to remove, as arrays of {key, value}. Pairs that are not in the trie are ignored.
+   * @return The new version of the trie.
+   */
+  public TrieScanner update(List<String[]> additions, List<String[]> removals) {
+    if (getClass() != TrieScanner.class) {
+      throw new IllegalStateException("A trie that has been frozen, compressed or loaded cannot be updated.");
+    }
+    TrieScanner version = emptyCopy();
+    version.caseFolded = caseFolded;
+    version.root = root;
+    version.nrKeys = nrKeys;
+    version.totalKeySize = totalKeySize;
+    version.nrNodes = nrNodes;
+    version.nrBigNodes = nrBigNodes;
+    version.nrLabels = nrLabels;
+    version.nrSortedNodes = nrSortedNodes;
+    // The nodes of the new version that are not shared with this trie, and can be changed.
+    Set<Node> copied = Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>());
+    for (String[] removal : removals) {
+      version.removeCopying(removal[0], removal[1], copied);
+    }
+    for (String[] addition : additions) {
+      version.putCopying(addition[0], addition[1], copied);
+    }
+    return version;
+  }
+
+  /**
+   * Get a node that can be changed in a new version of a trie.
+   * @param node A node of the new version.
+   * @param copied The nodes that are not shared with the previous version.
+   * @return The node if it is not shared, otherwise a copy of it.
+   */
+  private static Node copyOnWrite(Node node, Set<Node> copied) {
+    if (copied.contains(node)) {
+      return node;
+    }
+    Node copy = node.copy();
+    copied.add(copy);
+    return copy;
+  }
+
+  /**
+   * Add a key-value pair to a new version of a trie, copying the nodes on the path of the key that are shared.
+   * @param originalKey The key.
+   * @param val The value.
+   * @param copied The nodes that are not shared with the previous version.
+   */
+  private void putCopying(String originalKey, String val, Set<Node> copied) {
+    String key = toTrieCharsIgnoringNonTrieChars(originalKey);
+    if (root == null) {
+      root = new Node();
+      nrNodes++;
+      copied.add(root);
+    } else {
+      root = copyOnWrite(root, copied);
+    }
+    Node node = root;
+    for (int d = 0; d < key.length(); ++d) {
+      char c = caseFolded ? foldCase(key.charAt(d)) : key.charAt(d);
+      if (!isTrieChar(c)) {
+        throw new IllegalArgumentException("Illegal trie character: ["+c+"] ("+((int)c)+") in key ["+originalKey+"].");
+      }
+      Node branch = node.branch(c);
+      if (branch == null) {
+        branch = addBranch(node, c);
+        copied.add(branch);
+      } else if (!copied.contains(branch)) {
+        branch = copyOnWrite(branch, copied);
+        node.replaceBranch(c, branch);
+      }
+      node = branch;
     }
-    root.putIterative(originalKey, key, val);
-    //root.putRecursive(originalKey, key, val, 0);
+    node.values = addValue(node.values, key, val);
+  }
+
+  /**
+   * Remove a key-value pair from a new version of a trie, copying the nodes on the path of the key that are shared.
+   * Nodes that have no values and no branches after the removal are removed.
+   * @param originalKey The key.
+   * @param val The value.
+   * @param copied The nodes that are not shared with the previous version.
+   */
+  private void removeCopying(String originalKey, String val, Set<Node> copied) {
+    String key = foldKey(toTrieCharsIgnoringNonTrieChars(originalKey));
+    Node[] path = new Node[key.length() + 1];
+    path[0] = root;
+    for (int d = 0; d < key.length() && path[d] != null; ++d) {
+      path[d + 1] = path[d].branch(key.charAt(d));
+    }
+    Node node = path[key.length()];
+    if (node == null || node.values == null || !node.values.contains(val)) {
+      return; // The key-value pair is not in the trie.
+    }
+    root = path[0] = copyOnWrite(root, copied);
+    for (int d = 0; d < key.length(); ++d) {
+      Node branch = copyOnWrite(path[d + 1], copied);
+      if (branch != path[d + 1]) {
+        path[d].replaceBranch(key.charAt(d), branch);
+        path[d + 1] = branch;
+      }
+    }
+    node = path[key.length()];
+    node.values = removeValue(node.values, toTrieCharsIgnoringNonTrieChars(originalKey), val);
+    for (int d = key.length(); d > 0 && path[d].values == null && path[d].nrBranches() == 0; --d) {
+      detachBranch(path[d - 1], key.charAt(d - 1));
+      nrNodes--;
+      if (path[d].next != null) {
+        nrBigNodes--;
+      }
+    }
+    if (root.values == null && root.nrBranches() == 0) {
+      // The trie is empty.
+      if (root.next != null) {
+        nrBigNodes--;
+      }
+      root = null;
+      nrNodes--;
+    }
+  }
+
+  /**
+   * Run tasks, and wait until they are all done.
+   * @param executor The executor that runs the tasks.
+   * @param tasks The tasks.
+   * @return The results of the tasks, in the order of the tasks.
+   * @throws InterruptedException
+   */
+  static <T> List<T> invokeAll(ExecutorService executor, List<Callable<T>> tasks) throws InterruptedException {
+    ArrayList<T> results = new ArrayList<T>(tasks.size());
+    for (Future<T> future : executor.invokeAll(tasks)) {
+      try {
+        results.add(future.get());
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException)e.getCause();
+        } else if (e.getCause() instanceof Error) {
+          throw (Error)e.getCause();
+        }
+        throw new IllegalStateException(e.getCause());
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Compile this trie into an immutable double-array trie, which uses much less memory and is faster to scan.
+   * The frozen trie has the same scan, get, contains and longestPrefixOf behaviour as this trie,
+   * but no keys can be added to it.
+   * This trie is not changed, and can be discarded after freezing.
+   * @return A frozen copy of this trie.
+   */
+  public TrieScanner freeze() {
+    return new FrozenTrieScanner(wordChars, noWordBefore, logger, root, nrKeys, totalKeySize, caseFolded, unicode);
+  }
+
+  /**
+   * Save this trie as a binary snapshot file, which can be loaded much faster than compiling a grammar.
+   * The snapshot contains the frozen form of this trie, and its word-characters and no-word-before characters.
+   * This trie is not changed.
+   *<p>
+   * The snapshot is written to a temporary file in the same directory, which then replaces the snapshot file in one atomic step.
+   * Other processes that load the snapshot at the same time see either the previous snapshot or the new one, never a part of it,
+   * and a previous snapshot that is mapped into memory remains valid.
+   * @param file The snapshot file.
+   * @throws IOException
+   */
+  public void save(File file) throws IOException {
+    Path target = file.getAbsoluteFile().toPath();
+    Path temporary = Files.createTempFile(target.getParent(), target.getFileName()+"-", ".tmp");
+    try {
+      frozenForm().writeSnapshot(temporary.toFile());
+      Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+  }
+
+  /**
+   * Compile this trie into an immutable double-array trie, like {@code freeze}, that is stored outside of the Java heap.
+   * The trie is kept in a direct {@code ByteBuffer}, in the same format as a snapshot file,
+   * so it does not add objects that the garbage collector must trace.
+   * The values of keys are copied to the heap when they are first matched.
+   * This trie is not changed, and can be discarded after freezing.
+   * @return A frozen copy of this trie, outside of the heap.
+   */
+  public TrieScanner freezeOffHeap() {
+    return frozenForm().offHeap();
+  }
+
+  /**
+   * The frozen form of this trie. Path-compressed tries and minimal automata are frozen through their keys.
+   * @return A frozen trie with the same keys and values as this trie.
+   */
+  private FrozenTrieScanner frozenForm() {
+    TrieScanner frozen = freeze();
+    if (!(frozen instanceof FrozenTrieScanner)) {
+      TrieScanner copy = emptyCopy();
+      copy.setCaseFolded(caseFolded);
+      forEachKey((key, keyValues) -> {
+        for (String value : keyValues) {
+          copy.put(key, value);
+        }
+      });
+      frozen = copy.freeze();
+    }
+    return (FrozenTrieScanner)frozen;
+  }
+
+  /**
+   * Load a trie from a binary snapshot file that was made by {@code save}.
+   * The file is memory-mapped, and is not parsed, so this takes very little time and heap memory.
+   * The loaded trie is frozen, and has the word-characters and no-word-before characters of the saved trie.
+   * @param file The snapshot file.
+   * @param logger
+   * @return The loaded trie.
+   * @throws IOException if the file cannot be read, or is not a complete snapshot in the current format.
+   */
+  public static TrieScanner load(File file, Logger logger) throws IOException {
+    return MappedTrieScanner.map(file, logger);
+  }
+
+  /**
+   * Compile this trie into an immutable path-compressed (radix) trie,
+   * where every chain of nodes with a single branch and no values becomes one node with a multi-character label.
+   * This uses much less memory than this trie when the keys are long, and scanning compares whole labels at a time.
+   * The path-compressed trie has the same scan, get, contains and longestPrefixOf behaviour as this trie,
+   * but no keys can be added to it.
+   * This trie is not changed, and can be discarded after compressing.
+   * @return A path-compressed copy of this trie.
+   */
+  public TrieScanner compress() {
+    return new RadixTrieScanner(wordChars, noWordBefore, logger, root, nrKeys, totalKeySize, caseFolded, unicode);
+  }
+
+  /**
+   * Make an empty trie with the same word-characters, no-word-before characters and character set as this trie.
+   * @return A new, empty trie.
+   */
+  TrieScanner emptyCopy() {
+    TrieScanner copy = new TrieScanner(wordChars, noWordBefore, logger);
+    copy.setUnicode(unicode);
+    copy.charClasses = charClasses;
+    return copy;
+  }
+
+  /**
+   * Store keys case-folded, i.e., with their letters in lower case.
+   * Each value keeps the key with its original case as its case signature.
+   * A case-insensitive scan of a case-folded trie follows one branch for every character,
+   * instead of trying both the upper-case and lower-case branches.
+   * Scans find the same matches as in a trie that is not case-folded, but {@code get} and {@code longestPrefixOf} ignore case.
+   * This must be set before keys are put into the trie.
+   * @param caseFolded
+   */
+  public void setCaseFolded(boolean caseFolded) {
+    if (!isEmpty()) {
+      throw new IllegalStateException("The case-folding of a trie cannot be changed after keys have been put into it.");
+    }
+    this.caseFolded = caseFolded;
+  }
+
+  /**
+   * @return True if keys are stored case-folded.
+   */
+  public boolean isCaseFolded() {
+    return caseFolded;
+  }
+
+  /**
+   * Accept letters and digits outside of low ASCII, such as Greek and Cyrillic, as trie characters.
+   * Latin characters with diacritics are still normalized to ASCII.
+   * Branches for these characters are kept in sorted arrays, so nodes do not need a table for all 64K characters.
+   * Texts that are scanned with a Unicode trie must be normalized with {@code normalize}.
+   * This must be set before keys are put into the trie.
+   * @param unicode
+   */
+  public void setUnicode(boolean unicode) {
+    if (!isEmpty()) {
+      throw new IllegalStateException("The character set of a trie cannot be changed after keys have been put into it.");
+    }
+    if (this.unicode != unicode) {
+      this.unicode = unicode;
+      charClasses = null;
+    }
+  }
+
+  /**
+   * @return True if letters and digits outside of low ASCII are trie characters.
+   */
+  public boolean isUnicode() {
+    return unicode;
+  }
+
+  /**
+   * Fold the case of a character, the same way for keys and scanned text.
+   * @param c
+   * @return The character in lower case if it is a letter.
+   */
+  static char foldCase(char c) {
+    return Character.isLetter(c) ? Character.toLowerCase(c) : c;
+  }
+
+  /**
+   * Fold the case of a key if this trie is case-folded.
+   * @param key
+   * @return The key as it is stored in the trie.
+   */
+  String foldKey(String key) {
+    if (!caseFolded) {
+      return key;
+    }
+    StringBuilder folded = new StringBuilder(key.length());
+    for (int i = 0; i < key.length(); ++i) {
+      folded.append(foldCase(key.charAt(i)));
+    }
+    return folded.toString();
+  }
+
+  /**
+   * Get the values of a key with its original case, as {@code forEachKey} gives them.
+   * In a case-folded trie, these are the values of the case signature of the key, otherwise they are the values of the key.
+   * @param key A key as it was put into the trie, consisting of trie characters.
+   * @return The values of the key, or null if the key is not in the trie.
+   */
+  ArrayList<String> getOriginal(String key) {
+    ArrayList<String> values = getFolded(foldKey(key));
+    if (values instanceof CaseFoldedValues) {
+      CaseFoldedValues folded = (CaseFoldedValues)values;
+      int i = folded.signatures.indexOf(key);
+      return i >= 0 ? folded.signatureValues.get(i) : null;
+    }
+    return values;
+  }
+
+  /**
+   * Perform an action for a key in the trie.
+   * The values of a case-folded key are given to the action for each case signature.
+   * @param key The key as it is stored in the trie.
+   * @param values The values of the key.
+   * @param action Receives each original key with its values.
+   */
+  static void acceptKey(String key, ArrayList<String> values, BiConsumer<String, ArrayList<String>> action) {
+    if (values instanceof CaseFoldedValues) {
+      CaseFoldedValues folded = (CaseFoldedValues)values;
+      for (int i = 0; i < folded.signatures.size(); ++i) {
+        action.accept(folded.signatures.get(i), folded.signatureValues.get(i));
+      }
+    } else {
+      action.accept(key, values);
+    }
+  }
+
+  /**
+   * Perform an action for every key in the trie, in increasing order of keys.
+   * In a case-folded trie, the keys have their original case.
+   * @param action Receives each key with its values.
+   */
+  void forEachKey(BiConsumer<String, ArrayList<String>> action) {
+    if (root != null) {
+      root.forEachKey(new StringBuilder(), action);
+    }
+  }
+
+  /**
+   * Get the Aho-Corasick automaton for the keys in this trie.
+   * The automaton is made when it is first needed, and made again after keys have been added to the trie.
+   * @return The Aho-Corasick automaton for this trie.
+   */
+  public synchronized AhoCorasickAutomaton ahoCorasick() {
+    if (ahoCorasick == null) {
+      ahoCorasick = new AhoCorasickAutomaton(this);
+    }
+    return ahoCorasick;
+  }
+
+  /**
+   * Get the length of the longest key in this trie, which is the highest number of steps in a match.
+   * This is determined when it is first needed, and again after keys have been added to the trie.
+   * @return The length of the longest key, or 0 if the trie is empty.
+   */
+  public synchronized int maxKeyLength() {
+    if (maxKeyLength < 0) {
+      int[] longest = new int[1];
+      forEachKey((key, keyValues) -> longest[0] = Math.max(longest[0], key.length()));
+      maxKeyLength = longest[0];
+    }
+    return maxKeyLength;
   }
 
   /**
@@ -561,7 +1713,7 @@ public class TrieScanner {
    * @return The estimated size in bytes.
    */
   public long sizeInBytes() {
-    return nrNodes * 32L + nrBigNodes * (12L + R * 8L) + totalKeySize;
+    return nrNodes * NODE_SIZE + nrBigNodes * (12L + R * 8L) + nrSortedNodes * 48L + nrLabels * 10L + totalKeySize;
   }
 
   /**
@@ -586,7 +1738,7 @@ public class TrieScanner {
     if (root == null) {
       return "";
     }
-    int length = root.longestPrefixOf(query, 0, 0);
+    int length = root.longestPrefixOf(foldKey(query), 0, 0);
     return query.substring(0, length);
   }
 
@@ -599,17 +1751,239 @@ public class TrieScanner {
    * @return A collection of ScanResult which is null if there is no match.
    * Requiring that normalizedText is already normalized, calling this function in a loop on different positions in the same text
    * is a lot more efficient than normalizing on each scan.
+   * This allocates a cursor and results for every call; use {@code scan(normalizedText, start, caseInsensitive, cursor)} in loops.
    */
   public ArrayList<ScanResult> scan(CharSequence normalizedText, int start, boolean caseInsensitive) {
-    int textLength = normalizedText.length();
-    if (root == null) {
+    ScanCursor cursor = new ScanCursor();
+    if (!scan(normalizedText, start, caseInsensitive, cursor)) {
       return null;
     }
-    ArrayList<ScanResult> results =
-      root.scan(normalizedText, start, start, textLength,
-        caseInsensitive, new StringBuilder(), new StringBuilder(), logger
-      );
+    ArrayList<ScanResult> results = new ArrayList<ScanResult>(cursor.size());
+    CharSequence matchedText = normalizedText.subSequence(cursor.start(), cursor.end());
+    for (int i = 0; i < cursor.size(); ++i) {
+      results.add(new ScanResult(cursor.values(i), cursor.start(), cursor.end(), matchedText, cursor.matchedKey(i)));
+    }
     return results;
   }
 
-}
\ No newline at end of file
+  /**
+   * Find the longest substring in a text, starting at a specified position, that matches a key in the trie.
+   * The trie is walked depth-first, with an explicit stack in the cursor, so scanning does not allocate memory.
+   * Whitespace must be normalized in {@code normalizedText}.
+   * All sequences of whitespace and ignored characters will be matched like a single space.
+   * If the scan is case-insensitive there can be multiple results with keys that differ in case.
+   * @param normalizedText The text to scan. This must be normalized to trie characters.
+   * @param start The starting position.
+   * @param caseInsensitive Indicates that matching is case-insensitive.
+   * @param cursor Receives the results of the scan.
+   * @return True if there is a match. The cursor contains the results, which all have the same start and end.
+   */
+  public boolean scan(CharSequence normalizedText, int start, boolean caseInsensitive, ScanCursor cursor) {
+    cursor.reset(start);
+    if (!root(cursor)) {
+      return false;
+    }
+    int end = normalizedText.length();
+    int depth = 0;
+    int stepsKnown = 0; // The depths for which stepChar and stepEnd are known. They only depend on the text.
+    int current = start;
+    cursor.variant[0] = 0;
+    while (depth >= 0) {
+      if (cursor.variant[depth] == 0) {
+        // First visit at this depth. The text has been matched until current.
+        addResults(values(cursor, depth), normalizedText, current, depth, caseInsensitive, cursor);
+        if (depth == stepsKnown) {
+          cursor.ensureDepth(depth + 1);
+          step(normalizedText, current, end, cursor, depth);
+          ++stepsKnown;
+        }
+      }
+      // Try the next character variant at this depth.
+      char c = variant(cursor.stepChar[depth], cursor.variant[depth], caseInsensitive);
+      ++cursor.variant[depth];
+      if (c == noChar) {
+        // All variants have been tried at this depth.
+        --depth;
+        current = depth > 0 ? cursor.stepEnd[depth - 1] : start;
+      } else if (branch(cursor, depth, c)) {
+        // Match one character and move deeper into the trie.
+        cursor.walk(depth, c);
+        current = cursor.stepEnd[depth];
+        ++depth;
+        cursor.variant[depth] = 0;
+      }
+    }
+    return cursor.size() > 0;
+  }
+
+  /**
+   * Add the results for the values where a walk through the trie has arrived.
+   * The match is valid if there are values and the match is not followed by a noWordBefore character.
+   * @param values The values, or null if no key ends here.
+   * @param normalizedText The text to scan.
+   * @param current The position in the text after the match.
+   * @param depth The number of steps of the match. The key of the match is in {@code cursor.key}.
+   * @param caseInsensitive Indicates that matching is case-insensitive.
+   * @param cursor Receives the results.
+   */
+  void addResults(ArrayList<String> values, CharSequence normalizedText, int current, int depth, boolean caseInsensitive, ScanCursor cursor) {
+    if (values != null && ( current == normalizedText.length() || !continuesWord(normalizedText.charAt(current)) ) ) {
+      if (values instanceof CaseFoldedValues) {
+        // Use the case signatures to find the keys that match, and if they match exactly.
+        CaseFoldedValues folded = (CaseFoldedValues)values;
+        for (int i = 0; i < folded.signatures.size(); ++i) {
+          // The walk has only seen folded characters, so compare the signature with the steps.
+          String signature = folded.signatures.get(i);
+          boolean exactCase = matchesSteps(signature, cursor);
+          if (caseInsensitive || exactCase) {
+            boolean exactChars = !cursor.noise[depth] && (exactCase || matchesStepsIgnoringCase(signature, cursor));
+            cursor.add(current, folded.signatureValues.get(i), signature, exactCase, exactChars);
+          }
+        }
+      } else {
+        // Only a key that differs in case from the text must be compared again, which is rare for exact matches.
+        boolean exactCase = !cursor.otherCase[depth];
+        boolean exactChars = !cursor.noise[depth] && (exactCase || matchesStepsIgnoringCase(cursor.key, depth, cursor));
+        cursor.add(current, values, cursor.key, depth, exactCase, exactChars);
+      }
+    }
+  }
+
+  /**
+   * Determine a character that is tried for a step in the text.
+   * @param ch The character of the step, or noChar if there is none.
+   * @param variant The number of characters that have already been tried for the step.
+   * @param caseInsensitive Indicates that matching is case-insensitive.
+   * @return The next character to try, or noChar if all characters have been tried.
+   */
+  char variant(char ch, int variant, boolean caseInsensitive) {
+    if (ch == noChar) {
+      return noChar;
+    } else if (caseFolded) {
+      // There is only one branch for upper-case and lower-case letters.
+      return variant == 0 ? foldCase(ch) : noChar;
+    } else if (caseInsensitive && Character.isLetter(ch)) {
+      // Do a case-insensitive match if the character has case; try upper-case first.
+      if (variant == 0) {
+        return Character.toUpperCase(ch);
+      } else if (variant == 1 && Character.toLowerCase(ch) != Character.toUpperCase(ch)) {
+        return Character.toLowerCase(ch);
+      } else {
+        return noChar;
+      }
+    } else {
+      return variant == 0 ? ch : noChar;
+    }
+  }
+
+  /**
+   * Determine the character to match at a depth, which is a trie character or a space for a sequence of ignored characters.
+   * @param normalizedText The text to scan.
+   * @param current The position in the text that holds the next character to scan.
+   * @param end The position one beyond the last position in the text.
+   * @param cursor Receives the character in {@code stepChar}, and the position after it in {@code stepEnd}.
+   * @param depth The depth in the trie.
+   */
+  void step(CharSequence normalizedText, int current, int end, ScanCursor cursor, int depth) {
+    if (current >= end) {
+      cursor.stepChar[depth] = noChar;
+      return;
+    }
+    CharClasses classes = charClasses();
+    char ch = normalizedText.charAt(current);
+    char textChar = ch;
+    // NextPos is what current will become if there is a match.
+    int nextPos = current + 1;
+    // Match sequences of whitespace and ignored characters as one space.
+    while ( nextPos < end && classes.is(ch, CharClasses.SEPARATOR) ) {
+      ch = normalizedText.charAt(nextPos);
+      nextPos = nextPos + 1;
+    }
+    // If there were ignored characters and / or whitespace, match them as if it was one space.
+    if (nextPos > current + 1) {
+      ch = ' ';
+      nextPos = nextPos - 1;
+    }
+    cursor.stepChar[depth] = classes.is(ch, CharClasses.TRIE_CHAR) ? ch : noChar;
+    cursor.stepEnd[depth] = nextPos;
+    // The step is noise if it does not match exactly one character of the text as it is.
+    cursor.noise[depth + 1] = cursor.noise[depth] || nextPos > current + 1 || ch != textChar;
+  }
+
+  /**
+   * Check if a key has the same characters, including case, as the steps that have been walked.
+   * @param key The key, which has as many characters as there are steps.
+   * @param cursor Holds the steps.
+   * @return True if the key matches the steps exactly.
+   */
+  private static boolean matchesSteps(String key, ScanCursor cursor) {
+    for (int d = 0; d < key.length(); ++d) {
+      if (key.charAt(d) != cursor.stepChar[d]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Check if a key has the same characters, ignoring case, as the steps that have been walked.
+   * @param key The key, which has as many characters as there are steps.
+   * @param cursor Holds the steps.
+   * @return True if the key matches the steps ignoring case.
+   */
+  private static boolean matchesStepsIgnoringCase(String key, ScanCursor cursor) {
+    for (int d = 0; d < key.length(); ++d) {
+      if (!equalsIgnoringCase(key.charAt(d), cursor.stepChar[d])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean matchesStepsIgnoringCase(char[] key, int keyLength, ScanCursor cursor) {
+    for (int d = 0; d < keyLength; ++d) {
+      if (!equalsIgnoringCase(key[d], cursor.stepChar[d])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean equalsIgnoringCase(char c, char s) {
+    return c == s || Character.toLowerCase(c) == Character.toLowerCase(s);
+  }
+
+  /**
+   * Start walking the trie at the root.
+   * @param cursor Receives the root at depth 0.
+   * @return False if the trie is empty.
+   */
+  boolean root(ScanCursor cursor) {
+    cursor.nodes[0] = root;
+    return root != null;
+  }
+
+  /**
+   * Follow the branch for a character while walking the trie.
+   * @param cursor Holds the path that has been walked.
+   * @param depth The depth of the current node in the path.
+   * @param c The character for which we seek a branch.
+   * @return True if there is a branch. Its end has been put in the cursor at depth + 1.
+   */
+  boolean branch(ScanCursor cursor, int depth, char c) {
+    Node branch = cursor.nodes[depth].branch(c);
+    cursor.nodes[depth + 1] = branch;
+    return branch != null;
+  }
+
+  /**
+   * The values at a depth while walking the trie.
+   * @param cursor Holds the path that has been walked.
+   * @param depth The depth of the node in the path.
+   * @return The values of the node, or null if no key ends there.
+   */
+  ArrayList<String> values(ScanCursor cursor, int depth) {
+    return cursor.nodes[depth].values;
+  }
+
+}
@@ -0,0 +1,353 @@
+package com.rakensi.xml.ner;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+import org.greenmercury.smax.Balancing;
+
+/**
+ * Inserts markup around named entities in an XML document that is read and written as a stream of StAX events,
+ * without building the document in memory.
+ * This does the same as {@code NamedEntityRecognition.scan(SmaxDocument)} for documents that are too large for a SMAX document.
+ *<p>
+ * The text of the document (or of each match-within element) is scanned as one text, across element boundaries,
+ * by {@code TrieNER.scan(Reader, ...)}. The reader takes the text from the events in the input,
+ * and keeps the other events in a queue, at the position in the text where they occur.
+ * The events are written when the scan has passed their position, with the markup for matches inserted between them.
+ * Memory use depends on the window of the scan, and on the markup in that window, but not on the size of the document.
+ *<p>
+ * A match element is balanced against the tags within the match, like {@code SmaxDocument.insertMarkup} does,
+ * but only with the tags that are in the window:
+ * <ul>
+ *   <li>If the tags within the match are balanced, the match element is inside the elements that start or end at the match boundaries.</li>
+ *   <li>OUTER balancing ends the match element after the end tag of an element that starts within the match,
+ *       if that end tag is in the window and no element ends within the match that started before it.
+ *       Otherwise, the match element is balanced like INNER.</li>
+ *   <li>INNER and START balancing end the match element before the first tag within the match that is not balanced.</li>
+ *   <li>END balancing starts the match element after the last tag within the match that is not balanced.</li>
+ * </ul>
+ *
+ * @author Rakensi
+ */
+final class XmlStreamTransformer {
+
+  private final TrieNER triener; // Scans the text, and calls match and noMatch.
+  private final int caseInsensitiveMinLength;
+  private final int fuzzyMinLength;
+  private final Balancing balancing;
+  private final String matchWithinElement;
+  private final String matchWithinNamespace;
+  private final QName matchElementName;
+  private final List<Namespace> matchElementNamespaces; // The namespace declaration on the match element.
+  private final String matchAttribute;
+  private final XMLEventFactory eventFactory = XMLEventFactory.newInstance();
+  private XMLEventReader input;
+  private XMLEventWriter output;
+  // The state of the scan of a text.
+  private final ArrayList<Pending> queue = new ArrayList<Pending>(); // The events that have not been written, in document order.
+  private int written; // The position in the text up to which the text has been written.
+  private CharSequence text; // The text that is scanned, as it was given to match or noMatch.
+
+  /**
+   * An event that has not been written, at a position in the text.
+   */
+  private static final class Pending {
+    private final int position;
+    private final XMLEvent event;
+    private Pending(int position, XMLEvent event) {
+      this.position = position;
+      this.event = event;
+    }
+  }
+
+  /**
+   * Make a transformer.
+   * @param trie The trie that contains the named entities.
+   * @param wordChars See {@code TrieNER}.
+   * @param noWordBefore See {@code TrieNER}.
+   * @param noWordAfter See {@code TrieNER}.
+   * @param caseInsensitiveMinLength See {@code TrieNER.scan}.
+   * @param fuzzyMinLength See {@code TrieNER.scan}.
+   * @param balancing The balancing strategy for match elements.
+   * @param matchWithinElement If not null, the local name of the elements in which text is matched.
+   * @param matchWithinNamespace The namespace URI of the matchWithinElement elements, or null.
+   * @param matchElementName The name of the match element, which may have a prefix.
+   * @param matchElementNamespaceUri The namespace URI of the match element, or null.
+   * @param matchAttribute The name of the attribute of the match element that holds the ids.
+   * @param logger
+   */
+  XmlStreamTransformer(TrieScanner trie, String wordChars, String noWordBefore, String noWordAfter,
+      int caseInsensitiveMinLength, int fuzzyMinLength, Balancing balancing,
+      String matchWithinElement, String matchWithinNamespace,
+      String matchElementName, String matchElementNamespaceUri, String matchAttribute, Logger logger) {
+    this.triener = new TrieNER(wordChars, noWordBefore, noWordAfter, logger) {
+      @Override
+      public void match(CharSequence text, int start, int end, List<String> ids) {
+        try {
+          XmlStreamTransformer.this.match(text, start, end, ids);
+        } catch (XMLStreamException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+      @Override
+      public void noMatch(CharSequence text, int start, int end) {
+        try {
+          XmlStreamTransformer.this.text = text;
+          flush(end, false);
+        } catch (XMLStreamException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    };
+    this.triener.setTrie(trie);
+    this.caseInsensitiveMinLength = caseInsensitiveMinLength;
+    this.fuzzyMinLength = fuzzyMinLength;
+    this.balancing = balancing;
+    this.matchWithinElement = matchWithinElement;
+    this.matchWithinNamespace = matchWithinNamespace;
+    int colon = matchElementName.indexOf(':');
+    this.matchElementName = colon < 0
+      ? new QName(matchElementNamespaceUri == null ? "" : matchElementNamespaceUri, matchElementName)
+      : new QName(matchElementNamespaceUri, matchElementName.substring(colon + 1), matchElementName.substring(0, colon));
+    this.matchElementNamespaces = matchElementNamespaceUri == null || matchElementNamespaceUri.isEmpty()
+      ? new ArrayList<Namespace>()
+      : Arrays.asList(eventFactory.createNamespace(this.matchElementName.getPrefix(), matchElementNamespaceUri));
+    this.matchAttribute = matchAttribute;
+  }
+
+  /**
+   * Read an XML document, and write it with markup around the named entities.
+   * @param in The XML document.
+   * @param out Receives the XML document with markup, in UTF-8.
+   * @throws XMLStreamException if the document is not well-formed XML, or cannot be written.
+   * @throws IOException if the document cannot be read.
+   */
+  void transform(InputStream in, OutputStream out) throws XMLStreamException, IOException {
+    XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+    inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    input = inputFactory.createXMLEventReader(in);
+    // The events in the input have their namespace declarations, and the match element declares its namespace.
+    output = XMLOutputFactory.newInstance().createXMLEventWriter(out, "UTF-8");
+    try {
+      if (matchWithinElement == null) {
+        scanText(0);
+      } else {
+        while (input.hasNext()) {
+          XMLEvent event = input.nextEvent();
+          output.add(event);
+          if (event.isStartElement() && isMatchWithinElement(event.asStartElement())) {
+            scanText(1);
+          }
+        }
+      }
+      output.flush();
+    } catch (IllegalStateException e) {
+      if (e.getCause() instanceof XMLStreamException) {
+        throw (XMLStreamException)e.getCause();
+      }
+      throw e;
+    } finally {
+      input.close();
+      output.close();
+    }
+  }
+
+  private boolean isMatchWithinElement(StartElement element) {
+    String elementNsURI = element.getName().getNamespaceURI();
+    return matchWithinElement.equals(element.getName().getLocalPart()) &&
+           ( (matchWithinNamespace == null || matchWithinNamespace.isEmpty()) && (elementNsURI == null || elementNsURI.isEmpty()) ||
+             matchWithinNamespace != null && matchWithinNamespace.equals(elementNsURI)
+           );
+  }
+
+  /**
+   * Scan the text in the following events, until the end of the current element or the document, and write the events.
+   * @param depth The number of open elements in which the text is, or 0 for the whole document.
+   */
+  private void scanText(int depth) throws XMLStreamException, IOException {
+    queue.clear();
+    written = 0;
+    text = "";
+    triener.scan(new EventTextReader(depth), caseInsensitiveMinLength, fuzzyMinLength);
+    flush(Integer.MAX_VALUE, true);
+  }
+
+  /**
+   * Insert a match element. The text before the match has been given to noMatch.
+   */
+  private void match(CharSequence text, int start, int end, List<String> ids) throws XMLStreamException {
+    this.text = text;
+    flush(start, true);
+    // Find the tags within the match that are not balanced. The queue now starts after the start of the match.
+    int firstUnbalanced = -1; // The first unbalanced tag in the queue.
+    int lastUnbalanced = -1; // The last unbalanced tag in the queue.
+    boolean unbalancedEnd = false; // There is an end tag of an element that started before the match.
+    int[] open = new int[4]; // The indexes of the start tags in the match that have not been closed, as a stack.
+    int nrOpen = 0;
+    int i = 0;
+    for (; i < queue.size() && queue.get(i).position < end; ++i) {
+      XMLEvent event = queue.get(i).event;
+      if (event.isStartElement()) {
+        if (nrOpen == open.length) {
+          open = Arrays.copyOf(open, 2 * nrOpen);
+        }
+        open[nrOpen++] = i;
+      } else if (event.isEndElement()) {
+        if (nrOpen > 0) {
+          --nrOpen;
+        } else {
+          unbalancedEnd = true;
+          firstUnbalanced = firstUnbalanced < 0 ? i : firstUnbalanced;
+          lastUnbalanced = i;
+        }
+      }
+    }
+    int atEnd = i; // The first event at or after the end of the match.
+    if (nrOpen > 0) {
+      firstUnbalanced = firstUnbalanced < 0 ? open[0] : Math.min(firstUnbalanced, open[0]);
+      lastUnbalanced = Math.max(lastUnbalanced, open[nrOpen - 1]);
+    }
+    int startIndex = -1; // Where the start tag of the match element goes in the queue, or -1 to write it now.
+    int endIndex = atEnd; // Where the end tag of the match element goes in the queue.
+    int endPosition = end;
+    if (firstUnbalanced >= 0) {
+      int outerEnd = balancing == Balancing.OUTER && !unbalancedEnd ? endTagIndex(open[0], atEnd) : -1;
+      if (outerEnd >= 0) {
+        endIndex = outerEnd + 1;
+        endPosition = queue.get(outerEnd).position;
+      } else if (balancing == Balancing.END) {
+        startIndex = lastUnbalanced + 1;
+      } else {
+        endIndex = firstUnbalanced;
+        endPosition = queue.get(firstUnbalanced).position;
+      }
+    }
+    ArrayList<Attribute> attributes = new ArrayList<Attribute>(1);
+    attributes.add(eventFactory.createAttribute(matchAttribute, String.join("\t", ids)));
+    XMLEvent matchStart = eventFactory.createStartElement(matchElementName, attributes.iterator(), matchElementNamespaces.iterator());
+    XMLEvent matchEnd = eventFactory.createEndElement(matchElementName, null);
+    queue.add(endIndex, new Pending(endPosition, matchEnd));
+    if (startIndex < 0) {
+      output.add(matchStart);
+    } else {
+      queue.add(startIndex, new Pending(queue.get(startIndex - 1).position, matchStart));
+    }
+    flush(end, false);
+  }
+
+  /**
+   * Find the end tag of an element in the queue.
+   * @param startIndex The index of the start tag of the element.
+   * @param from The index from where the end tag is searched.
+   * @return The index of the end tag, or -1 if it is not in the queue.
+   */
+  private int endTagIndex(int startIndex, int from) {
+    int depth = 0;
+    for (int i = startIndex; i < queue.size(); ++i) {
+      XMLEvent event = queue.get(i).event;
+      if (event.isStartElement()) {
+        ++depth;
+      } else if (event.isEndElement() && --depth == 0) {
+        return i >= from ? i : -1;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Write the text and the events up to a position in the text.
+   * @param position The position in the text.
+   * @param inclusive Also write the events at the position.
+   */
+  private void flush(int position, boolean inclusive) throws XMLStreamException {
+    int n = 0;
+    while (n < queue.size() && (queue.get(n).position < position || inclusive && queue.get(n).position == position)) {
+      Pending pending = queue.get(n++);
+      writeText(pending.position);
+      output.add(pending.event);
+    }
+    queue.subList(0, n).clear();
+    if (position < Integer.MAX_VALUE) {
+      writeText(position);
+    }
+  }
+
+  private void writeText(int position) throws XMLStreamException {
+    if (position > written) {
+      output.add(eventFactory.createCharacters(text.subSequence(written, position).toString()));
+      written = position;
+    }
+  }
+
+  /**
+   * Reads the text in the events of the input, until the end of an element or of the document.
+   * Other events are put into the queue, at their position in the text.
+   */
+  private class EventTextReader extends Reader {
+
+    private final boolean withinElement; // Read until the end of an element, instead of the end of the document.
+    private int depth; // The number of open elements.
+    private boolean atEnd = false;
+    private String characters = ""; // The characters of the last text event.
+    private int next = 0; // The next character in characters.
+    private int position = 0; // The position in the text of the next character.
+
+    private EventTextReader(int depth) {
+      this.withinElement = depth > 0;
+      this.depth = depth;
+    }
+
+    @Override
+    public int read(char[] buffer, int offset, int length) throws IOException {
+      try {
+        while (next == characters.length()) {
+          if (atEnd || !input.hasNext()) {
+            return -1;
+          }
+          XMLEvent event = input.nextEvent();
+          if (event.isCharacters()) {
+            characters = event.asCharacters().getData();
+            next = 0;
+          } else {
+            queue.add(new Pending(position, event));
+            if (event.isStartElement()) {
+              ++depth;
+            } else if (event.isEndElement() && --depth == 0 && withinElement) {
+              atEnd = true;
+            }
+          }
+        }
+        int n = Math.min(length, characters.length() - next);
+        characters.getChars(next, next + n, buffer, offset);
+        next += n;
+        position += n;
+        return n;
+      } catch (XMLStreamException e) {
+        throw new IOException(e);
+      }
+    }
+
+    @Override
+    public void close() {
+    }
+
+  }
+
+}
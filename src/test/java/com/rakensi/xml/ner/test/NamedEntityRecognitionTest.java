@@ -2,16 +2,42 @@ package com.rakensi.xml.ner.test;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.net.URL;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.greenmercury.smax.SmaxDocument;
 import org.greenmercury.smax.convert.XmlString;
 import org.junit.jupiter.api.Test;
 import org.w3c.dom.Element;
 
+import com.rakensi.xml.ner.AhoCorasickAutomaton;
+import com.rakensi.xml.ner.DawgTrieScanner;
 import com.rakensi.xml.ner.Logger;
 import com.rakensi.xml.ner.NamedEntityRecognition;
+import com.rakensi.xml.ner.NormalizedText;
+import com.rakensi.xml.ner.StringUtils;
+import com.rakensi.xml.ner.TrieCache;
+import com.rakensi.xml.ner.TrieNER;
+import com.rakensi.xml.ner.TrieScanner;
 
 class NamedEntityRecognitionTest
 {
@@ -88,6 +114,936 @@ class NamedEntityRecognitionTest
     assertEquals(expectedOutput, output);
   }
 
+  @Test
+  void test_ScanCursor() throws Exception
+  {
+    TrieScanner trie = new TrieScanner("", "", logger);
+    // A key that is much deeper than a recursive walk could go, and than the buffers of a new cursor.
+    StringBuilder deep = new StringBuilder();
+    for (int i = 0; i < 100000; ++i) {
+      deep.append(i % 10 == 9 ? ' ' : (char)('a' + i % 7));
+    }
+    String deepKey = deep.toString().trim();
+    trie.put(deepKey, "deep");
+    // More case variants of one key than a new cursor has results for.
+    String[] variants = {"abc", "Abc", "aBc", "abC", "ABc", "AbC", "aBC", "ABC"};
+    for (String variant : variants) {
+      trie.put(variant, variant);
+    }
+    TrieScanner.ScanCursor cursor = new TrieScanner.ScanCursor();
+    String text = "x " + deepKey + " abc";
+    CharSequence normalizedText = trie.normalize(text);
+    assertTrue(trie.scan(normalizedText, 2, false, cursor));
+    assertEquals(1, cursor.size());
+    assertEquals(2, cursor.start());
+    assertEquals(2 + deepKey.length(), cursor.end());
+    assertEquals(deepKey, cursor.matchedKey(0));
+    assertEquals(Arrays.asList("deep"), cursor.values(0));
+    // The same cursor, reused for a position without a match and then for many results.
+    assertFalse(trie.scan(normalizedText, 0, false, cursor));
+    assertEquals(0, cursor.size());
+    int abc = text.length() - 3;
+    assertTrue(trie.scan(normalizedText, abc, true, cursor));
+    assertEquals(variants.length, cursor.size());
+    List<String> keys = new ArrayList<String>();
+    for (int i = 0; i < cursor.size(); ++i) {
+      assertEquals(Arrays.asList(cursor.matchedKey(i)), cursor.values(i));
+      keys.add(cursor.matchedKey(i));
+    }
+    assertTrue(keys.containsAll(Arrays.asList(variants)));
+    // The results agree with those of the scan that returns a list.
+    List<TrieScanner.ScanResult> results = trie.scan(normalizedText, abc, true);
+    assertEquals(cursor.size(), results.size());
+    for (int i = 0; i < results.size(); ++i) {
+      assertEquals(cursor.matchedKey(i), results.get(i).matchedKey);
+      assertEquals(cursor.values(i), results.get(i).values);
+      assertEquals(cursor.end(), results.get(i).end);
+    }
+  }
+
+  @Test
+  void test_FanOut() throws Exception
+  {
+    // Nodes with a single branch, a few sorted branches, a table of R branches, and more branches than R.
+    StringBuilder alphabet = new StringBuilder("0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ");
+    for (char c = 'α'; c <= 'ω'; ++c) {
+      alphabet.append(c);
+    }
+    for (char c = 'А'; c <= 'я'; ++c) {
+      alphabet.append(c);
+    }
+    for (int fanOut : new int[] {1, 2, 7, 8, 9, 62, alphabet.length()}) {
+      TrieScanner trie = new TrieScanner("", "", logger);
+      trie.setUnicode(true);
+      trie.put("q", "q");
+      StringBuilder text = new StringBuilder();
+      for (int i = 0; i < fanOut; ++i) {
+        // Put the branches in a mixed order, so that sorted branches are inserted in the middle.
+        String key = "q" + alphabet.charAt((i * 37) % fanOut);
+        trie.put(key, key);
+        text.append(key).append(' ');
+      }
+      for (TrieScanner version : new TrieScanner[] {trie, trie.freeze(), trie.compress()}) {
+        String at = fanOut + " branches in " + version.getClass().getSimpleName();
+        assertEquals(fanOut + 1, version.nrKeys(), at);
+        assertEquals(Arrays.asList("q"), version.get("q"), at);
+        assertNull(version.get("q0x"), at);
+        assertNull(version.get("qΩ"), at);
+        TrieScanner.ScanCursor cursor = new TrieScanner.ScanCursor();
+        CharSequence normalizedText = version.normalize(text);
+        for (int i = 0; i < fanOut; ++i) {
+          String key = "q" + alphabet.charAt(i);
+          assertEquals(Arrays.asList(key), version.get(key), at);
+          assertTrue(version.scan(normalizedText, 3 * i, false, cursor), at);
+          assertEquals(text.substring(3 * i, 3 * i + 2), cursor.matchedKey(0), at);
+          assertEquals(3 * i + 2, cursor.end(), at);
+        }
+      }
+    }
+  }
+
+  @Test
+  void test_Freeze() throws Exception
+  {
+    String grammar =
+      "eg1 <- e.g." + "\n" +
+      "eg2 <- e g" + "\n" +
+      "eg3 <- eg" + "\n" +
+      "1 <- A A\tB A" + "\n" +
+      "2 <- A B\tB B" + "\n" +
+      "3 <- A C\tB C" + "\n";
+    Map<String, String> options = new HashMap<String, String>();
+    options.put("fuzzy-min-length", "1");
+    options.put("freeze", "true");
+    NamedEntityRecognition ner = new NamedEntityRecognition(grammar, options, logger);
+    SmaxDocument document = XmlString.toSmax("<r>A   A  e.g. e g eg  B A B B B C</r>");
+    ner.scan(document);
+    String output = XmlString.fromSmax(document).replaceAll("<\\?.*?\\?>", "").replaceAll("\\s*xmlns:.+?=\".*?\"", "");
+    String expectedOutput = "<r><fn:match id=\"1\">A   A</fn:match>  <fn:match id=\"eg2\">e.g</fn:match>. <fn:match id=\"eg2\">e g</fn:match> <fn:match id=\"eg1&#9;eg3\">eg</fn:match>  <fn:match id=\"1\">B A</fn:match> <fn:match id=\"2\">B B</fn:match> <fn:match id=\"3\">B C</fn:match></r>";
+    assertEquals(expectedOutput, output);
+  }
+
+  @Test
+  void test_FreezeCopiesValues() throws Exception
+  {
+    for (boolean caseFolded : new boolean[] {false, true}) {
+      TrieScanner trie = new TrieScanner("", "", logger);
+      trie.setCaseFolded(caseFolded);
+      trie.put("NASA", "nasa");
+      TrieScanner frozen = trie.freeze();
+      // Puts into the source trie after freezing do not change the frozen trie.
+      trie.put("NASA", "agency");
+      trie.put("Nasa", "Nasa");
+      assertEquals(Arrays.asList("nasa"), frozen.get("NASA"));
+      TrieScanner.ScanCursor cursor = new TrieScanner.ScanCursor();
+      assertTrue(frozen.scan(frozen.normalize("Nasa"), 0, true, cursor));
+      assertEquals(1, cursor.size());
+      assertEquals("NASA", cursor.matchedKey(0));
+      assertEquals(Arrays.asList("nasa"), cursor.values(0));
+    }
+  }
+
+  @Test
+  void test_AhoCorasick() throws Exception
+  {
+    String grammar =
+      "a <- a" + "\n" +
+      "b <- b" + "\n" +
+      "ab <- a b" + "\n" +
+      "abc <- a b c" + "\n" +
+      "bcd <- b c d" + "\n";
+    Map<String, String> options = new HashMap<String, String>();
+    options.put("aho-corasick", "true");
+    NamedEntityRecognition ner = new NamedEntityRecognition(grammar, options, logger);
+    SmaxDocument document = XmlString.toSmax("<r>a a b a b c d b c d</r>");
+    ner.scan(document);
+    String output = XmlString.fromSmax(document).replaceAll("<\\?.*?\\?>", "").replaceAll("\\s*xmlns:.+?=\".*?\"", "");
+    String expectedOutput = "<r><fn:match id=\"a\">a</fn:match> <fn:match id=\"ab\">a b</fn:match> <fn:match id=\"abc\">a b c</fn:match> d <fn:match id=\"bcd\">b c d</fn:match></r>";
+    assertEquals(expectedOutput, output);
+  }
+
+  @Test
+  void test_CaseFolded() throws Exception
+  {
+    String grammar =
+      "nasa <- NASA" + "\n" +
+      "Nasa <- Nasa" + "\n" +
+      "agency <- space agency" + "\n";
+    Map<String, String> options = new HashMap<String, String>();
+    options.put("case-folded", "true");
+    options.put("case-insensitive-min-length", "5");
+    NamedEntityRecognition ner = new NamedEntityRecognition(grammar, options, logger);
+    SmaxDocument document = XmlString.toSmax("<r>NASA nasa Nasa SPACE AGENCY</r>");
+    ner.scan(document);
+    String output = XmlString.fromSmax(document).replaceAll("<\\?.*?\\?>", "").replaceAll("\\s*xmlns:.+?=\".*?\"", "");
+    String expectedOutput = "<r><fn:match id=\"nasa\">NASA</fn:match> nasa <fn:match id=\"Nasa\">Nasa</fn:match> <fn:match id=\"agency\">SPACE AGENCY</fn:match></r>";
+    assertEquals(expectedOutput, output);
+  }
+
+  @Test
+  void test_Unicode() throws Exception
+  {
+    String grammar =
+      "athens <- Αθήνα" + "\n" +
+      "moscow <- Москва" + "\n";
+    Map<String, String> options = new HashMap<String, String>();
+    options.put("unicode", "true");
+    options.put("case-insensitive-min-length", "0");
+    NamedEntityRecognition ner = new NamedEntityRecognition(grammar, options, logger);
+    SmaxDocument document = XmlString.toSmax("<r>Από την ΑΘΉΝΑ στη Москва, not Москвами.</r>");
+    ner.scan(document);
+    String output = XmlString.fromSmax(document).replaceAll("<\\?.*?\\?>", "").replaceAll("\\s*xmlns:.+?=\".*?\"", "");
+    String expectedOutput = "<r>Από την <fn:match id=\"athens\">ΑΘΉΝΑ</fn:match> στη <fn:match id=\"moscow\">Москва</fn:match>, not Москвами.</r>";
+    assertEquals(expectedOutput, output);
+  }
+
+  @Test
+  @SuppressWarnings("deprecation")
+  void test_NodePut() throws Exception
+  {
+    TrieScanner trie = new TrieScanner("", "", logger);
+    TrieScanner.Node root = new TrieScanner.Node();
+    root.putIterative(trie, "a b", "a b", "ab");
+    root.putRecursive(trie, "a c", "a c", "ac", 0);
+    assertEquals(Arrays.asList("ab"), root.get("a b", 0).values);
+    assertEquals(Arrays.asList("ac"), root.get("a c", 0).values);
+    assertNull(root.get("a d", 0));
+    assertThrows(IllegalArgumentException.class, () -> root.putIterative(trie, "a.b", "a.b", "x"));
+  }
+
+  @Test
+  void test_UpdateReleasesOldVersions() throws Exception
+  {
+    TrieScanner trie = new TrieScanner("", "", logger);
+    for (int i = 0; i < 1000; ++i) {
+      trie.put("name "+i, "n"+i);
+    }
+    trie.ahoCorasick();
+    WeakReference<TrieScanner> oldVersion = new WeakReference<TrieScanner>(trie);
+    for (int i = 0; i < 5; ++i) {
+      trie = trie.update(Arrays.asList(new String[][] {{"added "+i, "a"+i}}), Arrays.asList(new String[][] {{"name "+i, "n"+i}}));
+      trie.ahoCorasick();
+    }
+    // The newer versions share nodes with the old version, but must not keep it in memory.
+    for (int i = 0; i < 50 && oldVersion.get() != null; ++i) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertNull(oldVersion.get());
+    assertEquals(Arrays.asList("a4"), trie.get("added 4"));
+    assertNull(trie.get("name 4"));
+    assertEquals(Arrays.asList("n5"), trie.get("name 5"));
+  }
+
+  @Test
+  void test_NormalizeOneToOne() throws Exception
+  {
+    // Compare the normalization of every character in the BMP with a lookup in the equivalence tables.
+    String unicodeDiacritical = stringUtilsTable("UNICODE_DIACRITICAL");
+    String plainAsciiDiacritical = stringUtilsTable("PLAIN_ASCII_DIACRITICAL");
+    String unicodePunctuation = stringUtilsTable("UNICODE_PUNCTUATION");
+    String plainAsciiPunctuation = stringUtilsTable("PLAIN_ASCII_PUNCTUATION");
+    char[] all = new char[Character.MAX_VALUE + 1];
+    for (int i = 0; i <= Character.MAX_VALUE; ++i) {
+      all[i] = (char)i;
+    }
+    String allString = new String(all);
+    String ascii = StringUtils.normalizeOneToOne(allString).toString();
+    String unicode = StringUtils.normalizeUnicodeOneToOne(allString).toString();
+    char[] asciiChunks = all.clone();
+    char[] unicodeChunks = all.clone();
+    for (int start = 0; start < all.length; start += 1000) {
+      StringUtils.normalizeOneToOne(asciiChunks, start, Math.min(start + 1000, all.length));
+      StringUtils.normalizeUnicodeOneToOne(unicodeChunks, start, Math.min(start + 1000, all.length));
+    }
+    for (int i = 0; i <= Character.MAX_VALUE; ++i) {
+      char c = (char)i;
+      int pos;
+      char expectedAscii;
+      char expectedUnicode;
+      if (Character.isWhitespace(c)) {
+        expectedAscii = expectedUnicode = ' ';
+      } else if ((pos = unicodeDiacritical.indexOf(c)) >= 0) {
+        expectedAscii = expectedUnicode = plainAsciiDiacritical.charAt(pos);
+      } else if ((pos = unicodePunctuation.indexOf(c)) >= 0) {
+        expectedAscii = expectedUnicode = plainAsciiPunctuation.charAt(pos);
+      } else if (c >= 0x20 && c < 0x80) {
+        expectedAscii = expectedUnicode = c;
+      } else {
+        expectedAscii = '\u0080';
+        expectedUnicode = c >= 0x80 ? c : '\u0080';
+      }
+      String at = "at U+" + Integer.toHexString(i);
+      assertEquals(expectedAscii, ascii.charAt(i), at);
+      assertEquals(expectedAscii, asciiChunks[i], at);
+      assertEquals(expectedAscii, StringUtils.normalizeOneToOne(c), at);
+      assertEquals(expectedUnicode, unicode.charAt(i), at);
+      assertEquals(expectedUnicode, unicodeChunks[i], at);
+    }
+  }
+
+  private static String stringUtilsTable(String name) throws Exception
+  {
+    Field field = StringUtils.class.getDeclaredField(name);
+    field.setAccessible(true);
+    return (String)field.get(null);
+  }
+
+  @Test
+  void test_NormalizedText() throws Exception
+  {
+    // A text of more than 4 windows of 4096 characters, so that windows are evicted, with a partial last window.
+    String alphabet = "aÄbé \t’“\u0001αЖ-.X";
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < 6 * 4096 + 37; ++i) {
+      builder.append(alphabet.charAt((i * 7 + i / 13) % alphabet.length()));
+    }
+    String text = builder.toString();
+    for (boolean unicode : new boolean[] {false, true}) {
+      String expected = (unicode ? StringUtils.normalizeUnicodeOneToOne(text) : StringUtils.normalizeOneToOne(text)).toString();
+      for (CharSequence source : new CharSequence[] {text, builder, CharBuffer.wrap(text)}) {
+        NormalizedText normalized = new NormalizedText(source, unicode);
+        assertEquals(text.length(), normalized.length());
+        // Read forward, and look back across each window boundary.
+        for (int i = 0; i < text.length(); ++i) {
+          assertEquals(expected.charAt(i), normalized.charAt(i), "at " + i);
+          if (i > 0 && (i & 4095) == 0) {
+            assertEquals(expected.charAt(i - 1), normalized.charAt(i - 1), "at " + (i - 1));
+          }
+        }
+        // Read backward, and jump between windows that share a slot.
+        for (int i = text.length() - 1; i >= 0; i -= 1013) {
+          assertEquals(expected.charAt(i), normalized.charAt(i), "at " + i);
+          assertEquals(expected.charAt(i % 4096), normalized.charAt(i % 4096), "at " + (i % 4096));
+        }
+        for (int boundary = 4096; boundary < text.length(); boundary += 4096) {
+          assertEquals(expected.substring(boundary - 3, boundary + 3), normalized.subSequence(boundary - 3, boundary + 3).toString());
+        }
+        assertEquals(expected, normalized.toString());
+        assertThrows(IndexOutOfBoundsException.class, () -> normalized.charAt(text.length()));
+      }
+    }
+    // A text that is shorter than a window.
+    assertEquals(StringUtils.normalizeOneToOne("Ça va").toString(), new NormalizedText("Ça va", false).toString());
+  }
+
+  @Test
+  void test_CharClasses() throws Exception
+  {
+    // Compare the compiled character classes with their definitions, for every character in the BMP.
+    String[][] options = {{"", ""}, {".-_", "'"}, {"é€-", "-’"}};
+    for (String[] option : options) {
+      String wordChars = option[0];
+      String noWordBefore = option[1];
+      for (boolean unicode : new boolean[] {false, true}) {
+        ClassesTrie trie = new ClassesTrie(wordChars, noWordBefore);
+        trie.setUnicode(unicode);
+        for (int i = 0; i <= Character.MAX_VALUE; ++i) {
+          char c = (char)i;
+          boolean nonSpaceTrieChar = (c < 0x80 || unicode) && (Character.isLetterOrDigit(c) || wordChars.indexOf(c) >= 0);
+          boolean trieChar = Character.isWhitespace(c) || nonSpaceTrieChar;
+          String at = "at U+" + Integer.toHexString(i) + " with " + Arrays.toString(option) + (unicode ? " in Unicode" : "");
+          assertEquals(nonSpaceTrieChar, trie.isNonSpaceTrieChar(c), at);
+          assertEquals(trieChar, trie.isTrieChar(c), at);
+          assertEquals(!trieChar || Character.isWhitespace(c), trie.wordSeparator(c), at);
+          assertEquals(Character.isLetterOrDigit(c) || noWordBefore.indexOf(c) >= 0, trie.continuesWordAt(c), at);
+        }
+      }
+    }
+  }
+
+  private static class ClassesTrie extends TrieScanner
+  {
+    private ClassesTrie(String wordChars, String noWordBefore)
+    {
+      super(wordChars, noWordBefore, logger);
+    }
+    private boolean wordSeparator(char c)
+    {
+      return wordSeparatorChar(c);
+    }
+    private boolean continuesWordAt(char c)
+    {
+      return continuesWord(c);
+    }
+  }
+
+  @Test
+  void test_ExactFlags() throws Exception
+  {
+    // The flags that the walk records must agree with a comparison of the matched key and the text.
+    // The keys are sorted, as a DAWG needs them.
+    String[] keys = {"A A", "NASA", "Nasa", "a-b", "e g", "e.g.", "eg", "space agency"};
+    String text = "A   A  e.g. e g eg  E.G. nasa NASA Nasa a b a-b A-B a.b. Space  Agency space-agency";
+    List<TrieScanner> tries = new ArrayList<TrieScanner>();
+    for (int variant = 0; variant < 5; ++variant) {
+      TrieScanner trie = variant == 4 ? new DawgTrieScanner(".-", "", logger) : new TrieScanner(".-", "", logger);
+      trie.setCaseFolded(variant == 3);
+      for (String key : keys) {
+        trie.put(key, key);
+      }
+      tries.add(variant == 1 ? trie.freeze() : variant == 2 ? trie.compress() : trie);
+    }
+    for (TrieScanner trie : tries) {
+      CharSequence normalizedText = trie.normalize(text);
+      for (boolean caseInsensitive : new boolean[] {false, true}) {
+        AhoCorasickAutomaton.Matcher matcher = trie.ahoCorasick().matcher(normalizedText, caseInsensitive);
+        for (int start = 0; start < text.length(); ++start) {
+          TrieScanner.ScanCursor walked = new TrieScanner.ScanCursor();
+          TrieScanner.ScanCursor matched = new TrieScanner.ScanCursor();
+          trie.scan(normalizedText, start, caseInsensitive, walked);
+          matcher.scan(start, matched);
+          for (TrieScanner.ScanCursor cursor : new TrieScanner.ScanCursor[] {walked, matched}) {
+            for (int i = 0; i < cursor.size(); ++i) {
+              String matchedText = normalizedText.subSequence(cursor.start(), cursor.end()).toString();
+              String key = cursor.matchedKey(i);
+              String at = key + " at " + start + " in " + trie.getClass().getSimpleName();
+              assertEquals(key.equalsIgnoreCase(matchedText), cursor.exactChars(i), at);
+              if (key.equals(matchedText)) {
+                assertTrue(cursor.exactCase(i), at);
+              }
+              if (!caseInsensitive) {
+                assertTrue(cursor.exactCase(i), at);
+              }
+            }
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  void test_Radix() throws Exception
+  {
+    String grammar =
+      "uva <- University of Amsterdam" + "\n" +
+      "amc <- University of Amsterdam Medical Center" + "\n" +
+      "uu <- University of Utrecht" + "\n" +
+      "ams <- Amsterdam" + "\n";
+    Map<String, String> options = new HashMap<String, String>();
+    options.put("radix", "true");
+    options.put("case-insensitive-min-length", "0");
+    options.put("fuzzy-min-length", "1");
+    NamedEntityRecognition ner = new NamedEntityRecognition(grammar, options, logger);
+    SmaxDocument document = XmlString.toSmax("<r>The University of Amsterdam  Medical Center, the university of utrecht, the University of Amsterdam Medical School and the University of Ams.</r>");
+    ner.scan(document);
+    String output = XmlString.fromSmax(document).replaceAll("<\\?.*?\\?>", "").replaceAll("\\s*xmlns:.+?=\".*?\"", "");
+    String expectedOutput = "<r>The <fn:match id=\"amc\">University of Amsterdam  Medical Center</fn:match>, the <fn:match id=\"uu\">university of utrecht</fn:match>, the <fn:match id=\"uva\">University of Amsterdam</fn:match> Medical School and the University of Ams.</r>";
+    assertEquals(expectedOutput, output);
+  }
+
+  @Test
+  void test_Dawg() throws Exception
+  {
+    String grammar =
+      "initech <- Initech Corporation\tInitech" + "\n" +
+      "globex <- Globex Corporation" + "\n" +
+      "acme <- Acme Corporation" + "\n" +
+      "globex-brand <- Globex" + "\n";
+    Map<String, String> options = new HashMap<String, String>();
+    options.put("dawg", "true");
+    NamedEntityRecognition ner = new NamedEntityRecognition(grammar, options, logger);
+    SmaxDocument document = XmlString.toSmax("<r>Acme Corporation and Initech sued Globex Corporation, not Globex.</r>");
+    ner.scan(document);
+    String output = XmlString.fromSmax(document).replaceAll("<\\?.*?\\?>", "").replaceAll("\\s*xmlns:.+?=\".*?\"", "");
+    String expectedOutput = "<r><fn:match id=\"acme\">Acme Corporation</fn:match> and <fn:match id=\"initech\">Initech</fn:match> sued <fn:match id=\"globex\">Globex Corporation</fn:match>, not <fn:match id=\"globex-brand\">Globex</fn:match>.</r>";
+    assertEquals(expectedOutput, output);
+  }
+
+  @Test
+  void test_Snapshot() throws Exception
+  {
+    Path grammarFile = Files.createTempFile("grammar", ".txt");
+    Path snapshotFile = Files.createTempFile("grammar", ".trie");
+    try {
+      Files.writeString(grammarFile, "nasa <- NASA\tNational Aeronautics and Space Administration\n");
+      Files.delete(snapshotFile);
+      Map<String, String> options = new HashMap<String, String>();
+      options.put("snapshot", snapshotFile.toString());
+      // The first time, the grammar is compiled and saved. The second time, the snapshot is loaded.
+      new NamedEntityRecognition(grammarFile.toUri().toURL(), options, logger);
+      assertTrue(Files.exists(snapshotFile));
+      // Change the grammar, but keep it older than the snapshot, so that the names can only be matched if the snapshot is loaded.
+      Files.writeString(grammarFile, "esa <- ESA\n");
+      Files.setLastModifiedTime(grammarFile, FileTime.fromMillis(Files.getLastModifiedTime(snapshotFile).toMillis() - 10000));
+      NamedEntityRecognition ner = new NamedEntityRecognition(grammarFile.toUri().toURL(), options, logger);
+      SmaxDocument document = XmlString.toSmax("<r>The National Aeronautics and Space Administration (NASA)</r>");
+      ner.scan(document);
+      String output = XmlString.fromSmax(document).replaceAll("<\\?.*?\\?>", "").replaceAll("\\s*xmlns:.+?=\".*?\"", "");
+      String expectedOutput = "<r>The <fn:match id=\"nasa\">National Aeronautics and Space Administration</fn:match> (<fn:match id=\"nasa\">NASA</fn:match>)</r>";
+      assertEquals(expectedOutput, output);
+    } finally {
+      Files.deleteIfExists(grammarFile);
+      Files.deleteIfExists(snapshotFile);
+    }
+  }
+
+  @Test
+  void test_DamagedSnapshot() throws Exception
+  {
+    Path grammarFile = Files.createTempFile("grammar", ".txt");
+    Path snapshotFile = Files.createTempFile("grammar", ".trie");
+    try {
+      Files.writeString(grammarFile, "nasa <- NASA\tNational Aeronautics and Space Administration\n");
+      Files.delete(snapshotFile);
+      Map<String, String> options = new HashMap<String, String>();
+      options.put("snapshot", snapshotFile.toString());
+      new NamedEntityRecognition(grammarFile.toUri().toURL(), options, logger);
+      // An incomplete snapshot that is newer than the grammar is not used, and the grammar is compiled again.
+      byte[] snapshot = Files.readAllBytes(snapshotFile);
+      for (int length : new int[] {snapshot.length - 1, snapshot.length / 2, 40}) {
+        Files.write(snapshotFile, Arrays.copyOf(snapshot, length));
+        Files.setLastModifiedTime(grammarFile, FileTime.fromMillis(Files.getLastModifiedTime(snapshotFile).toMillis() - 10000));
+        NamedEntityRecognition ner = new NamedEntityRecognition(grammarFile.toUri().toURL(), options, logger);
+        assertEquals(snapshot.length, Files.size(snapshotFile));
+        SmaxDocument document = XmlString.toSmax("<r>The National Aeronautics and Space Administration (NASA)</r>");
+        ner.scan(document);
+        String output = XmlString.fromSmax(document).replaceAll("<\\?.*?\\?>", "").replaceAll("\\s*xmlns:.+?=\".*?\"", "");
+        String expectedOutput = "<r>The <fn:match id=\"nasa\">National Aeronautics and Space Administration</fn:match> (<fn:match id=\"nasa\">NASA</fn:match>)</r>";
+        assertEquals(expectedOutput, output);
+      }
+    } finally {
+      Files.deleteIfExists(grammarFile);
+      Files.deleteIfExists(snapshotFile);
+    }
+  }
+
+  @Test
+  void test_SnapshotOptions() throws Exception
+  {
+    Path grammarFile = Files.createTempFile("grammar", ".txt");
+    Path snapshotFile = Files.createTempFile("grammar", ".trie");
+    try {
+      Files.writeString(grammarFile, "nasa <- NASA\n");
+      Files.delete(snapshotFile);
+      Map<String, String> options = new HashMap<String, String>();
+      options.put("snapshot", snapshotFile.toString());
+      new NamedEntityRecognition(grammarFile.toUri().toURL(), options, logger);
+      // Change the grammar, but keep it older than the snapshot, so that only the other options make the snapshot unusable.
+      Files.writeString(grammarFile, "esa <- ESA\n");
+      Files.setLastModifiedTime(grammarFile, FileTime.fromMillis(Files.getLastModifiedTime(snapshotFile).toMillis() - 10000));
+      options.put("case-folded", "true");
+      NamedEntityRecognition ner = new NamedEntityRecognition(grammarFile.toUri().toURL(), options, logger);
+      SmaxDocument document = XmlString.toSmax("<r>NASA and ESA</r>");
+      ner.scan(document);
+      String output = XmlString.fromSmax(document).replaceAll("<\\?.*?\\?>", "").replaceAll("\\s*xmlns:.+?=\".*?\"", "");
+      String expectedOutput = "<r>NASA and <fn:match id=\"esa\">ESA</fn:match></r>";
+      assertEquals(expectedOutput, output);
+      // A snapshot cannot be used for a grammar that is not a file, or for a path-compressed trie.
+      assertThrows(IllegalArgumentException.class, () -> new NamedEntityRecognition(new URL("http://localhost/grammar.txt"), options, logger));
+      options.put("radix", "true");
+      assertThrows(IllegalArgumentException.class, () -> new NamedEntityRecognition(grammarFile.toUri().toURL(), options, logger));
+    } finally {
+      Files.deleteIfExists(grammarFile);
+      Files.deleteIfExists(snapshotFile);
+    }
+  }
+
+  @Test
+  void test_OffHeap() throws Exception
+  {
+    String grammar =
+      "eg1 <- e.g." + "\n" +
+      "eg2 <- e g" + "\n" +
+      "eg3 <- eg" + "\n" +
+      "1 <- A A\tB A" + "\n" +
+      "2 <- A B\tB B" + "\n" +
+      "3 <- A C\tB C" + "\n";
+    Map<String, String> options = new HashMap<String, String>();
+    options.put("fuzzy-min-length", "1");
+    options.put("off-heap", "true");
+    NamedEntityRecognition ner = new NamedEntityRecognition(grammar, options, logger);
+    SmaxDocument document = XmlString.toSmax("<r>A   A  e.g. e g eg  B A B B B C</r>");
+    ner.scan(document);
+    String output = XmlString.fromSmax(document).replaceAll("<\\?.*?\\?>", "").replaceAll("\\s*xmlns:.+?=\".*?\"", "");
+    String expectedOutput = "<r><fn:match id=\"1\">A   A</fn:match>  <fn:match id=\"eg2\">e.g</fn:match>. <fn:match id=\"eg2\">e g</fn:match> <fn:match id=\"eg1&#9;eg3\">eg</fn:match>  <fn:match id=\"1\">B A</fn:match> <fn:match id=\"2\">B B</fn:match> <fn:match id=\"3\">B C</fn:match></r>";
+    assertEquals(expectedOutput, output);
+    // A trie that is loaded from a snapshot is already off-heap.
+    TrieScanner trie = new TrieScanner("", "", logger);
+    trie.put("a b", "ab");
+    Path snapshotFile = Files.createTempFile("trie", ".trie");
+    try {
+      trie.save(snapshotFile.toFile());
+      TrieScanner loaded = TrieScanner.load(snapshotFile.toFile(), logger);
+      // Only the values that have been read from the snapshot are on the heap.
+      long sizeInBytes = loaded.sizeInBytes();
+      assertTrue(sizeInBytes < Files.size(snapshotFile));
+      assertSame(loaded, loaded.freezeOffHeap());
+      assertEquals(Arrays.asList("ab"), loaded.freezeOffHeap().get("a b"));
+      assertEquals(3, loaded.maxKeyLength());
+      assertTrue(loaded.sizeInBytes() > sizeInBytes);
+    } finally {
+      Files.deleteIfExists(snapshotFile);
+    }
+  }
+
+  @Test
+  void test_CompileThreads() throws Exception
+  {
+    String grammar =
+      "eg1 <- e.g." + "\n" +
+      "eg2 <- e g" + "\n" +
+      "eg3 <- eg" + "\n" +
+      "1 <- A A\tB A" + "\n" +
+      "2 <- A B\tB B" + "\n" +
+      "3 <- A C\tB C" + "\n";
+    Map<String, String> options = new HashMap<String, String>();
+    options.put("fuzzy-min-length", "1");
+    options.put("compile-threads", "4");
+    NamedEntityRecognition ner = new NamedEntityRecognition(grammar, options, logger);
+    SmaxDocument document = XmlString.toSmax("<r>A   A  e.g. e g eg  B A B B B C</r>");
+    ner.scan(document);
+    String output = XmlString.fromSmax(document).replaceAll("<\\?.*?\\?>", "").replaceAll("\\s*xmlns:.+?=\".*?\"", "");
+    String expectedOutput = "<r><fn:match id=\"1\">A   A</fn:match>  <fn:match id=\"eg2\">e.g</fn:match>. <fn:match id=\"eg2\">e g</fn:match> <fn:match id=\"eg1&#9;eg3\">eg</fn:match>  <fn:match id=\"1\">B A</fn:match> <fn:match id=\"2\">B B</fn:match> <fn:match id=\"3\">B C</fn:match></r>";
+    assertEquals(expectedOutput, output);
+  }
+
+  @Test
+  void test_UpdateGrammar() throws Exception
+  {
+    String grammar =
+      "1 <- A A\tB A" + "\n" +
+      "2 <- A B\tB B" + "\n" +
+      "3 <- A C\tB C" + "\n";
+    Map<String, String> options = new HashMap<String, String>();
+    NamedEntityRecognition ner = new NamedEntityRecognition(grammar, options, logger);
+    SmaxDocument document = XmlString.toSmax("<r>B A B C B D</r>");
+    ner.scan(document);
+    String output = XmlString.fromSmax(document).replaceAll("<\\?.*?\\?>", "").replaceAll("\\s*xmlns:.+?=\".*?\"", "");
+    String expectedOutput = "<r><fn:match id=\"1\">B A</fn:match> <fn:match id=\"3\">B C</fn:match> B D</r>";
+    assertEquals(expectedOutput, output);
+    ner.updateGrammar(Arrays.asList(new String[][] {{"B D", "4"}}), Arrays.asList(new String[][] {{"B C", "3"}}));
+    document = XmlString.toSmax("<r>B A B C B D</r>");
+    ner.scan(document);
+    output = XmlString.fromSmax(document).replaceAll("<\\?.*?\\?>", "").replaceAll("\\s*xmlns:.+?=\".*?\"", "");
+    expectedOutput = "<r><fn:match id=\"1\">B A</fn:match> B C <fn:match id=\"4\">B D</fn:match></r>";
+    assertEquals(expectedOutput, output);
+  }
+
+  @Test
+  void test_UpdateCachedGrammar() throws Exception
+  {
+    String grammar =
+      "1 <- A A\tB A" + "\n" +
+      "3 <- A C\tB C" + "\n" +
+      "5 <- A E\tB E" + "\n";
+    Map<String, String> options = new HashMap<String, String>();
+    options.put("cache", "true");
+    NamedEntityRecognition ner = new NamedEntityRecognition(grammar, options, logger);
+    ner.updateGrammar(Arrays.asList(new String[][] {{"B D", "4"}}), Arrays.asList(new String[][] {{"B C", "3"}}));
+    // The cached trie scanner of the same grammar string does not have the changes.
+    NamedEntityRecognition sameGrammar = new NamedEntityRecognition(new String(grammar), options, logger);
+    SmaxDocument document = XmlString.toSmax("<r>B A B C B D</r>");
+    sameGrammar.scan(document);
+    String output = XmlString.fromSmax(document).replaceAll("<\\?.*?\\?>", "").replaceAll("\\s*xmlns:.+?=\".*?\"", "");
+    assertEquals("<r><fn:match id=\"1\">B A</fn:match> <fn:match id=\"3\">B C</fn:match> B D</r>", output);
+    document = XmlString.toSmax("<r>B A B C B D</r>");
+    ner.scan(document);
+    output = XmlString.fromSmax(document).replaceAll("<\\?.*?\\?>", "").replaceAll("\\s*xmlns:.+?=\".*?\"", "");
+    assertEquals("<r><fn:match id=\"1\">B A</fn:match> B C <fn:match id=\"4\">B D</fn:match></r>", output);
+  }
+
+  @Test
+  void test_ScanReader() throws Exception
+  {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 1000; ++i) {
+      text.append(i % 3 == 0 ? "xa b, " : "a b A  b-b ");
+    }
+    String expectedOutput = annotate(text.toString(), false, null);
+    assertTrue(expectedOutput.startsWith("xa [b:b], [ab:a b] [ab:A  b]-[b:b] [ab:a b] "));
+    // A slack of 1 makes a window that is much smaller than the text.
+    assertEquals(expectedOutput, annotate(text.toString(), true, null));
+  }
+
+  @Test
+  void test_ScanReaderLongSeparators() throws Exception
+  {
+    // Separator runs that are longer than the slack of 1 put the end of a match at the edge of the window.
+    // The character after the window continues the word, so there must be no match.
+    for (int n = 1; n < 30; ++n) {
+      StringBuilder text = new StringBuilder("a");
+      for (int i = 0; i < n; ++i) {
+        text.append(i % 2 == 0 ? " " : "-");
+      }
+      text.append("bx a b");
+      String expectedOutput = annotate(text.toString(), false, null);
+      assertTrue(expectedOutput.endsWith("bx [ab:a b]"));
+      assertEquals(expectedOutput, annotate(text.toString(), true, null));
+    }
+  }
+
+  @Test
+  void test_ParallelScan() throws Exception
+  {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 1000; ++i) {
+      text.append(i % 3 == 0 ? "xa b, " : "a b A  b-b ");
+    }
+    String expectedOutput = annotate(text.toString(), false, null);
+    // Segments of 5 characters make many matches extend into the next segment.
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      assertEquals(expectedOutput, annotate(text.toString(), false, executor));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private static String annotate(String text, boolean fromReader, ExecutorService executor) throws IOException, InterruptedException
+  {
+    StringBuilder output = new StringBuilder();
+    TrieNER ner = new TrieNER("", "", "", logger) {
+      @Override
+      public void match(CharSequence text, int start, int end, List<String> ids)
+      {
+        output.append("[").append(String.join(",", ids)).append(":").append(text.subSequence(start, end)).append("]");
+      }
+      @Override
+      public void noMatch(CharSequence text, int start, int end)
+      {
+        output.append(text.subSequence(start, end));
+      }
+    };
+    ner.getTrie().put("a b", "ab");
+    ner.getTrie().put("b", "b");
+    if (fromReader) {
+      ner.scan(new StringReader(text), 0, 0, 1);
+    } else if (executor != null) {
+      ner.scan(text, 0, 0, executor, 5);
+    } else {
+      ner.scan(text, 0, 0);
+    }
+    return output.toString();
+  }
+
+  @Test
+  void test_ScanXmlStream() throws Exception
+  {
+    String grammar = "RSVP <- RSVP" + "\n";
+    Map<String, String> options = new HashMap<String, String>();
+    // default balancing is OUTER
+    assertEquals("<r><fn:match id=\"RSVP\">R<i>SVP!</i></fn:match></r>",
+        scanXmlStream(new NamedEntityRecognition(grammar, options, logger), "<r>R<i>SVP!</i></r>"));
+    // test balancing INNER
+    options.put("balancing", "INNER");
+    assertEquals("<r><fn:match id=\"RSVP\">R</fn:match><i>SVP!</i></r>",
+        scanXmlStream(new NamedEntityRecognition(grammar, options, logger), "<r>R<i>SVP!</i></r>"));
+    // only match within p elements, across the end of one text event and the start of the next
+    options.remove("balancing");
+    options.put("match-within-element", "p");
+    assertEquals("<r>RSVP<p><fn:match id=\"RSVP\">RS<!--c-->VP</fn:match></p><!--RSVP--></r>",
+        scanXmlStream(new NamedEntityRecognition(grammar, options, logger), "<r>RSVP<p>RS<!--c-->VP</p><!--RSVP--></r>"));
+  }
+
+  private static String scanXmlStream(NamedEntityRecognition ner, String xml) throws Exception
+  {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    ner.scan(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)), output);
+    return new String(output.toByteArray(), StandardCharsets.UTF_8).replaceAll("<\\?.*?\\?>", "").replaceAll("\\s*xmlns:.+?=\".*?\"", "");
+  }
+
+  @Test
+  void test_ConcurrentScans() throws Exception
+  {
+    String grammar =
+      "RSVP <- RSVP\tr s v p" + "\n" +
+      "PET <- PET\tpolyethylene terephthalate" + "\n" +
+      "PVC <- PVC\tpolyvinyl chloride\tvinyl" + "\n";
+    Map<String, String> options = new HashMap<String, String>();
+    options.put("case-insensitive-min-length", "3");
+    options.put("fuzzy-min-length", "3");
+    NamedEntityRecognition ner = new NamedEntityRecognition(grammar, options, logger);
+    String[] words = {"RSVP", "r.s.v.p.", "PET", "polyethylene", "terephthalate", "Polyvinyl", "chloride", "vinyl", "pvc", "and", "the", "of"};
+    int nrDocuments = 64;
+    String[] documents = new String[nrDocuments];
+    String[] expectedOutputs = new String[nrDocuments];
+    for (int d = 0; d < nrDocuments; ++d) {
+      StringBuilder xml = new StringBuilder("<r>");
+      for (int w = 0; w < 500; ++w) {
+        xml.append(words[(w * 7 + d * 3 + w / 5) % words.length]).append(w % 11 == 0 ? ", " : " ");
+      }
+      documents[d] = xml.append("</r>").toString();
+      SmaxDocument document = XmlString.toSmax(documents[d]);
+      ner.scan(document);
+      expectedOutputs[d] = XmlString.fromSmax(document);
+    }
+    // All threads scan all documents with the same instance, in different orders.
+    int nrThreads = 8;
+    ExecutorService executor = Executors.newFixedThreadPool(nrThreads);
+    try {
+      List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+      for (int t = 0; t < nrThreads; ++t) {
+        int thread = t;
+        results.add(executor.submit(() -> {
+          int nrDifferent = 0;
+          for (int i = 0; i < 10 * nrDocuments; ++i) {
+            int d = (i * (2 * thread + 1)) % nrDocuments;
+            SmaxDocument document = XmlString.toSmax(documents[d]);
+            ner.scan(document);
+            if (!expectedOutputs[d].equals(XmlString.fromSmax(document))) {
+              ++nrDifferent;
+            }
+          }
+          return nrDifferent;
+        }));
+      }
+      for (Future<Integer> result : results) {
+        assertEquals(0, result.get().intValue());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  void test_ParallelMatchWithinElement() throws Exception
+  {
+    String grammar =
+      "RSVP <- RSVP\tr s v p" + "\n" +
+      "PET <- PET\tpolyethylene terephthalate" + "\n" +
+      "PVC <- PVC\tpolyvinyl chloride\tvinyl" + "\n";
+    String[] words = {"RSVP", "r.s.v.p.", "PET", "polyethylene", "terephthalate", "Polyvinyl", "chloride", "vinyl", "pvc", "and", "the", "of"};
+    // Enough paragraphs to be scanned in parallel, with words outside of them that must not be matched.
+    StringBuilder xml = new StringBuilder("<r>");
+    for (int p = 0; p < 10000; ++p) {
+      xml.append(words[p % words.length]).append(" <p>");
+      for (int w = 0; w < p % 13; ++w) {
+        xml.append(words[(w * 7 + p * 3) % words.length]).append(w % 5 == 0 ? ", " : " ");
+      }
+      xml.append("</p> ");
+    }
+    xml.append("</r>");
+    Map<String, String> options = new HashMap<String, String>();
+    options.put("case-insensitive-min-length", "3");
+    options.put("match-within-element", "p");
+    SmaxDocument document = XmlString.toSmax(xml.toString());
+    new NamedEntityRecognition(grammar, options, logger).scan(document);
+    String expectedOutput = XmlString.fromSmax(document);
+    options.put("scan-threads", "4");
+    document = XmlString.toSmax(xml.toString());
+    new NamedEntityRecognition(grammar, options, logger).scan(document);
+    assertEquals(expectedOutput, XmlString.fromSmax(document));
+  }
+
+  @Test
+  void test_TrieCache() throws Exception
+  {
+    Path grammarFile = Files.createTempFile("grammar", ".txt");
+    TrieCache trieCache = NamedEntityRecognition.getTrieCache();
+    long budget = trieCache.getBudget();
+    try {
+      Files.writeString(grammarFile, "nasa <- NASA\n");
+      Map<String, String> options = new HashMap<String, String>();
+      options.put("cache", "true");
+      long hits = trieCache.hits();
+      long misses = trieCache.misses();
+      // The first time, the grammar is compiled. The second time, the cached trie is used.
+      new NamedEntityRecognition(grammarFile.toUri().toURL(), options, logger);
+      new NamedEntityRecognition(grammarFile.toUri().toURL(), options, logger);
+      assertEquals(hits + 1, trieCache.hits());
+      assertEquals(misses + 1, trieCache.misses());
+      // Different compilation options give a different trie.
+      options.put("word-chars", ".");
+      new NamedEntityRecognition(grammarFile.toUri().toURL(), options, logger);
+      assertEquals(misses + 2, trieCache.misses());
+      // A modified grammar is compiled again.
+      Files.writeString(grammarFile, "nasa <- NASA\nesa <- ESA\n");
+      Files.setLastModifiedTime(grammarFile, FileTime.fromMillis(Files.getLastModifiedTime(grammarFile).toMillis() + 10000));
+      NamedEntityRecognition ner = new NamedEntityRecognition(grammarFile.toUri().toURL(), options, logger);
+      assertEquals(misses + 3, trieCache.misses());
+      SmaxDocument document = XmlString.toSmax("<r>NASA and ESA</r>");
+      ner.scan(document);
+      String output = XmlString.fromSmax(document).replaceAll("<\\?.*?\\?>", "").replaceAll("\\s*xmlns:.+?=\".*?\"", "");
+      assertEquals("<r><fn:match id=\"nasa\">NASA</fn:match> and <fn:match id=\"esa\">ESA</fn:match></r>", output);
+      // Tries are evicted to keep within the budget, and a trie that is larger than the budget is not cached.
+      long evictions = trieCache.evictions();
+      trieCache.setBudget(1);
+      assertTrue(trieCache.evictions() >= evictions + 2);
+      assertEquals(0, trieCache.size());
+      new NamedEntityRecognition(grammarFile.toUri().toURL(), options, logger);
+      assertEquals(0, trieCache.size());
+    } finally {
+      trieCache.setBudget(budget);
+      Files.deleteIfExists(grammarFile);
+    }
+  }
+
+  @Test
+  void test_CacheGrammarContent() throws Exception
+  {
+    TrieCache trieCache = NamedEntityRecognition.getTrieCache();
+    Map<String, String> options = new HashMap<String, String>();
+    options.put("cache", "true");
+    options.put("word-chars", "-");
+    long hits = trieCache.hits();
+    long misses = trieCache.misses();
+    // The same grammar string is compiled once.
+    String grammar = "nasa <- NASA\tNational Aeronautics and Space Administration\n";
+    new NamedEntityRecognition(grammar, options, logger);
+    NamedEntityRecognition ner = new NamedEntityRecognition(new String(grammar), options, logger);
+    assertEquals(hits + 1, trieCache.hits());
+    assertEquals(misses + 1, trieCache.misses());
+    SmaxDocument document = XmlString.toSmax("<r>The National Aeronautics and Space Administration (NASA)</r>");
+    ner.scan(document);
+    String output = XmlString.fromSmax(document).replaceAll("<\\?.*?\\?>", "").replaceAll("\\s*xmlns:.+?=\".*?\"", "");
+    assertEquals("<r>The <fn:match id=\"nasa\">National Aeronautics and Space Administration</fn:match> (<fn:match id=\"nasa\">NASA</fn:match>)</r>", output);
+    // Another grammar string is compiled.
+    new NamedEntityRecognition(grammar + "esa <- ESA\n", options, logger);
+    assertEquals(misses + 2, trieCache.misses());
+    // Grammar elements with the same content are compiled once.
+    new NamedEntityRecognition(XmlString.toDomElement(xmlGrammarString), options, logger);
+    new NamedEntityRecognition(XmlString.toDomElement(xmlGrammarString), options, logger);
+    assertEquals(hits + 2, trieCache.hits());
+    assertEquals(misses + 3, trieCache.misses());
+    new NamedEntityRecognition(XmlString.toDomElement(xmlGrammarString.replace("PVC", "PVC-U")), options, logger);
+    assertEquals(misses + 4, trieCache.misses());
+  }
+
+  @Test
+  void test_ConcurrentCacheMisses() throws Exception
+  {
+    // A grammar that is not in the cache yet, and takes some time to compile.
+    StringBuilder grammar = new StringBuilder("nasa <- NASA\tNational Aeronautics and Space Administration\n");
+    grammar.append("run <- run ").append(System.nanoTime()).append("\n");
+    for (int i = 0; i < 20000; ++i) {
+      grammar.append("e").append(i).append(" <- entity ").append(i).append("\tname ").append(i * 7).append("\n");
+    }
+    String xml = "<r>The National Aeronautics and Space Administration (NASA), entity 17 and name 63.</r>";
+    Map<String, String> options = new HashMap<String, String>();
+    SmaxDocument document = XmlString.toSmax(xml);
+    new NamedEntityRecognition(grammar.toString(), options, logger).scan(document);
+    String expectedOutput = XmlString.fromSmax(document);
+    // All threads need the grammar at the same time, but only one of them compiles it.
+    options.put("cache", "true");
+    TrieCache trieCache = NamedEntityRecognition.getTrieCache();
+    long hits = trieCache.hits();
+    long misses = trieCache.misses();
+    int nrThreads = 16;
+    ExecutorService executor = Executors.newFixedThreadPool(nrThreads);
+    CountDownLatch start = new CountDownLatch(1);
+    try {
+      List<Future<String>> results = new ArrayList<Future<String>>();
+      for (int t = 0; t < nrThreads; ++t) {
+        results.add(executor.submit(() -> {
+          start.await();
+          NamedEntityRecognition ner = new NamedEntityRecognition(grammar.toString(), options, logger);
+          SmaxDocument threadDocument = XmlString.toSmax(xml);
+          ner.scan(threadDocument);
+          return XmlString.fromSmax(threadDocument);
+        }));
+      }
+      start.countDown();
+      for (Future<String> result : results) {
+        assertEquals(expectedOutput, result.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+    assertEquals(misses + 1, trieCache.misses());
+    assertEquals(hits + nrThreads - 1, trieCache.hits());
+  }
+
   private String grammar_the_cf =
     "THE <- THE" + "\n" +
     "CF <- C F" + "\n" + "\n";